@@ -0,0 +1,223 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+/**
+ * This is a simulated annealing schedule driven by acceptance behaviour rather than a fixed epoch count.
+ * Moves are counted over windows of epochs. At the end of each window the temperature is cooled or warmed so the
+ * fraction of uphill moves accepted follows a target falling geometrically from START_UPHILL_RATIO to END_UPHILL_RATIO
+ * over the epochs, and the weight factor (step size) grows or shrinks so the fraction of moves lowering average error
+ * stays near TARGET_IMPROVE_RATIO (the one fifth success rule). The first window calibrates the temperature so an average uphill move is accepted at START_UPHILL_RATIO.
+ * If the best energy stops improving for STALL_WINDOWS windows the schedule reheats, restoring half the
+ * calibrated temperature and the initial weight factor.
+ * @author Joseph Sackett
+ */
+public class AdaptiveSchedule {
+	/** Epochs per adaptation window. */
+	static final int WINDOW_EPOCHS = 50;
+
+	/** Target fraction of uphill moves accepted, at the first & last epochs. */
+	static final double START_UPHILL_RATIO = 0.1;
+	static final double END_UPHILL_RATIO = 0.02;
+
+	/** Target fraction of moves lowering average error, steering the weight factor. */
+	static final double TARGET_IMPROVE_RATIO = 0.2;
+
+	/** Multiplicative temperature adjustment per window. */
+	static final double TEMP_ADJUST_FACTOR = 0.8;
+
+	/** Multiplicative weight factor adjustment per window. */
+	static final double STEP_ADJUST_FACTOR = 0.9;
+
+	/** Windows without improvement before reheating. */
+	static final int STALL_WINDOWS = 20;
+
+	/** Relative best energy improvement that counts as progress. */
+	static final double MIN_IMPROVEMENT = 0.01;
+
+	/** Limits of weight factor, relative to initial weight factor. */
+	static final double MIN_WEIGHT_FACTOR_RATIO = 0.05;
+	static final double MAX_WEIGHT_FACTOR_RATIO = 20.0;
+
+	/** Maximum number of epochs. */
+	private int maxEpochs;
+
+	/** Current temperature. */
+	private double temp;
+
+	/** Temperature from calibration, basis for reheating. */
+	private double calibratedTemp;
+
+	/** Current weight factor. */
+	private double weightFactor;
+
+	/** Initial weight factor. */
+	private double initWeightFactor;
+
+	/** Move counts in current window. */
+	private int numMoves;
+	private int numImproved;
+	private int numUphill;
+	private int numUphillAccepted;
+
+	/** Sum of uphill energy increases in current window, for calibration. */
+	private double sumUphillDelta;
+
+	/** Flag indicating temperature has been calibrated. */
+	private boolean calibrated = false;
+
+	/** Lowest energy seen. */
+	private double bestEnergy = Double.MAX_VALUE;
+
+	/** Best energy at last progress. */
+	private double progressEnergy = Double.MAX_VALUE;
+
+	/** Windows since last progress. */
+	private int stallWindows = 0;
+
+	/** Number of reheats. */
+	private int numReheats = 0;
+
+	/**
+	 * @param startTemp temperature of first window, before calibration.
+	 * @param weightFactor initial factor by which a chosen weight can be updated.
+	 * @param maxEpochs maximum number of epochs.
+	 */
+	public AdaptiveSchedule(double startTemp, double weightFactor, int maxEpochs) {
+		this.temp = startTemp;
+		this.calibratedTemp = startTemp;
+		this.weightFactor = weightFactor;
+		this.initWeightFactor = weightFactor;
+		this.maxEpochs = maxEpochs;
+	}
+
+	/**
+	 * @return the current temperature.
+	 */
+	public double getTemp() {
+		return temp;
+	}
+
+	/**
+	 * @return the current weight factor.
+	 */
+	public double getWeightFactor() {
+		return weightFactor;
+	}
+
+	/**
+	 * @return the temperatures, weight factors, calibration & progress, for checkpoints. Window counts start afresh.
+	 */
+	double[] getState() {
+		return new double[] { temp, calibratedTemp, weightFactor, initWeightFactor, calibrated ? 1.0 : 0.0, bestEnergy, progressEnergy, stallWindows, numReheats };
+	}
+
+	/**
+	 * @param state state from getState(), restored from a checkpoint.
+	 */
+	void setState(double[] state) {
+		if (state.length != 9) {
+			throw new IllegalArgumentException("Adaptive schedule state holds " + state.length + " values, expected 9");
+		}
+		temp = state[0];
+		calibratedTemp = state[1];
+		weightFactor = state[2];
+		initWeightFactor = state[3];
+		calibrated = state[4] != 0.0;
+		bestEnergy = state[5];
+		progressEnergy = state[6];
+		stallWindows = (int)state[7];
+		numReheats = (int)state[8];
+	}
+
+	/**
+	 * @return the number of reheats.
+	 */
+	public int getNumReheats() {
+		return numReheats;
+	}
+
+	/**
+	 * Record the outcome of one epoch's move, adapting temperature & weight factor at the end of each window.
+	 * @param epoch epoch number.
+	 * @param prevEnergy energy before the move.
+	 * @param energy energy after the move.
+	 * @param uphill flag indicating the move raised average error, so was subject to the uphill test.
+	 * @param accepted flag indicating the move was kept.
+	 */
+	public void update(int epoch, double prevEnergy, double energy, boolean uphill, boolean accepted) {
+		numMoves++;
+		if (!uphill) {
+			numImproved++;
+		}
+		else {
+			numUphill++;
+			sumUphillDelta += energy - prevEnergy;
+			if (accepted) {
+				numUphillAccepted++;
+			}
+		}
+		if (accepted) {
+			bestEnergy = Math.min(bestEnergy, energy);
+		}
+
+		if (numMoves < WINDOW_EPOCHS) {
+			return;
+		}
+
+		if (!calibrated) {
+			// Accept an average uphill move at the starting ratio.
+			if (sumUphillDelta > 0.0) {
+				temp = -(sumUphillDelta / numUphill) / Math.log(START_UPHILL_RATIO);
+				calibratedTemp = temp;
+			}
+			calibrated = true;
+		}
+		else {
+			// Steer temperature to the target uphill acceptance ratio for this point in the run.
+			if (numUphill > 0) {
+				double progress = Math.min((double)epoch / maxEpochs, 1.0);
+				double targetUphillRatio = START_UPHILL_RATIO * Math.pow(END_UPHILL_RATIO / START_UPHILL_RATIO, progress);
+				double uphillRatio = (double)numUphillAccepted / numUphill;
+				temp = (uphillRatio > targetUphillRatio) ? temp * TEMP_ADJUST_FACTOR : temp / TEMP_ADJUST_FACTOR;
+			}
+		}
+
+		// Steer step size to the target improvement ratio: bigger steps improve less often.
+		double improveRatio = (double)numImproved / numMoves;
+		weightFactor = (improveRatio > TARGET_IMPROVE_RATIO) ? weightFactor / STEP_ADJUST_FACTOR : weightFactor * STEP_ADJUST_FACTOR;
+		weightFactor = Math.max(initWeightFactor * MIN_WEIGHT_FACTOR_RATIO, Math.min(weightFactor, initWeightFactor * MAX_WEIGHT_FACTOR_RATIO));
+
+		// Reheat when best energy stalls.
+		if (bestEnergy < progressEnergy * (1 - MIN_IMPROVEMENT)) {
+			progressEnergy = bestEnergy;
+			stallWindows = 0;
+		}
+		else if (++stallWindows >= STALL_WINDOWS) {
+			temp = Math.max(temp, calibratedTemp / 2);
+			weightFactor = initWeightFactor;
+			stallWindows = 0;
+			numReheats++;
+			System.out.println("Reheat " + numReheats + " at epoch " + epoch + ": temp- " + temp);
+		}
+
+		numMoves = numImproved = numUphill = numUphillAccepted = 0;
+		sumUphillDelta = 0.0;
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.Arrays;
+
+/**
+ * This holds the node outputs, errors and weight gradients for a batch of training instances run through a FlatNeuralNetwork.
+ * Node values are stored node-major: row ixNode holds that node's value for each instance of the batch in consecutive columns,
+ * so the layer calculations become matrix products over contiguous rows.
+ * @author Joseph Sackett
+ */
+public class BatchBuffer {
+	/** Maximum number of instances per batch. */
+	final int capacity;
+
+	/** Node outputs, at [ixNode * capacity + ixColumn]. */
+	final double[] outputs;
+
+	/** Node errors, at [ixNode * capacity + ixColumn]. */
+	final double[] errors;
+
+	/** Accumulated weight gradients, in napse order. */
+	final double[] gradients;
+
+	/** Number of instances accumulated into gradients. */
+	int gradientCount;
+
+	/**
+	 * Allocate buffer with every column starting from the network's current node outputs.
+	 * @param nodeOutputs current node outputs.
+	 * @param numNapses number of napses.
+	 * @param capacity maximum number of instances per batch.
+	 */
+	BatchBuffer(double[] nodeOutputs, int numNapses, int capacity) {
+		this.capacity = capacity;
+		this.outputs = new double[nodeOutputs.length * capacity];
+		this.errors = new double[nodeOutputs.length * capacity];
+		this.gradients = new double[numNapses];
+		for (int ixNode = 0 ; ixNode < nodeOutputs.length ; ixNode++) {
+			for (int ixColumn = 0 ; ixColumn < capacity ; ixColumn++) {
+				outputs[ixNode * capacity + ixColumn] = nodeOutputs[ixNode];
+			}
+		}
+	}
+
+	/**
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the accumulated weight gradients.
+	 */
+	public double[] getGradients() {
+		return gradients;
+	}
+
+	/**
+	 * @return the number of instances accumulated into gradients.
+	 */
+	public int getGradientCount() {
+		return gradientCount;
+	}
+
+	/** Clear the accumulated weight gradients. */
+	public void clearGradients() {
+		Arrays.fill(gradients, 0.0);
+		gradientCount = 0;
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This reads & writes datasets in a compact binary format, loaded by mapping the file into memory so its values are
+ * used in place, without parsing or copying, and shared through the page cache by every process mapping it.
+ * The format is little-endian: a HEADER_SIZE byte header of magic "NNDS", format version, value type (DOUBLE or
+ * FLOAT), number of rows, inputs per row & outputs per row as ints, then zero padding; then the values, row-major,
+ * each row its inputs then outputs. Double files map as is; float files take half the space and are widened to doubles
+ * on load.
+ * @author Joseph Sackett
+ */
+public class BinaryDataset {
+	/** File magic, "NNDS" as little-endian bytes. */
+	public static final int MAGIC = 0x53444E4E;
+
+	/** Format version. */
+	public static final int VERSION = 1;
+
+	/** Header size in bytes, keeping values 8 byte aligned. */
+	public static final int HEADER_SIZE = 32;
+
+	/** Value type of 8 byte doubles. */
+	public static final int DOUBLE = 0;
+
+	/** Value type of 4 byte floats. */
+	public static final int FLOAT = 1;
+
+	/** Values written per buffer. */
+	private static final int WRITE_BUFFER_VALUES = 8192;
+
+	/** Default constructor, reading & writing are static. */
+	private BinaryDataset() {
+	}
+
+	/**
+	 * @param fileName data file name.
+	 * @return true if the file starts with a binary dataset header.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static boolean isBinary(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining() && channel.read(magic) >= 0) {
+			}
+			return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Load a binary dataset by mapping it into memory.
+	 * @param fileName data file name.
+	 * @param numInputs expected number of input values per row.
+	 * @param numOutputs expected number of output values per row.
+	 * @return dataset, of mapped values for double files.
+	 * @throws IOException if the file cannot be read, is not a binary dataset of this version, is truncated, or exceeds 2 GB.
+	 * @throws IllegalArgumentException if the file's inputs & outputs per row differ from those expected.
+	 */
+	public static Dataset load(String fileName, int numInputs, int numOutputs) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException(fileName + " is too short for a binary dataset header");
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(fileName + " exceeds 2 GB, too large to map whole");
+			}
+			ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+			Header header = readHeader(bytes, fileName);
+			if (header.numInputs != numInputs || header.numOutputs != numOutputs) {
+				throw new IllegalArgumentException(fileName + " holds " + header.numInputs + " inputs & " + header.numOutputs + " outputs per row, expected "
+													+ numInputs + " & " + numOutputs);
+			}
+			long dataSize = (long)header.numRows * (numInputs + numOutputs) * header.getValueSize();
+			if (HEADER_SIZE + dataSize > size) {
+				throw new IOException(fileName + " is truncated, " + header.numRows + " rows need " + (HEADER_SIZE + dataSize) + " bytes, it has " + size);
+			}
+
+			bytes.position(HEADER_SIZE);
+			ByteBuffer data = bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+			data.limit((int)dataSize);
+			DoubleBuffer values;
+			if (header.valueType == DOUBLE) {
+				values = data.asDoubleBuffer();
+			}
+			else {
+				// Widen floats to doubles.
+				FloatBuffer floats = data.asFloatBuffer();
+				double[] doubles = new double[floats.limit()];
+				for (int ix = 0 ; ix < doubles.length ; ix++) {
+					doubles[ix] = floats.get(ix);
+				}
+				values = DoubleBuffer.wrap(doubles);
+			}
+			return new Dataset(values, header.numRows, numInputs, numOutputs);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write a dataset in binary format.
+	 * @param dataset dataset to write.
+	 * @param fileName data file name, replaced if it exists.
+	 * @param valueType DOUBLE, or FLOAT to halve the file, rounding values to float.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void write(Dataset dataset, String fileName, int valueType) throws IOException {
+		if (valueType != DOUBLE && valueType != FLOAT) {
+			throw new IllegalArgumentException("Unknown value type: " + valueType);
+		}
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(valueType).putInt(dataset.getNumRows()).putInt(dataset.getNumInputs()).putInt(dataset.getNumOutputs());
+			header.clear();
+			writeFully(channel, header);
+
+			// Write values a buffer at a time.
+			ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_VALUES * ((valueType == DOUBLE) ? 8 : 4)).order(ByteOrder.LITTLE_ENDIAN);
+			DoubleBuffer values = dataset.values.duplicate();
+			values.position(0).limit(dataset.getNumRows() * dataset.getNumColumns());
+			while (values.hasRemaining()) {
+				buffer.clear();
+				int numValues = Math.min(WRITE_BUFFER_VALUES, values.remaining());
+				for (int ix = 0 ; ix < numValues ; ix++) {
+					if (valueType == DOUBLE) {
+						buffer.putDouble(values.get());
+					}
+					else {
+						buffer.putFloat((float)values.get());
+					}
+				}
+				buffer.flip();
+				writeFully(channel, buffer);
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @param channel file channel.
+	 * @param buffer bytes to write, all of them.
+	 * @throws IOException if the file cannot be written.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Read & check a header.
+	 * @param bytes file bytes, little-endian, from 0.
+	 * @param fileName data file name, for errors.
+	 * @return header.
+	 * @throws IOException if not a binary dataset header of this version.
+	 */
+	static Header readHeader(ByteBuffer bytes, String fileName) throws IOException {
+		if (bytes.getInt(0) != MAGIC) {
+			throw new IOException(fileName + " is not a binary dataset");
+		}
+		if (bytes.getInt(4) != VERSION) {
+			throw new IOException(fileName + " is binary dataset version " + bytes.getInt(4) + ", expected " + VERSION);
+		}
+		Header header = new Header();
+		header.valueType = bytes.getInt(8);
+		header.numRows = bytes.getInt(12);
+		header.numInputs = bytes.getInt(16);
+		header.numOutputs = bytes.getInt(20);
+		if ((header.valueType != DOUBLE && header.valueType != FLOAT) || header.numRows < 0 || header.numInputs < 0 || header.numOutputs < 0) {
+			throw new IOException(fileName + " has an invalid binary dataset header");
+		}
+		return header;
+	}
+
+	/**
+	 * This is the header of a binary dataset file.
+	 */
+	static class Header {
+		/** Value type, DOUBLE or FLOAT. */
+		int valueType;
+
+		/** Number of rows. */
+		int numRows;
+
+		/** Number of input values per row. */
+		int numInputs;
+
+		/** Number of output values per row. */
+		int numOutputs;
+
+		/**
+		 * @return the size of one value in bytes.
+		 */
+		int getValueSize() {
+			return (valueType == DOUBLE) ? 8 : 4;
+		}
+	}
+
+}
@@ -0,0 +1,340 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This is a saved training state, for resuming training in a later run: the flat neural network (topology, output
+ * factors, weights & node state), backpropagation optimizer state, and simulated annealing temperature, weight factor
+ * & adaptive schedule state. Its file is little-endian: magic "NNCK", format version & trainer (BP or SA) as ints,
+ * then the network as FlatNeuralNetwork.writeTo() writes it, the optimizer name, update steps & per-napse state arrays,
+ * and the annealing state. Arrays are written & read in bulk, so loading builds the flat arrays directly, without a
+ * node or napse object. Files are written under a temporary name then renamed, so a failed save leaves the last one.
+ * @author Joseph Sackett
+ */
+public class Checkpoint {
+	/** File magic, "NNCK" as little-endian bytes. */
+	public static final int MAGIC = 0x4B434E4E;
+
+	/** Format version. */
+	public static final int VERSION = 1;
+
+	/** Trainer of backpropagation checkpoints. */
+	public static final int BP = 0;
+
+	/** Trainer of simulated annealing checkpoints. */
+	public static final int SA = 1;
+
+	/** Trainer, BP or SA. */
+	private int trainer;
+
+	/** Trained network. */
+	private FlatNeuralNetwork network;
+
+	/** Optimizer name. */
+	private String optimizerName;
+
+	/** Optimizer update steps. */
+	private int optimizerSteps;
+
+	/** Optimizer per-napse state arrays. */
+	private double[][] optimizerState;
+
+	/** Annealing temperature reached. */
+	private double temp;
+
+	/** Annealing weight factor reached. */
+	private double weightFactor;
+
+	/** Adaptive schedule state, empty for linear cooling. */
+	private double[] scheduleState;
+
+	/**
+	 * Capture a backpropagation training state. The network & optimizer are written as they are when saved.
+	 * @param network trained network, holding its optimizer.
+	 */
+	public Checkpoint(FlatNeuralNetwork network) {
+		this(BP, network, network.getOptimizer(), 0.0, 0.0, null);
+	}
+
+	/**
+	 * Capture a simulated annealing training state. The network is written as it is when saved.
+	 * @param network trained network.
+	 * @param temp temperature reached.
+	 * @param weightFactor weight factor reached.
+	 * @param scheduleState adaptive schedule state, or null for linear cooling.
+	 */
+	public Checkpoint(FlatNeuralNetwork network, double temp, double weightFactor, double[] scheduleState) {
+		this(SA, network, new Optimizer.Sgd(), temp, weightFactor, scheduleState);
+	}
+
+	/**
+	 * Constructor of all fields.
+	 */
+	private Checkpoint(int trainer, FlatNeuralNetwork network, Optimizer optimizer, double temp, double weightFactor, double[] scheduleState) {
+		this.trainer = trainer;
+		this.network = network;
+		this.optimizerName = optimizer.getName();
+		this.optimizerSteps = optimizer.getNumSteps();
+		this.optimizerState = optimizer.getState();
+		this.temp = temp;
+		this.weightFactor = weightFactor;
+		this.scheduleState = (scheduleState != null) ? scheduleState : new double[0];
+	}
+
+	/**
+	 * Constructor used by read().
+	 */
+	private Checkpoint() {
+	}
+
+	/**
+	 * @return the trainer, BP or SA.
+	 */
+	public int getTrainer() {
+		return trainer;
+	}
+
+	/**
+	 * @return the trained network, with default optimizer.
+	 */
+	public FlatNeuralNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * @return the optimizer name.
+	 */
+	public String getOptimizerName() {
+		return optimizerName;
+	}
+
+	/**
+	 * @return the annealing temperature reached.
+	 */
+	public double getTemp() {
+		return temp;
+	}
+
+	/**
+	 * @return the annealing weight factor reached.
+	 */
+	public double getWeightFactor() {
+		return weightFactor;
+	}
+
+	/**
+	 * @return the adaptive schedule state, or null for linear cooling.
+	 */
+	public double[] getScheduleState() {
+		return (scheduleState.length > 0) ? scheduleState : null;
+	}
+
+	/**
+	 * Copy the saved optimizer state into an optimizer of the same kind, for the same napses.
+	 * @param optimizer optimizer to restore.
+	 * @return false, leaving optimizer unchanged, if it differs in kind or size from the one saved.
+	 */
+	public boolean restoreOptimizer(Optimizer optimizer) {
+		double[][] state = optimizer.getState();
+		if (!optimizer.getName().equals(optimizerName) || state.length != optimizerState.length) {
+			return false;
+		}
+		for (int ixState = 0 ; ixState < state.length ; ixState++) {
+			if (state[ixState].length != optimizerState[ixState].length) {
+				return false;
+			}
+		}
+		for (int ixState = 0 ; ixState < state.length ; ixState++) {
+			System.arraycopy(optimizerState[ixState], 0, state[ixState], 0, state[ixState].length);
+		}
+		optimizer.setNumSteps(optimizerSteps);
+		return true;
+	}
+
+	/**
+	 * Write the checkpoint file, replacing any before it once written.
+	 * @param fileName checkpoint file name.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public void write(String fileName) throws IOException {
+		byte[] name = optimizerName.getBytes(StandardCharsets.US_ASCII);
+		long size = 4 * 4 + network.getSerializedSize() + 4 + name.length + 4 + 4 + 2 * 8 + 4 + 8L * scheduleState.length;
+		for (double[] state : optimizerState) {
+			size += 4 + 8L * state.length;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Checkpoint of " + size + " bytes exceeds 2 GB");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(trainer).putInt(0);
+		network.writeTo(buffer);
+		buffer.putInt(name.length).put(name).putInt(optimizerSteps).putInt(optimizerState.length);
+		for (double[] state : optimizerState) {
+			buffer.putInt(state.length);
+			putDoubles(buffer, state);
+		}
+		buffer.putDouble(temp).putDouble(weightFactor).putInt(scheduleState.length);
+		putDoubles(buffer, scheduleState);
+		buffer.flip();
+
+		// Write under temporary name, then rename over any previous checkpoint.
+		Path path = Paths.get(fileName).toAbsolutePath();
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read a checkpoint file in one bulk read.
+	 * @param fileName checkpoint file name.
+	 * @return checkpoint.
+	 * @throws IOException if the file cannot be read, or is not a valid checkpoint of this version.
+	 */
+	public static Checkpoint read(String fileName) throws IOException {
+		ByteBuffer buffer;
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(fileName + " exceeds 2 GB");
+			}
+			buffer = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			}
+			buffer.flip();
+		}
+		finally {
+			channel.close();
+		}
+
+		try {
+			if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+				throw new IOException("not a checkpoint");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("checkpoint version " + version + ", expected " + VERSION);
+			}
+			Checkpoint checkpoint = new Checkpoint();
+			checkpoint.trainer = buffer.getInt();
+			buffer.getInt();
+			checkpoint.network = FlatNeuralNetwork.readFrom(buffer);
+			byte[] name = new byte[checkLength(buffer.getInt(), 1, buffer)];
+			buffer.get(name);
+			checkpoint.optimizerName = new String(name, StandardCharsets.US_ASCII);
+			checkpoint.optimizerSteps = buffer.getInt();
+			checkpoint.optimizerState = new double[checkLength(buffer.getInt(), 4, buffer)][];
+			for (int ixState = 0 ; ixState < checkpoint.optimizerState.length ; ixState++) {
+				checkpoint.optimizerState[ixState] = getDoubles(buffer, checkLength(buffer.getInt(), 8, buffer));
+			}
+			checkpoint.temp = buffer.getDouble();
+			checkpoint.weightFactor = buffer.getDouble();
+			checkpoint.scheduleState = getDoubles(buffer, checkLength(buffer.getInt(), 8, buffer));
+			return checkpoint;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException(fileName + ": truncated");
+		}
+		catch (IOException e) {
+			throw new IOException(fileName + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param length length read.
+	 * @param elementSize bytes per element.
+	 * @param buffer buffer holding the elements.
+	 * @return length, if the buffer holds that many elements.
+	 * @throws BufferUnderflowException if not.
+	 */
+	private static int checkLength(int length, int elementSize, ByteBuffer buffer) {
+		if (length < 0 || (long)length * elementSize > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		return length;
+	}
+
+	/**
+	 * Put doubles in bulk, advancing the buffer position.
+	 * @param buffer buffer, little-endian.
+	 * @param values values to put.
+	 */
+	static void putDoubles(ByteBuffer buffer, double[] values) {
+		buffer.asDoubleBuffer().put(values);
+		buffer.position(buffer.position() + 8 * values.length);
+	}
+
+	/**
+	 * Get doubles in bulk, advancing the buffer position.
+	 * @param buffer buffer, little-endian.
+	 * @param length number of values.
+	 * @return values.
+	 */
+	static double[] getDoubles(ByteBuffer buffer, int length) {
+		double[] values = new double[length];
+		buffer.asDoubleBuffer().get(values);
+		buffer.position(buffer.position() + 8 * length);
+		return values;
+	}
+
+	/**
+	 * Put ints in bulk, advancing the buffer position.
+	 * @param buffer buffer, little-endian.
+	 * @param values values to put.
+	 */
+	static void putInts(ByteBuffer buffer, int[] values) {
+		buffer.asIntBuffer().put(values);
+		buffer.position(buffer.position() + 4 * values.length);
+	}
+
+	/**
+	 * Get ints in bulk, advancing the buffer position.
+	 * @param buffer buffer, little-endian.
+	 * @param length number of values.
+	 * @return values.
+	 */
+	static int[] getInts(ByteBuffer buffer, int length) {
+		int[] values = new int[length];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + 4 * length);
+		return values;
+	}
+
+}
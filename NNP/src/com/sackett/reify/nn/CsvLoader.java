@@ -0,0 +1,351 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This loads a CSV data file of one instance per line, its input values then target output values, into a Dataset.
+ * The file is mapped into memory and parsed straight from its bytes, without lines, strings or boxed values: a first
+ * pass counts the rows, so all values go into one array allocated up front, then a second pass parses each cell with
+ * a decimal parser that builds plain numbers (up to 15 digits & 10^22) exactly as Double.parseDouble does, passing
+ * only other cells to it. Files of at least PARALLEL_MIN_BYTES are split at line breaks into one chunk per processor,
+ * counted & parsed in parallel, each chunk filling its own rows. Every line must hold the expected number of columns;
+ * blank lines are skipped.
+ * @author Joseph Sackett
+ */
+public class CsvLoader {
+	/** Smallest file parsed in parallel chunks. */
+	public static final int PARALLEL_MIN_BYTES = 1 << 20;
+
+	/** Powers of ten exactly representable as doubles. */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/** Most significant digits whose value is exact in a double. */
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	/** Default constructor, loading is static. */
+	private CsvLoader() {
+	}
+
+	/**
+	 * Load a CSV data file.
+	 * @param fileName data file name.
+	 * @param numInputs number of input values per line.
+	 * @param numOutputs number of output values per line, following the inputs.
+	 * @return dataset of the file's rows.
+	 * @throws IOException if the file cannot be read, or exceeds 2 GB.
+	 * @throws IllegalArgumentException for lines of the wrong number of columns, cells that are not numbers, or no rows.
+	 */
+	public static Dataset load(String fileName, int numInputs, int numOutputs) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(fileName + " exceeds 2 GB, too large to map whole");
+			}
+			ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int numChunks = (size >= PARALLEL_MIN_BYTES) ? Runtime.getRuntime().availableProcessors() : 1;
+			Dataset dataset = parse(bytes, numInputs, numOutputs, numChunks);
+			if (dataset.getNumRows() == 0) {
+				throw new IllegalArgumentException(fileName + " holds no rows");
+			}
+			return dataset;
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Parse CSV bytes into a dataset.
+	 * @param bytes CSV bytes, from 0 to limit.
+	 * @param numInputs number of input values per line.
+	 * @param numOutputs number of output values per line, following the inputs.
+	 * @param numChunks number of chunks to count & parse in parallel, 1 for serial.
+	 * @return dataset of the rows.
+	 * @throws IllegalArgumentException for lines of the wrong number of columns or cells that are not numbers.
+	 */
+	public static Dataset parse(ByteBuffer bytes, int numInputs, int numOutputs, int numChunks) {
+		int size = bytes.limit();
+		int numColumns = numInputs + numOutputs;
+		// Split into chunks, each starting at a line.
+		List<ChunkTask> tasks = new ArrayList<ChunkTask>(numChunks);
+		int chunkFrom = 0;
+		for (int ixChunk = 1 ; ixChunk <= numChunks ; ixChunk++) {
+			int chunkTo = (ixChunk == numChunks) ? size : Math.max(chunkFrom, (int)((long)size * ixChunk / numChunks));
+			while (chunkTo < size && chunkTo > 0 && bytes.get(chunkTo - 1) != '\n') {
+				chunkTo++;
+			}
+			if (chunkFrom < chunkTo) {
+				tasks.add(new ChunkTask(bytes, chunkFrom, chunkTo));
+			}
+			chunkFrom = chunkTo;
+		}
+
+		// Count rows & lines of each chunk, then place chunks' rows in file order.
+		run(tasks);
+		long numValues = 0;
+		int firstLine = 1;
+		for (ChunkTask task : tasks) {
+			task.ixFirstValue = (int)numValues;
+			task.firstLine = firstLine;
+			numValues += (long)task.numRows * numColumns;
+			firstLine += task.numLines;
+		}
+		if (numValues > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Data holds " + numValues + " values, more than one array can");
+		}
+
+		// Parse each chunk into its rows of one array.
+		double[] values = new double[(int)numValues];
+		for (ChunkTask task : tasks) {
+			task.values = values;
+			task.numColumns = numColumns;
+		}
+		run(tasks);
+		return new Dataset(DoubleBuffer.wrap(values), (int)(numValues / Math.max(1, numColumns)), numInputs, numOutputs);
+	}
+
+	/**
+	 * Run chunk tasks, in parallel when several, rethrowing the first chunk's failure.
+	 * @param tasks chunk tasks.
+	 */
+	private static void run(final List<ChunkTask> tasks) {
+		if (tasks.size() > 1) {
+			ForkJoinPool pool = new ForkJoinPool(tasks.size());
+			try {
+				pool.invoke(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						ForkJoinTask.invokeAll(tasks);
+					}
+				});
+			}
+			finally {
+				pool.shutdown();
+			}
+		}
+		else {
+			for (ChunkTask task : tasks) {
+				task.compute();
+			}
+		}
+		for (ChunkTask task : tasks) {
+			if (task.failure != null) {
+				throw task.failure;
+			}
+			task.reinitialize();
+		}
+	}
+
+	/**
+	 * Parse the rows of whole lines into consecutive values.
+	 * @param bytes CSV bytes.
+	 * @param from index of first line's first byte.
+	 * @param to index after last line's line break, or end of bytes.
+	 * @param line number of first line, for errors.
+	 * @param values array to fill.
+	 * @param ixValue index of first row's first value.
+	 * @param numColumns number of values per line.
+	 * @return number of rows parsed, excluding blank lines.
+	 * @throws IllegalArgumentException for lines of the wrong number of columns or cells that are not numbers.
+	 */
+	static int parseRows(ByteBuffer bytes, int from, int to, int line, double[] values, int ixValue, int numColumns) {
+		int numRows = 0;
+		int lineFrom = from;
+		while (lineFrom < to) {
+			int lineTo = lineFrom;
+			while (lineTo < to && bytes.get(lineTo) != '\n') {
+				lineTo++;
+			}
+			// Exclude carriage return of CRLF line breaks.
+			int end = (lineTo > lineFrom && bytes.get(lineTo - 1) == '\r') ? lineTo - 1 : lineTo;
+			if (end > lineFrom) {
+				int column = 0;
+				int cellFrom = lineFrom;
+				for (int ix = lineFrom ; ix <= end ; ix++) {
+					if (ix == end || bytes.get(ix) == ',') {
+						if (column < numColumns) {
+							values[ixValue + column] = parseDouble(bytes, cellFrom, ix, line, column);
+						}
+						column++;
+						cellFrom = ix + 1;
+					}
+				}
+				if (column != numColumns) {
+					throw new IllegalArgumentException("Line " + line + " has " + column + " columns, expected " + numColumns);
+				}
+				ixValue += numColumns;
+				numRows++;
+			}
+			line++;
+			lineFrom = lineTo + 1;
+		}
+		return numRows;
+	}
+
+	/**
+	 * Parse a decimal number, building it directly when its digits & power of ten are exact doubles, so one division
+	 * or multiplication rounds it correctly, otherwise with Double.parseDouble.
+	 * @param bytes CSV bytes.
+	 * @param from index of cell's first byte.
+	 * @param to index after cell's last byte.
+	 * @param line line number, for errors.
+	 * @param column column index, for errors.
+	 * @return value.
+	 * @throws IllegalArgumentException if the cell is not a number.
+	 */
+	static double parseDouble(ByteBuffer bytes, int from, int to, int line, int column) {
+		// Trim spaces.
+		while (from < to && bytes.get(from) == ' ') {
+			from++;
+		}
+		while (to > from && bytes.get(to - 1) == ' ') {
+			to--;
+		}
+		int ix = from;
+		boolean negative = false;
+		if (ix < to && (bytes.get(ix) == '-' || bytes.get(ix) == '+')) {
+			negative = bytes.get(ix) == '-';
+			ix++;
+		}
+		// Significant digits, their count & power of ten.
+		long mantissa = 0;
+		int numDigits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		boolean fraction = false;
+		for ( ; ix < to ; ix++) {
+			int b = bytes.get(ix);
+			if (b == '.' && !fraction) {
+				fraction = true;
+				continue;
+			}
+			if (b < '0' || b > '9') {
+				break;
+			}
+			anyDigits = true;
+			// Skip leading zeros; stop building beyond 18 digits, which falls back to Double.parseDouble anyway.
+			if (mantissa != 0 || b != '0') {
+				if (++numDigits <= 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					exponent -= fraction ? 1 : 0;
+				}
+			}
+			else {
+				exponent -= fraction ? 1 : 0;
+			}
+		}
+		if (anyDigits && ix < to && (bytes.get(ix) == 'e' || bytes.get(ix) == 'E')) {
+			ix++;
+			boolean negativeExponent = false;
+			if (ix < to && (bytes.get(ix) == '-' || bytes.get(ix) == '+')) {
+				negativeExponent = bytes.get(ix) == '-';
+				ix++;
+			}
+			int exponentValue = 0;
+			int exponentFrom = ix;
+			for ( ; ix < to && bytes.get(ix) >= '0' && bytes.get(ix) <= '9' ; ix++) {
+				exponentValue = Math.min(exponentValue * 10 + (bytes.get(ix) - '0'), 100000);
+			}
+			anyDigits = ix > exponentFrom;
+			exponent += negativeExponent ? -exponentValue : exponentValue;
+		}
+
+		if (anyDigits && ix == to && numDigits <= MAX_EXACT_DIGITS && exponent >= -22 && exponent <= 22) {
+			double value = (exponent < 0) ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+
+		// Long, very large or small, or unusual (NaN, Infinity, hexadecimal) numbers, or not numbers.
+		byte[] cell = new byte[to - from];
+		for (int ixCell = 0 ; ixCell < cell.length ; ixCell++) {
+			cell[ixCell] = bytes.get(from + ixCell);
+		}
+		String text = new String(cell, StandardCharsets.US_ASCII);
+		try {
+			return Double.parseDouble(text);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Line " + line + " column " + (column + 1) + " is not a number: '" + text + "'");
+		}
+	}
+
+	/** Counts, then parses, the lines of one chunk. */
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private ByteBuffer bytes;
+		private int from;
+		private int to;
+		private int numRows;
+		private int numLines;
+		private int firstLine;
+		private int ixFirstValue;
+		private double[] values;
+		private int numColumns;
+		private IllegalArgumentException failure;
+
+		ChunkTask(ByteBuffer bytes, int from, int to) {
+			this.bytes = bytes;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (values == null) {
+				// Count lines, and rows excluding blank lines.
+				int lineFrom = from;
+				for (int ix = from ; ix < to ; ix++) {
+					if (bytes.get(ix) == '\n') {
+						numRows += (ix > lineFrom && !(ix == lineFrom + 1 && bytes.get(lineFrom) == '\r')) ? 1 : 0;
+						numLines++;
+						lineFrom = ix + 1;
+					}
+				}
+				numRows += (to > lineFrom && !(to == lineFrom + 1 && bytes.get(lineFrom) == '\r')) ? 1 : 0;
+			}
+			else {
+				try {
+					parseRows(bytes, from, to, firstLine, values, ixFirstValue, numColumns);
+				}
+				catch (IllegalArgumentException e) {
+					failure = e;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * This holds training instances as one contiguous row-major block of values, each row its input values followed by
+ * its target output values. The block is a DoubleBuffer, so may wrap a heap array or a file mapped into memory.
+ * @author Joseph Sackett
+ */
+public class Dataset {
+	/** Values of all rows, row-major. */
+	final DoubleBuffer values;
+
+	/** Number of rows. */
+	private int numRows;
+
+	/** Number of input values per row. */
+	private int numInputs;
+
+	/** Number of output values per row. */
+	private int numOutputs;
+
+	/**
+	 * @param values values of all rows, row-major, from index 0.
+	 * @param numRows number of rows.
+	 * @param numInputs number of input values per row.
+	 * @param numOutputs number of output values per row.
+	 */
+	public Dataset(DoubleBuffer values, int numRows, int numInputs, int numOutputs) {
+		if ((long)numRows * (numInputs + numOutputs) > values.limit()) {
+			throw new IllegalArgumentException("Dataset of " + numRows + " rows of " + (numInputs + numOutputs) + " columns exceeds its " + values.limit() + " values");
+		}
+		this.values = values;
+		this.numRows = numRows;
+		this.numInputs = numInputs;
+		this.numOutputs = numOutputs;
+	}
+
+	/**
+	 * @return the number of rows.
+	 */
+	public int getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * @return the number of input values per row.
+	 */
+	public int getNumInputs() {
+		return numInputs;
+	}
+
+	/**
+	 * @return the number of output values per row.
+	 */
+	public int getNumOutputs() {
+		return numOutputs;
+	}
+
+	/**
+	 * @return the number of values per row.
+	 */
+	public int getNumColumns() {
+		return numInputs + numOutputs;
+	}
+
+	/**
+	 * @param ixRow row index.
+	 * @param ixColumn column index, inputs then outputs.
+	 * @return value.
+	 */
+	public double getValue(int ixRow, int ixColumn) {
+		return values.get(ixRow * getNumColumns() + ixColumn);
+	}
+
+	/**
+	 * Copy a row's input values, reading the values in place without allocating.
+	 * @param ixRow row index.
+	 * @param inputs array to fill, of at least numInputs.
+	 */
+	public void getInputs(int ixRow, double[] inputs) {
+		int base = ixRow * getNumColumns();
+		for (int ix = 0 ; ix < numInputs ; ix++) {
+			inputs[ix] = values.get(base + ix);
+		}
+	}
+
+	/**
+	 * Copy a row's output values, reading the values in place without allocating.
+	 * @param ixRow row index.
+	 * @param outputs array to fill, of at least numOutputs.
+	 */
+	public void getOutputs(int ixRow, double[] outputs) {
+		int base = ixRow * getNumColumns() + numInputs;
+		for (int ix = 0 ; ix < numOutputs ; ix++) {
+			outputs[ix] = values.get(base + ix);
+		}
+	}
+
+	/**
+	 * @return new array of each row's input values, as the trainers that do not read rows in place take them.
+	 */
+	public double[][] getInputRows() {
+		double[][] inputRows = new double[numRows][numInputs];
+		for (int ixRow = 0 ; ixRow < numRows ; ixRow++) {
+			getInputs(ixRow, inputRows[ixRow]);
+		}
+		return inputRows;
+	}
+
+	/**
+	 * @return new array of each row's output values, as the trainers that do not read rows in place take them.
+	 */
+	public double[][] getOutputRows() {
+		double[][] outputRows = new double[numRows][numOutputs];
+		for (int ixRow = 0 ; ixRow < numRows ; ixRow++) {
+			getOutputs(ixRow, outputRows[ixRow]);
+		}
+		return outputRows;
+	}
+
+	@Override
+	public String toString() {
+		return numRows + " rows of " + numInputs + " inputs & " + numOutputs + " outputs";
+	}
+
+}
@@ -0,0 +1,506 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This streams a data file of any size, CSV or binary dataset, in chunks of a fixed number of rows, so training holds
+ * only two chunks in memory however large the file. While one chunk trains, a background thread reads and decodes the
+ * next into the other. Chunks are handed out epoch after epoch without end, each epoch visiting every chunk once, in
+ * file order or shuffled afresh each epoch. Binary chunks are located by arithmetic; CSV chunks by an index of the
+ * byte offset & line number starting each chunk, built by one scan of the file on opening. CSV cells are checked as
+ * each chunk is parsed, rather than up front.
+ * @author Joseph Sackett
+ */
+public class DatasetStream implements Closeable {
+	/** Bytes read per block while indexing CSV chunks. */
+	private static final int INDEX_BLOCK_SIZE = 1 << 20;
+
+	/** Data file. */
+	private FileChannel channel;
+
+	/** Binary dataset header, null for CSV. */
+	private BinaryDataset.Header header;
+
+	/** Number of input values per row. */
+	private int numInputs;
+
+	/** Number of output values per row. */
+	private int numOutputs;
+
+	/** Number of rows per chunk, fewer in the last. */
+	private int chunkRows;
+
+	/** Number of rows in the file. */
+	private int numRows;
+
+	/** Number of chunks. */
+	private int numChunks;
+
+	/** File offset starting each chunk, with end marker. */
+	private long[] chunkOffsets;
+
+	/** Line number starting each CSV chunk, for errors. */
+	private int[] chunkLines;
+
+	/** Flag to shuffle chunk order each epoch. */
+	private boolean shuffle;
+
+	/** Chunk order of current epoch. */
+	private int[] chunkOrder;
+
+	/** Position in chunk order of next chunk to hand out. */
+	private int ixOrder;
+
+	/** Two chunks, one training while the other fills. */
+	private Chunk[] chunks;
+
+	/** Index of chunk filling next. */
+	private int ixFill;
+
+	/** Chunk being read in the background, null before the first. */
+	private Future<Chunk> pending;
+
+	/** Chunk file bytes, used by the reading thread. */
+	private ByteBuffer readBuffer;
+
+	/** Parsed CSV values of a chunk, used by the reading thread. */
+	private double[] parseValues;
+
+	/** Background reading thread. */
+	private ExecutorService reader;
+
+	/** Nanoseconds spent waiting for chunks to be read. */
+	private long waitTime;
+
+	/**
+	 * Open a data file to stream, indexing its chunks.
+	 * @param fileName data file name, CSV or binary dataset.
+	 * @param numInputs number of input values per row.
+	 * @param numOutputs number of output values per row.
+	 * @param chunkRows number of rows per chunk.
+	 * @throws IOException if the file cannot be read, or is an invalid binary dataset.
+	 * @throws IllegalArgumentException for a binary dataset of other columns, or no rows.
+	 */
+	public DatasetStream(String fileName, int numInputs, int numOutputs, int chunkRows) throws IOException {
+		if (chunkRows < 1) {
+			throw new IllegalArgumentException("Chunk rows must be positive: " + chunkRows);
+		}
+		this.numInputs = numInputs;
+		this.numOutputs = numOutputs;
+		this.chunkRows = chunkRows;
+		boolean binary = BinaryDataset.isBinary(fileName);
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			if (binary) {
+				indexBinary(fileName);
+			}
+			else {
+				indexCsv();
+			}
+		}
+		catch (IOException | IllegalArgumentException e) {
+			channel.close();
+			throw e;
+		}
+		if (numRows == 0) {
+			channel.close();
+			throw new IllegalArgumentException(fileName + " holds no rows");
+		}
+
+		int numColumns = numInputs + numOutputs;
+		long maxChunkBytes = 0;
+		for (int ixChunk = 0 ; ixChunk < numChunks ; ixChunk++) {
+			maxChunkBytes = Math.max(maxChunkBytes, chunkOffsets[ixChunk + 1] - chunkOffsets[ixChunk]);
+		}
+		if (maxChunkBytes > Integer.MAX_VALUE || (long)chunkRows * numColumns > Integer.MAX_VALUE) {
+			channel.close();
+			throw new IllegalArgumentException("Chunks of " + chunkRows + " rows are too large to read, use fewer rows");
+		}
+		readBuffer = ByteBuffer.allocate((int)maxChunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+		parseValues = (header == null) ? new double[chunkRows * numColumns] : null;
+		chunks = new Chunk[] { new Chunk(Math.min(chunkRows, numRows), numInputs, numOutputs), new Chunk(Math.min(chunkRows, numRows), numInputs, numOutputs) };
+		chunkOrder = new int[numChunks];
+		for (int ixChunk = 0 ; ixChunk < numChunks ; ixChunk++) {
+			chunkOrder[ixChunk] = ixChunk;
+		}
+		reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DatasetStream reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Locate binary dataset chunks from its header.
+	 * @param fileName data file name, for errors.
+	 */
+	private void indexBinary(String fileName) throws IOException {
+		ByteBuffer headerBytes = ByteBuffer.allocate(BinaryDataset.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(headerBytes, 0);
+		header = BinaryDataset.readHeader(headerBytes, fileName);
+		if (header.numInputs != numInputs || header.numOutputs != numOutputs) {
+			throw new IllegalArgumentException(fileName + " holds " + header.numInputs + " inputs & " + header.numOutputs + " outputs per row, expected "
+												+ numInputs + " & " + numOutputs);
+		}
+		long rowBytes = (long)(numInputs + numOutputs) * header.getValueSize();
+		if (BinaryDataset.HEADER_SIZE + header.numRows * rowBytes > channel.size()) {
+			throw new IOException(fileName + " is truncated, " + header.numRows + " rows need " + (BinaryDataset.HEADER_SIZE + header.numRows * rowBytes)
+									+ " bytes, it has " + channel.size());
+		}
+		numRows = header.numRows;
+		numChunks = (int)(((long)numRows + chunkRows - 1) / chunkRows);
+		chunkOffsets = new long[numChunks + 1];
+		for (int ixChunk = 0 ; ixChunk <= numChunks ; ixChunk++) {
+			chunkOffsets[ixChunk] = BinaryDataset.HEADER_SIZE + Math.min((long)ixChunk * chunkRows, numRows) * rowBytes;
+		}
+	}
+
+	/**
+	 * Index CSV chunks by scanning the file for line breaks, counting rows (non-blank lines) as CsvLoader does.
+	 */
+	private void indexCsv() throws IOException {
+		long size = channel.size();
+		chunkOffsets = new long[16];
+		chunkLines = new int[16];
+		chunkLines[0] = 1;
+		numChunks = 0;
+		long rows = 0;
+		int line = 1;
+		// Bytes of the current line before its line break, and its first byte.
+		long lineBytes = 0;
+		int firstByte = 0;
+
+		ByteBuffer block = ByteBuffer.allocate(INDEX_BLOCK_SIZE);
+		for (long blockOffset = 0 ; blockOffset < size ; blockOffset += block.limit()) {
+			block.clear();
+			block.limit((int)Math.min(INDEX_BLOCK_SIZE, size - blockOffset));
+			readFully(block, blockOffset);
+			for (int ix = 0 ; ix < block.limit() ; ix++) {
+				byte b = block.get(ix);
+				if (b != '\n') {
+					firstByte = (lineBytes == 0) ? b : firstByte;
+					lineBytes++;
+					continue;
+				}
+				line++;
+				if (lineBytes > 1 || (lineBytes == 1 && firstByte != '\r')) {
+					rows++;
+					// Start a new chunk after the line break ending each chunk's last row.
+					if (rows % chunkRows == 0 && blockOffset + ix + 1 < size) {
+						addChunkStart(blockOffset + ix + 1, line);
+					}
+				}
+				lineBytes = 0;
+			}
+		}
+		if (lineBytes > 1 || (lineBytes == 1 && firstByte != '\r')) {
+			rows++;
+		}
+		if (rows > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Data holds " + rows + " rows, more than can be counted");
+		}
+		numRows = (int)rows;
+		// Drop a start followed only by blank lines.
+		numChunks = (int)((rows + chunkRows - 1) / chunkRows);
+		chunkOffsets = Arrays.copyOf(chunkOffsets, numChunks + 1);
+		chunkOffsets[numChunks] = size;
+		chunkLines = Arrays.copyOf(chunkLines, numChunks);
+	}
+
+	/**
+	 * Record the start of the CSV chunk following the last recorded.
+	 * @param offset file offset.
+	 * @param line line number.
+	 */
+	private void addChunkStart(long offset, int line) {
+		numChunks++;
+		if (numChunks + 1 >= chunkOffsets.length) {
+			chunkOffsets = Arrays.copyOf(chunkOffsets, chunkOffsets.length * 2);
+			chunkLines = Arrays.copyOf(chunkLines, chunkLines.length * 2);
+		}
+		chunkOffsets[numChunks] = offset;
+		chunkLines[numChunks] = line;
+	}
+
+	/**
+	 * @return the number of rows in the file.
+	 */
+	public int getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * @return the number of chunks per epoch.
+	 */
+	public int getNumChunks() {
+		return numChunks;
+	}
+
+	/**
+	 * @return the number of rows per chunk, fewer in the last.
+	 */
+	public int getChunkRows() {
+		return chunkRows;
+	}
+
+	/**
+	 * @param shuffle flag to shuffle chunk order each epoch, from the next epoch.
+	 */
+	public void setShuffle(boolean shuffle) {
+		this.shuffle = shuffle;
+	}
+
+	/**
+	 * @return the bytes held by chunks & read buffers.
+	 */
+	public long getMemoryBytes() {
+		long numValues = 2L * chunks[0].inputs.length * (numInputs + numOutputs) + ((parseValues != null) ? parseValues.length : 0);
+		return numValues * 8 + readBuffer.capacity();
+	}
+
+	/**
+	 * @return the nanoseconds spent waiting for chunks to be read, beyond the time reading overlapped training.
+	 */
+	public long getWaitTime() {
+		return waitTime;
+	}
+
+	/**
+	 * Hand out the next chunk, waiting for it to be read if need be, and start reading the one after. Its rows stay
+	 * valid until the following call. Each run of getNumChunks() calls covers every chunk once.
+	 * @return next chunk.
+	 * @throws IOException if the file cannot be read.
+	 * @throws IllegalArgumentException for CSV lines of the wrong number of columns or cells that are not numbers.
+	 */
+	public Chunk next() throws IOException {
+		if (pending == null) {
+			if (shuffle) {
+				shuffleOrder();
+			}
+			pending = read(chunkOrder[ixOrder]);
+		}
+		Chunk chunk;
+		long startTime = System.nanoTime();
+		try {
+			chunk = pending.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted reading chunk", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		finally {
+			waitTime += System.nanoTime() - startTime;
+		}
+
+		// Move to following chunk, starting a new epoch after the last, and read it into the other chunk.
+		if (++ixOrder == numChunks) {
+			ixOrder = 0;
+			if (shuffle) {
+				shuffleOrder();
+			}
+		}
+		pending = read(chunkOrder[ixOrder]);
+		return chunk;
+	}
+
+	/** Shuffle chunk order (Fisher-Yates). */
+	private void shuffleOrder() {
+		for (int ix = numChunks - 1 ; ix > 0 ; ix--) {
+			int ixSwap = (int)(Math.random() * (ix + 1));
+			int swap = chunkOrder[ix];
+			chunkOrder[ix] = chunkOrder[ixSwap];
+			chunkOrder[ixSwap] = swap;
+		}
+	}
+
+	/**
+	 * Start reading a chunk into the next free chunk.
+	 * @param ixChunk chunk index.
+	 * @return pending chunk.
+	 */
+	private Future<Chunk> read(final int ixChunk) {
+		final Chunk chunk = chunks[ixFill];
+		ixFill = 1 - ixFill;
+		return reader.submit(new Callable<Chunk>() {
+			@Override
+			public Chunk call() throws IOException {
+				readChunk(ixChunk, chunk);
+				return chunk;
+			}
+		});
+	}
+
+	/**
+	 * Read & decode a chunk's rows.
+	 * @param ixChunk chunk index.
+	 * @param chunk chunk to fill.
+	 */
+	private void readChunk(int ixChunk, Chunk chunk) throws IOException {
+		readBuffer.clear();
+		readBuffer.limit((int)(chunkOffsets[ixChunk + 1] - chunkOffsets[ixChunk]));
+		readFully(readBuffer, chunkOffsets[ixChunk]);
+		chunk.index = ixChunk;
+		chunk.numRows = (int)Math.min(chunkRows, numRows - (long)ixChunk * chunkRows);
+
+		if (header != null) {
+			// Binary rows, inputs then outputs.
+			int ixByte = 0;
+			for (int ixRow = 0 ; ixRow < chunk.numRows ; ixRow++) {
+				ixByte = decodeBinary(ixByte, chunk.inputs[ixRow]);
+				ixByte = decodeBinary(ixByte, chunk.outputs[ixRow]);
+			}
+		}
+		else {
+			// CSV rows parsed into values, then split into inputs & outputs.
+			int numColumns = numInputs + numOutputs;
+			CsvLoader.parseRows(readBuffer, 0, readBuffer.limit(), chunkLines[ixChunk], parseValues, 0, numColumns);
+			for (int ixRow = 0 ; ixRow < chunk.numRows ; ixRow++) {
+				System.arraycopy(parseValues, ixRow * numColumns, chunk.inputs[ixRow], 0, numInputs);
+				System.arraycopy(parseValues, ixRow * numColumns + numInputs, chunk.outputs[ixRow], 0, numOutputs);
+			}
+		}
+	}
+
+	/**
+	 * Decode binary values into an array.
+	 * @param ixByte index of first value in read buffer.
+	 * @param values array to fill.
+	 * @return index following last value.
+	 */
+	private int decodeBinary(int ixByte, double[] values) {
+		for (int ix = 0 ; ix < values.length ; ix++) {
+			if (header.valueType == BinaryDataset.DOUBLE) {
+				values[ix] = readBuffer.getDouble(ixByte);
+				ixByte += 8;
+			}
+			else {
+				values[ix] = readBuffer.getFloat(ixByte);
+				ixByte += 4;
+			}
+		}
+		return ixByte;
+	}
+
+	/**
+	 * Read bytes from the file until the buffer is full.
+	 * @param buffer buffer to fill, from position to limit.
+	 * @param offset file offset.
+	 * @throws IOException if the file cannot be read, or ends first.
+	 */
+	private void readFully(ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			int numRead = channel.read(buffer, offset);
+			if (numRead < 0) {
+				throw new IOException("Data file ended at " + offset + " bytes, expected " + buffer.remaining() + " more");
+			}
+			offset += numRead;
+		}
+	}
+
+	/**
+	 * Stop reading and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		reader.shutdownNow();
+		channel.close();
+	}
+
+	/**
+	 * This is one chunk of rows, as the trainers take them.
+	 */
+	public static class Chunk {
+		/** Input values of each row, of which numRows are valid. */
+		final double[][] inputs;
+
+		/** Output values of each row, of which numRows are valid. */
+		final double[][] outputs;
+
+		/** Number of valid rows. */
+		int numRows;
+
+		/** Chunk index in file. */
+		int index;
+
+		/**
+		 * @param capacity number of rows.
+		 * @param numInputs number of input values per row.
+		 * @param numOutputs number of output values per row.
+		 */
+		Chunk(int capacity, int numInputs, int numOutputs) {
+			inputs = new double[capacity][numInputs];
+			outputs = new double[capacity][numOutputs];
+		}
+
+		/**
+		 * @return the input values of each row, of which getNumRows() are valid.
+		 */
+		public double[][] getInputs() {
+			return inputs;
+		}
+
+		/**
+		 * @return the output values of each row, of which getNumRows() are valid.
+		 */
+		public double[][] getOutputs() {
+			return outputs;
+		}
+
+		/**
+		 * @return the number of valid rows.
+		 */
+		public int getNumRows() {
+			return numRows;
+		}
+
+		/**
+		 * @return the chunk index in file.
+		 */
+		public int getIndex() {
+			return index;
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.Arrays;
+
+import com.sackett.reify.nn.NeuralNetwork.ClassifyOutput;
+
+/**
+ * This evaluates simulated annealing moves, stopping as soon as rejection is certain.
+ * With the move's random draw known beforehand, the lowest rejected energy is known too. Instance RMSEs are never
+ * negative, so the partial RMSE sum over all instances and the partial maximum only grow toward the full average
+ * and maximum; once they alone make the move uphill and at least the rejected energy, no remaining instance can
+ * save it. Instances are visited in descending order of their RMSE under the current network, so partial sums
+ * grow fastest. The order is refreshed from the full evaluation of each accepted move.
+ * Inputs may also be given as sparse rows, classified visiting only their non-zeros, or instances read in place from a
+ * dataset, a memory-mapped file's pages for binary data, one row at a time.
+ * @author Joseph Sackett
+ */
+public class EarlyAbortEvaluator {
+	/** Input data. */
+	private double[][] inputs;
+
+	/** Input data as sparse rows, null to classify dense inputs. */
+	private SparseRows sparseInputs;
+
+	/** Output data. */
+	private double[][] targetOutputs;
+
+	/** Dataset read a row at a time in place of the data arrays, null to classify those. */
+	private Dataset dataset;
+
+	/** Input & output values of the dataset row being classified. */
+	private double[] inputRow;
+	private double[] outputRow;
+
+	/** Number of instances. */
+	private int numInstances;
+
+	/** Instance indexes, in visiting order. */
+	private int[] order;
+
+	/** RMSE of each instance from the last full evaluation. */
+	private double[] rmsErrors;
+
+	/** Sort keys of accept(), each a descending RMSE key in the high int & instance index in the low int. */
+	private long[] sortKeys;
+
+	/** Counts for report. */
+	private long numClassified = 0;
+	private int numAborted = 0;
+
+	/**
+	 * @param inputs input data.
+	 * @param targetOutputs output data.
+	 */
+	public EarlyAbortEvaluator(double[][] inputs, double[][] targetOutputs) {
+		this(inputs, targetOutputs, null);
+	}
+
+	/**
+	 * @param inputs input data.
+	 * @param targetOutputs output data.
+	 * @param sparseInputs input data as sparse rows, null to classify dense inputs.
+	 */
+	public EarlyAbortEvaluator(double[][] inputs, double[][] targetOutputs, SparseRows sparseInputs) {
+		this.inputs = inputs;
+		this.sparseInputs = sparseInputs;
+		this.targetOutputs = targetOutputs;
+		init(inputs.length);
+	}
+
+	/**
+	 * @param dataset dataset whose rows are read in place as instances are classified.
+	 */
+	public EarlyAbortEvaluator(Dataset dataset) {
+		this.dataset = dataset;
+		this.inputRow = new double[dataset.getNumInputs()];
+		this.outputRow = new double[dataset.getNumOutputs()];
+		init(dataset.getNumRows());
+	}
+
+	/**
+	 * Allocate per instance state, visiting instances in index order.
+	 * @param numInstances number of instances.
+	 */
+	private void init(int numInstances) {
+		this.numInstances = numInstances;
+		this.rmsErrors = new double[numInstances];
+		this.sortKeys = new long[numInstances];
+		this.order = new int[numInstances];
+		for (int ixInstance = 0 ; ixInstance < numInstances ; ixInstance++) {
+			order[ixInstance] = ixInstance;
+		}
+	}
+
+	/**
+	 * Classify instances until the move is certainly rejected or all are classified.
+	 * @param neuralNetwork neural network with move applied.
+	 * @param prevAvgRMSE average RMSE before the move.
+	 * @param rejectEnergy lowest energy rejected for the move's random draw.
+	 * @param stats accumulates the errors of each instance classified.
+	 * @return flag indicating the move was certainly rejected before all instances were classified.
+	 */
+	public boolean evaluate(FlatNeuralNetwork neuralNetwork, double prevAvgRMSE, double rejectEnergy, ErrorStats stats) {
+		for (int ixVisit = 0 ; ixVisit < order.length ; ixVisit++) {
+			classify(neuralNetwork, order[ixVisit], stats);
+			numClassified++;
+			// Rejection found at the last instance saves nothing, leave it to the full evaluation.
+			if (ixVisit < order.length - 1 && isRejectionCertain(stats, numInstances, prevAvgRMSE, rejectEnergy)) {
+				numAborted++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Classify all instances, as a starting point, keeping their RMSEs for accept(). Not counted as move evaluation.
+	 * @param neuralNetwork neural network to evaluate.
+	 * @param stats accumulates the errors of each instance.
+	 */
+	public void classifyAll(FlatNeuralNetwork neuralNetwork, ErrorStats stats) {
+		for (int ixInstance = 0 ; ixInstance < numInstances ; ixInstance++) {
+			classify(neuralNetwork, ixInstance, stats);
+		}
+	}
+
+	/**
+	 * Classify one instance, keeping its RMSE.
+	 * @param neuralNetwork neural network to evaluate.
+	 * @param ixInstance instance index.
+	 * @param stats accumulates the errors of the instance.
+	 */
+	private void classify(FlatNeuralNetwork neuralNetwork, int ixInstance, ErrorStats stats) {
+		ClassifyOutput classifyOutput;
+		if (sparseInputs != null) {
+			classifyOutput = neuralNetwork.classify(sparseInputs, ixInstance, targetOutputs[ixInstance]);
+		}
+		else if (dataset != null) {
+			dataset.getInputs(ixInstance, inputRow);
+			dataset.getOutputs(ixInstance, outputRow);
+			classifyOutput = neuralNetwork.classify(inputRow, outputRow);
+		}
+		else {
+			classifyOutput = neuralNetwork.classify(inputs[ixInstance], targetOutputs[ixInstance]);
+		}
+		rmsErrors[ixInstance] = classifyOutput.getRmsError();
+		stats.add(classifyOutput.getRmsError(), classifyOutput.getClassError());
+	}
+
+	/**
+	 * Make the network of the last full evaluation current, visiting its worst classified instances first.
+	 * Sorts primitive keys without allocating: RMSEs are never negative, so their float bits order as they do, and
+	 * subtracting from Integer.MAX_VALUE makes an ascending sort descending.
+	 */
+	public void accept() {
+		for (int ixInstance = 0 ; ixInstance < numInstances ; ixInstance++) {
+			long rmseKey = Integer.MAX_VALUE - Float.floatToIntBits((float)rmsErrors[ixInstance]);
+			sortKeys[ixInstance] = (rmseKey << 32) | ixInstance;
+		}
+		Arrays.sort(sortKeys);
+		for (int ixVisit = 0 ; ixVisit < numInstances ; ixVisit++) {
+			order[ixVisit] = (int)sortKeys[ixVisit];
+		}
+	}
+
+	/**
+	 * Check whether a partially evaluated move is certain to be rejected.
+	 * @param stats errors of instances evaluated so far.
+	 * @param numInstances total number of instances.
+	 * @param prevAvgRMSE average RMSE before the move.
+	 * @param rejectEnergy lowest energy rejected for the move's random draw.
+	 * @return flag indicating the move is uphill & rejected whatever the remaining instances.
+	 */
+	public static boolean isRejectionCertain(ErrorStats stats, int numInstances, double prevAvgRMSE, double rejectEnergy) {
+		double minAvgRMSE = stats.getSumRMSE() / numInstances;
+		return minAvgRMSE > prevAvgRMSE && MainNN.energy(minAvgRMSE, stats.getMaxRMSE()) >= rejectEnergy;
+	}
+
+	/**
+	 * @param numEpochs number of epochs run.
+	 * @return summary of evaluation work.
+	 */
+	public String report(int numEpochs) {
+		return "Early abort: " + numAborted + " moves rejected early, " + numClassified + " instances classified vs "
+				+ ((long)numEpochs * numInstances) + " for full evaluation";
+	}
+
+}
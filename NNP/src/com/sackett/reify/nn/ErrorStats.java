@@ -0,0 +1,110 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+/**
+ * This accumulates the classification errors of a set of training instances.
+ * @author Joseph Sackett
+ */
+public class ErrorStats {
+	/** Number of instances. */
+	private int count;
+
+	/** Sum root mean square error. */
+	private double sumRMSE;
+
+	/** Maximum root mean square error. */
+	private double maxRMSE;
+
+	/** Sum classification errors. */
+	private double sumClassError;
+
+	/**
+	 * Add the errors of one instance.
+	 * @param rmsError root mean square error.
+	 * @param classError discrete classification error.
+	 */
+	public void add(double rmsError, double classError) {
+		count++;
+		sumRMSE = sumRMSE + rmsError;
+		maxRMSE = Math.max(maxRMSE, rmsError);
+		sumClassError = sumClassError + classError;
+	}
+
+	/**
+	 * Add the errors accumulated by another instance set.
+	 * @param other errors to add.
+	 */
+	public void add(ErrorStats other) {
+		count += other.count;
+		sumRMSE = sumRMSE + other.sumRMSE;
+		maxRMSE = Math.max(maxRMSE, other.maxRMSE);
+		sumClassError = sumClassError + other.sumClassError;
+	}
+
+	/** Clear the accumulated errors. */
+	public void clear() {
+		count = 0;
+		sumRMSE = 0.0;
+		maxRMSE = 0.0;
+		sumClassError = 0.0;
+	}
+
+	/**
+	 * @return the count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the sumRMSE
+	 */
+	public double getSumRMSE() {
+		return sumRMSE;
+	}
+
+	/**
+	 * @return the maxRMSE
+	 */
+	public double getMaxRMSE() {
+		return maxRMSE;
+	}
+
+	/**
+	 * @return the sumClassError
+	 */
+	public double getSumClassError() {
+		return sumClassError;
+	}
+
+	/**
+	 * @return the average root mean square error.
+	 */
+	public double getAvgRMSE() {
+		return sumRMSE / count;
+	}
+
+	/**
+	 * @return the fraction of instances classified correctly.
+	 */
+	public double getAccuracy() {
+		return 1 - sumClassError / count;
+	}
+
+}
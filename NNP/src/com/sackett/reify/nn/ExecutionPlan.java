@@ -0,0 +1,431 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sackett.reify.nn.LayerGraph.Layer;
+import com.sackett.reify.nn.NeuralNetwork.ClassifyOutput;
+
+/**
+ * This is a neural network built from a layer graph, compiled into a fixed execution plan: the layers in topological
+ * order, each computed in one step once every layer feeding it is done. Node values & errors of all layers live in two
+ * buffers allocated once, each layer a contiguous range with its bias node first. The weights of each connection
+ * between two layers form a row-major block, one row per outbound node over the inbound layer's nodes, so a node's
+ * NET is one dot kernel per inbound layer, summed and passed through the sigmoid in the same pass. Backpropagation
+ * runs the steps in reverse, passing errors back with axpy kernels over the same rows, then updates each row as one
+ * optimizer run. Unlike FlatNeuralNetwork, which applies every hidden node's sigmoid before any hidden node feeds
+ * another, hidden layers may feed hidden layers at any depth, and bias nodes keep their value of 1.
+ * @author Joseph Sackett
+ */
+public class ExecutionPlan {
+	/** Weight adjustment coefficient. */
+	private double eta;
+
+	/** Turns napse gradients into weight changes during backpropagation. */
+	private Optimizer optimizer = new Optimizer.Sgd();
+
+	/** Array kernels of inner loops. */
+	private Kernels kernels;
+
+	/** Sigmoid activation function. */
+	private Sigmoid sigmoid;
+
+	/** Layers in execution order, input layer first. */
+	private List<Layer> layers;
+
+	/** Kind of each layer. */
+	private int[] layerKinds;
+
+	/** Start of each layer's nodes in the buffers, with end marker. */
+	private int[] layerOffsets;
+
+	/** Number of nodes of each layer, including bias node. */
+	private int[] layerSizes;
+
+	/** Number of bias nodes leading each layer, 0 or 1. */
+	private int[] biasNodes;
+
+	/** Output factor of each layer. */
+	private double[] factors;
+
+	/** Index of each output layer's first node among the network's outputs. */
+	private int[] outputStarts;
+
+	/** Number of network outputs. */
+	private int numOutputs;
+
+	/** Start of each layer's inbound connections, with end marker. */
+	private int[] inboundOffsets;
+
+	/** Inbound layer of each connection. */
+	private int[] connectionSources;
+
+	/** Start of each connection's weight block. */
+	private int[] connectionWeights;
+
+	/** Weight index of each napse, in object graph order: by inbound node, input nodes first. */
+	private int[] napseIndexes;
+
+	/** Connection weights. */
+	private double[] weights;
+
+	/** Node values, by layer. */
+	private double[] values;
+
+	/** Node errors, by layer; weighted error sums while backpropagating. */
+	private double[] errors;
+
+	/**
+	 * Compile a neural network built from a layer graph.
+	 * @param neuralNetwork source neural network, whose weights are copied.
+	 * @throws IllegalArgumentException if the network has no layer graph, or its napses do not fully connect its layers.
+	 */
+	public ExecutionPlan(NeuralNetwork neuralNetwork) {
+		LayerGraph layerGraph = neuralNetwork.getLayerGraph();
+		if (layerGraph == null) {
+			throw new IllegalArgumentException("Neural network was not built from a layer graph");
+		}
+		this.eta = neuralNetwork.getEta();
+		this.kernels = Kernels.get();
+		this.sigmoid = Sigmoid.get();
+		this.layers = layerGraph.sort();
+		int numLayers = layers.size();
+		Map<Layer,Integer> layerIndexes = new HashMap<Layer,Integer>();
+
+		// Lay out nodes layer by layer.
+		layerKinds = new int[numLayers];
+		layerOffsets = new int[numLayers + 1];
+		layerSizes = new int[numLayers];
+		biasNodes = new int[numLayers];
+		factors = new double[numLayers];
+		outputStarts = new int[numLayers];
+		int numNodes = 0;
+		int numConnections = 0;
+		for (int ixLayer = 0 ; ixLayer < numLayers ; ixLayer++) {
+			Layer layer = layers.get(ixLayer);
+			layerIndexes.put(layer, ixLayer);
+			layerKinds[ixLayer] = layer.getKind();
+			layerOffsets[ixLayer] = numNodes;
+			biasNodes[ixLayer] = layer.hasBias() ? 1 : 0;
+			layerSizes[ixLayer] = layer.getSize() + biasNodes[ixLayer];
+			factors[ixLayer] = layer.getFactor();
+			if (layer.getKind() == Layer.OUTPUT) {
+				outputStarts[ixLayer] = numOutputs;
+				numOutputs += layer.getSize();
+			}
+			numNodes += layerSizes[ixLayer];
+			numConnections += layer.getInbound().size();
+		}
+		layerOffsets[numLayers] = numNodes;
+		values = new double[numNodes];
+		errors = new double[numNodes];
+
+		// Lay out connections grouped by outbound layer, each a block of rows by outbound node.
+		inboundOffsets = new int[numLayers + 1];
+		connectionSources = new int[numConnections];
+		connectionWeights = new int[numConnections];
+		int ixConnection = 0;
+		int numWeights = 0;
+		for (int ixLayer = 0 ; ixLayer < numLayers ; ixLayer++) {
+			inboundOffsets[ixLayer] = ixConnection;
+			for (Layer inbound : layers.get(ixLayer).getInbound()) {
+				connectionSources[ixConnection] = layerIndexes.get(inbound);
+				connectionWeights[ixConnection] = numWeights;
+				numWeights += (layerSizes[ixLayer] - biasNodes[ixLayer]) * layerSizes[connectionSources[ixConnection]];
+				ixConnection++;
+			}
+			// Bias nodes hold 1.
+			if (biasNodes[ixLayer] > 0) {
+				values[layerOffsets[ixLayer]] = 1.0;
+			}
+		}
+		inboundOffsets[numLayers] = ixConnection;
+		weights = new double[numWeights];
+
+		// Map nodes to buffer indexes: node lists hold the layers in execution order, outputs after the unused node.
+		Map<Double,Integer> nodeIndexMap = new HashMap<Double,Integer>();
+		int[] nodeLayers = new int[numNodes];
+		int ixInput = 0;
+		int ixHidden = 0;
+		int ixOutput = 1;
+		for (int ixLayer = 0 ; ixLayer < numLayers ; ixLayer++) {
+			for (int ixNode = layerOffsets[ixLayer] ; ixNode < layerOffsets[ixLayer+1] ; ixNode++) {
+				Node node;
+				if (layerKinds[ixLayer] == Layer.INPUT && ixInput < neuralNetwork.getInputNodes().size()) {
+					node = neuralNetwork.getInputNodes().get(ixInput++);
+				}
+				else if (layerKinds[ixLayer] == Layer.HIDDEN && ixHidden < neuralNetwork.getHiddenNodes().size()) {
+					node = neuralNetwork.getHiddenNodes().get(ixHidden++);
+				}
+				else if (layerKinds[ixLayer] == Layer.OUTPUT && ixOutput < neuralNetwork.getOutputNodes().size()) {
+					node = neuralNetwork.getOutputNodes().get(ixOutput++);
+				}
+				else {
+					throw new IllegalArgumentException("Neural network has fewer nodes than its layer graph");
+				}
+				nodeIndexMap.put(node.getId(), ixNode);
+				nodeLayers[ixNode] = ixLayer;
+			}
+		}
+		if (ixInput != neuralNetwork.getInputNodes().size() || ixHidden != neuralNetwork.getHiddenNodes().size() || ixOutput != neuralNetwork.getOutputNodes().size()) {
+			throw new IllegalArgumentException("Neural network has more nodes than its layer graph");
+		}
+
+		// Resolve each napse to its place in its connection's weight block.
+		int numNapses = neuralNetwork.getNumNapses();
+		if (numNapses != numWeights) {
+			throw new IllegalArgumentException("Neural network has " + numNapses + " napses, fully connected layers need " + numWeights
+												+ ", so pruned networks run as FlatNeuralNetwork");
+		}
+		napseIndexes = new int[numNapses];
+		int ixNapse = 0;
+		for (Node inNode : getInboundNodes(neuralNetwork)) {
+			int ixInNode = nodeIndexMap.get(inNode.getId());
+			int inLayer = nodeLayers[ixInNode];
+			for (Napse napse : inNode.getOutputNapses()) {
+				int ixOutNode = nodeIndexMap.get(napse.getOutNode().getId());
+				int outLayer = nodeLayers[ixOutNode];
+				int ixConnectionFound = -1;
+				for (ixConnection = inboundOffsets[outLayer] ; ixConnection < inboundOffsets[outLayer+1] ; ixConnection++) {
+					if (connectionSources[ixConnection] == inLayer) {
+						ixConnectionFound = ixConnection;
+						break;
+					}
+				}
+				if (ixConnectionFound < 0) {
+					throw new IllegalArgumentException("Napse joins layers " + layers.get(inLayer) + " & " + layers.get(outLayer) + ", which are not connected");
+				}
+				int row = ixOutNode - layerOffsets[outLayer] - biasNodes[outLayer];
+				napseIndexes[ixNapse++] = connectionWeights[ixConnectionFound] + row * layerSizes[inLayer] + (ixInNode - layerOffsets[inLayer]);
+			}
+		}
+		importFrom(neuralNetwork);
+	}
+
+	/**
+	 * @return the optimizer
+	 */
+	public Optimizer getOptimizer() {
+		return optimizer;
+	}
+
+	/**
+	 * @param optimizer the optimizer to set, holding state for this plan's weights.
+	 */
+	public void setOptimizer(Optimizer optimizer) {
+		this.optimizer = optimizer;
+	}
+
+	/**
+	 * @return the number of weights.
+	 */
+	public int getNumWeights() {
+		return weights.length;
+	}
+
+	/**
+	 * @return bytes held in weights & node buffers.
+	 */
+	public long getMemoryBytes() {
+		return 8L * (weights.length + values.length + errors.length);
+	}
+
+	/**
+	 * Initializes the input values and classifies the instance by calculating all node values, including outputs and errors.
+	 * @param inputs array of input values.
+	 * @param targetOutputs array of target output values.
+	 * @return actual output values & errors.
+	 */
+	public ClassifyOutput classify(double[] inputs, double[] targetOutputs) {
+		// Set input node values (excluding bias node).
+		for (int ixInput = 0 ; ixInput < inputs.length ; ixInput++) {
+			values[ixInput+1] = inputs[ixInput];
+		}
+
+		// Calculate each layer's node NETs over all its inbound layers, then apply sigmoid function, in execution order.
+		for (int ixLayer = 1 ; ixLayer < layerSizes.length ; ixLayer++) {
+			for (int ixNode = layerOffsets[ixLayer] + biasNodes[ixLayer] ; ixNode < layerOffsets[ixLayer+1] ; ixNode++) {
+				int row = ixNode - layerOffsets[ixLayer] - biasNodes[ixLayer];
+				double net = 0.0;
+				for (int ixConnection = inboundOffsets[ixLayer] ; ixConnection < inboundOffsets[ixLayer+1] ; ixConnection++) {
+					int inLayer = connectionSources[ixConnection];
+					int length = layerSizes[inLayer];
+					net += kernels.dot(weights, connectionWeights[ixConnection] + row * length, values, layerOffsets[inLayer], length);
+				}
+				values[ixNode] = sigmoid.apply(net);
+			}
+		}
+
+		// Error square sum for root mean square error calculations.
+		double sumErrorsSqu = 0.0;
+		// Number of discrete classification errors.
+		long sumDiscreteErrors = 0;
+
+		double[] actualOutputs = new double[numOutputs];
+		for (int ixLayer = 1 ; ixLayer < layerSizes.length ; ixLayer++) {
+			if (layerKinds[ixLayer] != Layer.OUTPUT) {
+				continue;
+			}
+			for (int ixNode = layerOffsets[ixLayer] ; ixNode < layerOffsets[ixLayer+1] ; ixNode++) {
+				int ix = outputStarts[ixLayer] + ixNode - layerOffsets[ixLayer];
+				// Store factored output for return.
+				actualOutputs[ix] = values[ixNode] * factors[ixLayer];
+
+				// Accumulate square of error.
+				double error = targetOutputs[ix] - actualOutputs[ix];
+				sumErrorsSqu += error * error;
+
+				// Accumulate discrete errors.
+				long discreteError = Math.abs((long)targetOutputs[ix] - Math.round(actualOutputs[ix]));
+				sumDiscreteErrors += (discreteError > 0) ? 1 : 0;
+			}
+		}
+
+		// Calculate root mean square error.
+		double rmsError = Math.sqrt(sumErrorsSqu / (double)targetOutputs.length);
+		// Calculate classification error.
+		double classError = (double)sumDiscreteErrors / (double)targetOutputs.length;
+
+		return new ClassifyOutput(actualOutputs, rmsError, classError);
+	}
+
+	/**
+	 * Classifies inputs, backpropagates errors based on expected outputs, and updates weights.
+	 * @param inputs array of input values.
+	 * @param targetOutputs array of target output values.
+	 * @return classification of inputs before the weight update, with its errors.
+	 */
+	public ClassifyOutput backpropagate(double[] inputs, double[] targetOutputs) {
+		// Classify inputs to set all node values.
+		ClassifyOutput classifyOutput = classify(inputs, targetOutputs);
+
+		// Calculate output node errors and clear hidden node weighted error sums.
+		for (int ixLayer = 1 ; ixLayer < layerSizes.length ; ixLayer++) {
+			if (layerKinds[ixLayer] != Layer.OUTPUT) {
+				Arrays.fill(errors, layerOffsets[ixLayer], layerOffsets[ixLayer+1], 0.0);
+				continue;
+			}
+			double factor = factors[ixLayer];
+			for (int ixNode = layerOffsets[ixLayer] ; ixNode < layerOffsets[ixLayer+1] ; ixNode++) {
+				double factoredOutput = values[ixNode] * factor;
+				double target = targetOutputs[outputStarts[ixLayer] + ixNode - layerOffsets[ixLayer]];
+				errors[ixNode] = factoredOutput * ( factor - factoredOutput ) * ( target - factoredOutput );
+			}
+		}
+
+		// Calculate hidden node errors in reverse execution order, so each layer's sums are complete before it is reached.
+		for (int ixLayer = layerSizes.length - 1 ; ixLayer > 0 ; ixLayer--) {
+			if (layerKinds[ixLayer] == Layer.HIDDEN) {
+				for (int ixNode = layerOffsets[ixLayer] + biasNodes[ixLayer] ; ixNode < layerOffsets[ixLayer+1] ; ixNode++) {
+					double output = values[ixNode];
+					errors[ixNode] = output * ( 1 - output ) * errors[ixNode];
+				}
+			}
+			// Pass errors back to inbound hidden layers, weighted by napse.
+			for (int ixConnection = inboundOffsets[ixLayer] ; ixConnection < inboundOffsets[ixLayer+1] ; ixConnection++) {
+				int inLayer = connectionSources[ixConnection];
+				if (layerKinds[inLayer] != Layer.HIDDEN) {
+					continue;
+				}
+				int length = layerSizes[inLayer];
+				for (int ixNode = layerOffsets[ixLayer] + biasNodes[ixLayer] ; ixNode < layerOffsets[ixLayer+1] ; ixNode++) {
+					int row = ixNode - layerOffsets[ixLayer] - biasNodes[ixLayer];
+					kernels.axpy(errors[ixNode], weights, connectionWeights[ixConnection] + row * length, errors, layerOffsets[inLayer], length);
+				}
+			}
+		}
+
+		// Update all napse weights (including bias nodes), one row per outbound node.
+		optimizer.beginStep();
+		for (int ixLayer = 1 ; ixLayer < layerSizes.length ; ixLayer++) {
+			for (int ixConnection = inboundOffsets[ixLayer] ; ixConnection < inboundOffsets[ixLayer+1] ; ixConnection++) {
+				int inLayer = connectionSources[ixConnection];
+				int length = layerSizes[inLayer];
+				for (int ixNode = layerOffsets[ixLayer] + biasNodes[ixLayer] ; ixNode < layerOffsets[ixLayer+1] ; ixNode++) {
+					int row = ixNode - layerOffsets[ixLayer] - biasNodes[ixLayer];
+					optimizer.updateRun(weights, connectionWeights[ixConnection] + row * length, errors[ixNode], values, layerOffsets[inLayer], length, eta, kernels);
+				}
+			}
+		}
+
+		return classifyOutput;
+	}
+
+	/**
+	 * Copy napse weights from a neural network with the topology this was compiled from.
+	 * @param neuralNetwork source neural network.
+	 */
+	public void importFrom(NeuralNetwork neuralNetwork) {
+		int ixNapse = 0;
+		for (Node inNode : getInboundNodes(neuralNetwork)) {
+			for (Napse napse : inNode.getOutputNapses()) {
+				weights[napseIndexes[ixNapse++]] = napse.getWeight();
+			}
+		}
+	}
+
+	/**
+	 * Copy weights back into a neural network with the topology this was compiled from.
+	 * @param neuralNetwork target neural network.
+	 */
+	public void exportTo(NeuralNetwork neuralNetwork) {
+		int ixNapse = 0;
+		for (Node inNode : getInboundNodes(neuralNetwork)) {
+			for (Napse napse : inNode.getOutputNapses()) {
+				napse.setWeight(weights[napseIndexes[ixNapse++]]);
+			}
+		}
+		if (ixNapse != napseIndexes.length) {
+			throw new IllegalArgumentException("Neural network has " + ixNapse + " napses, expected " + napseIndexes.length);
+		}
+	}
+
+	/**
+	 * @param neuralNetwork neural network.
+	 * @return input nodes then hidden nodes, the order napses are indexed in.
+	 */
+	private static List<Node> getInboundNodes(NeuralNetwork neuralNetwork) {
+		List<Node> nodes = new ArrayList<Node>(neuralNetwork.getInputNodes());
+		nodes.addAll(neuralNetwork.getHiddenNodes());
+		return nodes;
+	}
+
+	/**
+	 * @return the execution steps, each layer with the layers feeding it.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Layer layer : layers) {
+			if (layer.getInbound().isEmpty()) {
+				continue;
+			}
+			builder.append((builder.length() > 0) ? "; " : "").append(layer).append(" <- ");
+			for (int ix = 0 ; ix < layer.getInbound().size() ; ix++) {
+				builder.append((ix > 0) ? " + " : "").append(layer.getInbound().get(ix).getName());
+			}
+		}
+		return builder.toString();
+	}
+
+}
@@ -51,6 +51,13 @@ public class FactoredOutputNode extends OutputNode {
 		this.factor = factor;
 	}
 
+	/**
+	 * @return the factor
+	 */
+	public double getFactor() {
+		return factor;
+	}
+
 	/**
 	 * @return the factored output
 	 */
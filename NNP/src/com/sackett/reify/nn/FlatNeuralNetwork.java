@@ -0,0 +1,1179 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sackett.reify.nn.NeuralNetwork.ClassifyOutput;
+
+/**
+ * This represents an artificial neural network compiled from the node & napse object graph into contiguous arrays.
+ * Nodes are numbered input layer first, then hidden, then output, in the order of the neural network's node lists.
+ * Napses are grouped by inbound node so the outgoing connections of each node form one contiguous range of weights.
+ * Classification and backpropagation follow the same steps, in the same order, as NeuralNetwork.
+ * @author Joseph Sackett
+ */
+public class FlatNeuralNetwork {
+	/** Weight adjustment coefficient. */
+	private double eta;
+
+	/** Weight adjustment factor to prior update. */
+	private double momentum;
+
+	/** Turns napse gradients into weight changes during backpropagation. */
+	private Optimizer optimizer = new Optimizer.Sgd();
+
+	/** Number of input nodes, including bias node. */
+	private int numInputNodes;
+
+	/** Number of hidden nodes, including bias nodes. */
+	private int numHiddenNodes;
+
+	/** Number of output nodes, including unused node at index 0. */
+	private int numOutputNodes;
+
+	/** Index of first hidden node. */
+	private int hiddenOffset;
+
+	/** Index of first output node. */
+	private int outputOffset;
+
+	/** Total number of nodes. */
+	private int numNodes;
+
+	/** Bias node flags, by node index. */
+	private boolean[] bias;
+
+	/** Factored output node flags, by output node number. */
+	private boolean[] factored;
+
+	/** Output factors, by output node number (1.0 for plain output nodes). */
+	private double[] factors;
+
+	/** Start of each input & hidden node's outgoing napses in weights, with end marker. */
+	private int[] napseOffsets;
+
+	/** Outbound node index of each napse. */
+	private int[] napseTargets;
+
+	/** Index of first hidden to hidden/output napse. */
+	private int hiddenNapseOffset;
+
+	/** Flags, by inbound node, indicating its napses lead to consecutive nodes in order, so run as array kernels. */
+	private boolean[] contiguous;
+
+	/** Array kernels of inner loops. */
+	private Kernels kernels;
+
+	/** Sigmoid activation function. */
+	private Sigmoid sigmoid;
+
+	/** Probability an annealing move disconnects a napse, by setting its weight to exactly 0, rather than reweighting it. */
+	private double pruneProb;
+
+	/** Napse weights. */
+	private double[] weights;
+
+	/** Node outputs, by node index. */
+	private double[] outputs;
+
+	/** Node errors, by node index. */
+	private double[] errors;
+
+	/**
+	 * Compile a neural network's object graph into flat arrays.
+	 * @param neuralNetwork source neural network.
+	 */
+	public FlatNeuralNetwork(NeuralNetwork neuralNetwork) {
+		this.eta = neuralNetwork.getEta();
+		this.momentum = neuralNetwork.getMomentum();
+
+		List<InputNode> inputNodes = neuralNetwork.getInputNodes();
+		List<HiddenNode> hiddenNodes = neuralNetwork.getHiddenNodes();
+		List<OutputNode> outputNodes = neuralNetwork.getOutputNodes();
+		numInputNodes = inputNodes.size();
+		numHiddenNodes = hiddenNodes.size();
+		numOutputNodes = outputNodes.size();
+		hiddenOffset = numInputNodes;
+		outputOffset = hiddenOffset + numHiddenNodes;
+		numNodes = outputOffset + numOutputNodes;
+
+		// Collect all nodes in index order.
+		List<Node> nodes = new ArrayList<Node>(numNodes);
+		nodes.addAll(inputNodes);
+		nodes.addAll(hiddenNodes);
+		nodes.addAll(outputNodes);
+
+		// Map of node indexes for resolving Napse connections.
+		Map<Double,Integer> nodeIndexMap = new HashMap<Double,Integer>();
+		bias = new boolean[numNodes];
+		outputs = new double[numNodes];
+		errors = new double[numNodes];
+		int numNapses = 0;
+		for (int ixNode = 0 ; ixNode < numNodes ; ixNode++) {
+			Node node = nodes.get(ixNode);
+			nodeIndexMap.put(node.getId(), ixNode);
+			bias[ixNode] = node.isBias();
+			outputs[ixNode] = node.getOutput();
+			errors[ixNode] = node.getError();
+			if (ixNode < outputOffset) {
+				numNapses += node.getOutputNapses().size();
+			}
+		}
+
+		// Capture output factors.
+		factored = new boolean[numOutputNodes];
+		factors = new double[numOutputNodes];
+		for (int ixOutput = 0 ; ixOutput < numOutputNodes ; ixOutput++) {
+			OutputNode outputNode = outputNodes.get(ixOutput);
+			factored[ixOutput] = outputNode instanceof FactoredOutputNode;
+			factors[ixOutput] = factored[ixOutput] ? ((FactoredOutputNode)outputNode).getFactor() : 1.0;
+		}
+
+		// Lay out napses grouped by inbound node.
+		napseOffsets = new int[outputOffset + 1];
+		napseTargets = new int[numNapses];
+		weights = new double[numNapses];
+		int ixNapse = 0;
+		for (int ixNode = 0 ; ixNode < outputOffset ; ixNode++) {
+			napseOffsets[ixNode] = ixNapse;
+			for (Napse napse : nodes.get(ixNode).getOutputNapses()) {
+				napseTargets[ixNapse] = nodeIndexMap.get(napse.getOutNode().getId());
+				weights[ixNapse] = napse.getWeight();
+				ixNapse++;
+			}
+		}
+		napseOffsets[outputOffset] = ixNapse;
+		hiddenNapseOffset = napseOffsets[hiddenOffset];
+
+		detectContiguous();
+		kernels = Kernels.get();
+		sigmoid = Sigmoid.get();
+	}
+
+	/**
+	 * Constructor used in readFrom(), taking topology & state arrays as read.
+	 */
+	private FlatNeuralNetwork(double eta, double momentum, double pruneProb, int numInputNodes, int numHiddenNodes, int numOutputNodes, boolean[] bias,
+								boolean[] factored, double[] factors, int[] napseOffsets, int[] napseTargets, double[] weights, double[] outputs, double[] errors) {
+		this.eta = eta;
+		this.momentum = momentum;
+		this.pruneProb = pruneProb;
+		this.numInputNodes = numInputNodes;
+		this.numHiddenNodes = numHiddenNodes;
+		this.numOutputNodes = numOutputNodes;
+		hiddenOffset = numInputNodes;
+		outputOffset = hiddenOffset + numHiddenNodes;
+		numNodes = outputOffset + numOutputNodes;
+		this.bias = bias;
+		this.factored = factored;
+		this.factors = factors;
+		this.napseOffsets = napseOffsets;
+		this.napseTargets = napseTargets;
+		hiddenNapseOffset = napseOffsets[hiddenOffset];
+		this.weights = weights;
+		this.outputs = outputs;
+		this.errors = errors;
+		detectContiguous();
+		kernels = Kernels.get();
+		sigmoid = Sigmoid.get();
+	}
+
+	/** Detect nodes whose napses lead to consecutive nodes. */
+	private void detectContiguous() {
+		contiguous = new boolean[outputOffset];
+		for (int ixNode = 0 ; ixNode < outputOffset ; ixNode++) {
+			contiguous[ixNode] = true;
+			for (int ixNapse = napseOffsets[ixNode] + 1 ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+				if (napseTargets[ixNapse] != napseTargets[ixNapse-1] + 1) {
+					contiguous[ixNode] = false;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructor used in clone(). Shares the immutable topology arrays.
+	 * @param source flat neural network to copy.
+	 */
+	private FlatNeuralNetwork(FlatNeuralNetwork source) {
+		this.eta = source.eta;
+		this.momentum = source.momentum;
+		this.optimizer = source.optimizer.copy();
+		this.numInputNodes = source.numInputNodes;
+		this.numHiddenNodes = source.numHiddenNodes;
+		this.numOutputNodes = source.numOutputNodes;
+		this.hiddenOffset = source.hiddenOffset;
+		this.outputOffset = source.outputOffset;
+		this.numNodes = source.numNodes;
+		this.bias = source.bias;
+		this.factored = source.factored;
+		this.factors = source.factors;
+		this.napseOffsets = source.napseOffsets;
+		this.napseTargets = source.napseTargets;
+		this.hiddenNapseOffset = source.hiddenNapseOffset;
+		this.contiguous = source.contiguous;
+		this.kernels = source.kernels;
+		this.sigmoid = source.sigmoid;
+		this.pruneProb = source.pruneProb;
+		this.weights = source.weights.clone();
+		this.outputs = source.outputs.clone();
+		this.errors = source.errors.clone();
+	}
+
+	/**
+	 * @return the eta
+	 */
+	public double getEta() {
+		return eta;
+	}
+
+	/**
+	 * @return the momentum
+	 */
+	public double getMomentum() {
+		return momentum;
+	}
+
+	/**
+	 * @param eta the eta to set
+	 */
+	public void setEta(double eta) {
+		this.eta = eta;
+	}
+
+	/**
+	 * @param momentum the momentum to set
+	 */
+	public void setMomentum(double momentum) {
+		this.momentum = momentum;
+	}
+
+	/**
+	 * @return the optimizer
+	 */
+	public Optimizer getOptimizer() {
+		return optimizer;
+	}
+
+	/**
+	 * @param optimizer the optimizer to set, holding state for this network's napses.
+	 */
+	public void setOptimizer(Optimizer optimizer) {
+		this.optimizer = optimizer;
+	}
+
+	/**
+	 * @return the probability an annealing move disconnects a napse.
+	 */
+	public double getPruneProb() {
+		return pruneProb;
+	}
+
+	/**
+	 * @param pruneProb the probability an annealing move disconnects a napse, 0 to only reweight.
+	 */
+	public void setPruneProb(double pruneProb) {
+		this.pruneProb = pruneProb;
+	}
+
+	/**
+	 * @return the number of input nodes, including bias node.
+	 */
+	public int getNumInputNodes() {
+		return numInputNodes;
+	}
+
+	/**
+	 * @return the number of hidden nodes, including bias nodes.
+	 */
+	public int getNumHiddenNodes() {
+		return numHiddenNodes;
+	}
+
+	/**
+	 * @return the number of output nodes, including unused node at index 0.
+	 */
+	public int getNumOutputNodes() {
+		return numOutputNodes;
+	}
+
+	/**
+	 * @return the number of napses.
+	 */
+	public int getNumNapses() {
+		return weights.length;
+	}
+
+	/**
+	 * @return bytes held in the napse layout (weights, targets & offsets) and node state, which pruning shrinks in
+	 * proportion to the napses removed.
+	 */
+	public long getMemoryBytes() {
+		return 8L * weights.length + 4L * napseTargets.length + 4L * napseOffsets.length + 16L * numNodes + contiguous.length;
+	}
+
+	/**
+	 * @return the weights, in napse order.
+	 */
+	public double[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * @return the index of the first hidden node.
+	 */
+	int getHiddenOffset() {
+		return hiddenOffset;
+	}
+
+	/**
+	 * @return the index of the first output node.
+	 */
+	int getOutputOffset() {
+		return outputOffset;
+	}
+
+	/**
+	 * @return the total number of nodes.
+	 */
+	int getNumNodes() {
+		return numNodes;
+	}
+
+	/**
+	 * @return the bias node flags, by node index.
+	 */
+	boolean[] getBias() {
+		return bias;
+	}
+
+	/**
+	 * @return the output factors, by output node number.
+	 */
+	double[] getFactors() {
+		return factors;
+	}
+
+	/**
+	 * @return the start of each input & hidden node's napses, with end marker.
+	 */
+	int[] getNapseOffsets() {
+		return napseOffsets;
+	}
+
+	/**
+	 * @return the outbound node index of each napse.
+	 */
+	int[] getNapseTargets() {
+		return napseTargets;
+	}
+
+	/**
+	 * @return the flags, by inbound node, indicating its napses lead to consecutive nodes.
+	 */
+	boolean[] getContiguous() {
+		return contiguous;
+	}
+
+	/**
+	 * @return the sigmoid activation function.
+	 */
+	Sigmoid getSigmoid() {
+		return sigmoid;
+	}
+
+	/**
+	 * @return the node outputs, by node index.
+	 */
+	double[] getNodeOutputs() {
+		return outputs;
+	}
+
+	/**
+	 * Settle hidden bias node outputs at the fixed point of the sigmoid. Classification passes them through the
+	 * sigmoid on every call, so from 1.0 they drift to about 0.659; once settled, classification leaves them unchanged.
+	 */
+	void settleBiasOutputs() {
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			if (!bias[ixNode]) {
+				continue;
+			}
+			// Converges to an exact fixed point in under 30 steps for every implementation; the limit guards against cycling.
+			for (int ixStep = 0 ; ixStep < 1000 && sigmoid.apply(outputs[ixNode]) != outputs[ixNode] ; ixStep++) {
+				outputs[ixNode] = sigmoid.apply(outputs[ixNode]);
+			}
+		}
+	}
+
+	/**
+	 * @return the node errors, by node index.
+	 */
+	double[] getNodeErrors() {
+		return errors;
+	}
+
+	/**
+	 * Initializes the input values and classifies the instance by calculating all node values, including outputs and errors.
+	 * @param inputs array of input values.
+	 * @param targetOutputs array of target output values.
+	 * @return actual output values & errors.
+	 */
+	public ClassifyOutput classify(double[] inputs, double[] targetOutputs) {
+		// Set input node values (excluding bias node).
+		for (int ixInput = 0 ; ixInput < inputs.length ; ixInput++) {
+			outputs[ixInput+1] = inputs[ixInput];
+		}
+		clearNets();
+
+		// Calculate hidden node NETs.
+		for (int ixNode = 0 ; ixNode < hiddenOffset ; ixNode++) {
+			addWeighted(ixNode, outputs[ixNode]);
+		}
+
+		return classifyHidden(targetOutputs);
+	}
+
+	/**
+	 * Classifies a sparse instance as classify does, visiting only the bias node and non-zero inputs.
+	 * Zero inputs add nothing to NETs, so the result is identical to classifying the dense instance.
+	 * @param inputs input values of all instances.
+	 * @param ixInstance index of instance.
+	 * @param targetOutputs array of target output values.
+	 * @return actual output values & errors.
+	 */
+	public ClassifyOutput classify(SparseRows inputs, int ixInstance, double[] targetOutputs) {
+		// Clear input node values (excluding bias node).
+		Arrays.fill(outputs, 1, hiddenOffset, 0.0);
+		clearNets();
+
+		// Calculate hidden node NETs from bias node and non-zero inputs.
+		addWeighted(0, outputs[0]);
+		for (int ixEntry = inputs.rowOffsets[ixInstance] ; ixEntry < inputs.rowOffsets[ixInstance+1] ; ixEntry++) {
+			int ixNode = inputs.columns[ixEntry] + 1;
+			outputs[ixNode] = inputs.values[ixEntry];
+			addWeighted(ixNode, outputs[ixNode]);
+		}
+
+		return classifyHidden(targetOutputs);
+	}
+
+	/** Clear values of hidden nodes (excluding bias nodes) and output nodes, ready to accumulate NETs. */
+	private void clearNets() {
+		// Clear values of hidden nodes (excluding bias nodes).
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			if (!bias[ixNode]) {
+				outputs[ixNode] = 0.0;
+			}
+		}
+		// Clear output node values.
+		for (int ixNode = outputOffset ; ixNode < numNodes ; ixNode++) {
+			outputs[ixNode] = 0.0;
+		}
+	}
+
+	/**
+	 * Completes classification once hidden node NETs from input nodes are accumulated.
+	 * @param targetOutputs array of target output values.
+	 * @return actual output values & errors.
+	 */
+	private ClassifyOutput classifyHidden(double[] targetOutputs) {
+		// Apply sigmoid function to hidden node NETs.
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			outputs[ixNode] = sigmoid.apply(outputs[ixNode]);
+		}
+
+		// Calculate output node NETs.
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			addWeighted(ixNode, outputs[ixNode]);
+		}
+
+		// Error square sum for root mean square error calculations.
+		double sumErrorsSqu = 0.0;
+		// Number of discrete classification errors.
+		long sumDiscreteErrors = 0;
+
+		double[] actualOutputs = new double[numOutputNodes-1];
+		// Apply sigmoid function to output node NETs, skipping dummy bias node.
+		for (int ix = 0 ; ix < actualOutputs.length ; ix++) {
+			int ixNode = outputOffset + ix + 1;
+			// Apply sigmoid function to accumulated NETs.
+			outputs[ixNode] = sigmoid.apply(outputs[ixNode]);
+			// Store factored output for return.
+			actualOutputs[ix] = outputs[ixNode] * factors[ix+1];
+
+			// Accumulate square of error.
+			double error = targetOutputs[ix] - actualOutputs[ix];
+			sumErrorsSqu += error * error;
+
+			// Accumulate discrete errors.
+			long discreteError = Math.abs((long)targetOutputs[ix] - Math.round(actualOutputs[ix]));
+			sumDiscreteErrors += (discreteError > 0) ? 1 : 0;
+		}
+
+		// Calculate root mean square error.
+		double rmsError = Math.sqrt(sumErrorsSqu / (double)targetOutputs.length);
+		// Calculate classification error.
+		double classError = (double)sumDiscreteErrors / (double)targetOutputs.length;
+
+		return new ClassifyOutput(actualOutputs, rmsError, classError);
+	}
+
+	/**
+	 * Classifies inputs, backpropagates errors based on expected outputs, and updates weights.
+	 * @param inputs array of input values.
+	 * @param targetOutputs array of target output values.
+	 * @return classification of inputs before the weight update, with its errors.
+	 */
+	public ClassifyOutput backpropagate(double[] inputs, double[] targetOutputs) {
+		// Classify inputs to set all node outputs.
+		ClassifyOutput classifyOutput = classify(inputs, targetOutputs);
+		calculateErrors(targetOutputs);
+
+		// Loop through and update all napse weights (including bias nodes).
+		optimizer.beginStep();
+		for (int ixNode = 0 ; ixNode < outputOffset ; ixNode++) {
+			updateWeights(ixNode, outputs[ixNode], errors);
+		}
+
+		return classifyOutput;
+	}
+
+	/**
+	 * Backpropagates a sparse instance as backpropagate does. Napses from zero inputs have zero gradient, so when the
+	 * optimizer leaves such weights unchanged only napses from the bias node and non-zero inputs are updated.
+	 * @param inputs input values of all instances.
+	 * @param ixInstance index of instance.
+	 * @param targetOutputs array of target output values.
+	 * @return classification of inputs before the weight update, with its errors.
+	 */
+	public ClassifyOutput backpropagate(SparseRows inputs, int ixInstance, double[] targetOutputs) {
+		// Classify inputs to set all node outputs.
+		ClassifyOutput classifyOutput = classify(inputs, ixInstance, targetOutputs);
+		calculateErrors(targetOutputs);
+
+		// Update napse weights from bias node and non-zero inputs, or all inputs.
+		optimizer.beginStep();
+		if (optimizer.isSparse()) {
+			updateWeights(0, outputs[0], errors);
+			for (int ixEntry = inputs.rowOffsets[ixInstance] ; ixEntry < inputs.rowOffsets[ixInstance+1] ; ixEntry++) {
+				int ixNode = inputs.columns[ixEntry] + 1;
+				updateWeights(ixNode, outputs[ixNode], errors);
+			}
+		}
+		else {
+			for (int ixNode = 0 ; ixNode < hiddenOffset ; ixNode++) {
+				updateWeights(ixNode, outputs[ixNode], errors);
+			}
+		}
+		// Update napse weights from hidden nodes (including bias nodes).
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			updateWeights(ixNode, outputs[ixNode], errors);
+		}
+
+		return classifyOutput;
+	}
+
+	/**
+	 * Calculate output & hidden node errors of the instance last classified.
+	 * @param targetOutputs array of target output values.
+	 */
+	private void calculateErrors(double[] targetOutputs) {
+		// Calculate output node errors (excluding bias node).
+		for (int ixOutput = 1 ; ixOutput < numOutputNodes ; ixOutput++) {
+			int ixNode = outputOffset + ixOutput;
+			double factor = factors[ixOutput];
+			double factoredOutput = outputs[ixNode] * factor;
+			errors[ixNode] = factoredOutput * ( factor - factoredOutput ) * ( targetOutputs[ixOutput-1] - factoredOutput );
+		}
+
+		// Calculate hidden node errors (excluding bias nodes). Must be done after calculating downstream errors.
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			if (bias[ixNode]) {
+				continue;
+			}
+			double weightedErrors = sumWeighted(ixNode, errors);
+			double output = outputs[ixNode];
+			errors[ixNode] = output * ( 1 - output ) * weightedErrors;
+		}
+	}
+
+	/**
+	 * Allocate a buffer for running batches of instances through this network.
+	 * @param capacity maximum number of instances per batch.
+	 * @return batch buffer.
+	 */
+	public BatchBuffer createBatchBuffer(int capacity) {
+		return new BatchBuffer(outputs, weights.length, capacity);
+	}
+
+	/**
+	 * Classifies a batch of instances, calculating the node values of each instance into a column of the batch buffer.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param from index of first instance in batch.
+	 * @param to index after last instance in batch.
+	 * @param buffer batch buffer with capacity of at least to - from.
+	 * @param stats accumulates the errors of each instance, may be null.
+	 */
+	public void classifyBatch(double[][] inputs, double[][] targetOutputs, int from, int to, BatchBuffer buffer, ErrorStats stats) {
+		int capacity = buffer.capacity;
+		int size = to - from;
+		double[] batchOutputs = buffer.outputs;
+
+		// Set input node values (excluding bias node), one instance per column.
+		for (int ixColumn = 0 ; ixColumn < size ; ixColumn++) {
+			double[] instanceInputs = inputs[from + ixColumn];
+			for (int ixInput = 0 ; ixInput < instanceInputs.length ; ixInput++) {
+				batchOutputs[(ixInput+1) * capacity + ixColumn] = instanceInputs[ixInput];
+			}
+		}
+		// Clear values of hidden nodes (excluding bias nodes) and output nodes.
+		for (int ixNode = hiddenOffset ; ixNode < numNodes ; ixNode++) {
+			if (!bias[ixNode] || ixNode >= outputOffset) {
+				Arrays.fill(batchOutputs, ixNode * capacity, ixNode * capacity + size, 0.0);
+			}
+		}
+
+		// Calculate hidden node NETs.
+		multiplyWeights(0, hiddenOffset, batchOutputs, capacity, size);
+
+		// Apply sigmoid function to hidden node NETs.
+		sigmoid(batchOutputs, hiddenOffset, outputOffset, capacity, size);
+
+		// Calculate output node NETs.
+		multiplyWeights(hiddenOffset, outputOffset, batchOutputs, capacity, size);
+
+		// Apply sigmoid function to output node NETs, skipping dummy bias node.
+		sigmoid(batchOutputs, outputOffset + 1, numNodes, capacity, size);
+
+		if (stats == null) {
+			return;
+		}
+		// Accumulate errors of each instance.
+		for (int ixColumn = 0 ; ixColumn < size ; ixColumn++) {
+			double[] instanceTargets = targetOutputs[from + ixColumn];
+			double sumErrorsSqu = 0.0;
+			long sumDiscreteErrors = 0;
+			for (int ix = 0 ; ix < instanceTargets.length ; ix++) {
+				double actualOutput = batchOutputs[(outputOffset + ix + 1) * capacity + ixColumn] * factors[ix+1];
+				double error = instanceTargets[ix] - actualOutput;
+				sumErrorsSqu += error * error;
+				long discreteError = Math.abs((long)instanceTargets[ix] - Math.round(actualOutput));
+				sumDiscreteErrors += (discreteError > 0) ? 1 : 0;
+			}
+			stats.add(Math.sqrt(sumErrorsSqu / (double)instanceTargets.length), (double)sumDiscreteErrors / (double)instanceTargets.length);
+		}
+	}
+
+	/**
+	 * Classifies a batch of instances, backpropagates their errors and accumulates the weight gradients into the batch buffer.
+	 * Weights are not changed.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param from index of first instance in batch.
+	 * @param to index after last instance in batch.
+	 * @param buffer batch buffer with capacity of at least to - from.
+	 * @param stats accumulates the errors of each instance, may be null.
+	 */
+	public void accumulateGradients(double[][] inputs, double[][] targetOutputs, int from, int to, BatchBuffer buffer, ErrorStats stats) {
+		// Classify batch and calculate all node errors.
+		backpropagateErrors(inputs, targetOutputs, from, to, buffer, stats);
+
+		int capacity = buffer.capacity;
+		int size = to - from;
+		double[] batchOutputs = buffer.outputs;
+		double[] batchErrors = buffer.errors;
+
+		// Accumulate napse gradients: inbound node output row dot outbound node error row.
+		double[] gradients = buffer.gradients;
+		for (int ixNode = 0 ; ixNode < outputOffset ; ixNode++) {
+			int row = ixNode * capacity;
+			for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+				gradients[ixNapse] += kernels.dot(batchOutputs, row, batchErrors, napseTargets[ixNapse] * capacity, size);
+			}
+		}
+		buffer.gradientCount += size;
+	}
+
+	/**
+	 * Classifies one instance in the buffer's first column, backpropagates its error, and updates the weights in place.
+	 * Weights are read and written without locking so several threads, each with its own buffer, may train
+	 * one network at once (Hogwild style), tolerating lost updates when they collide. Optimizer state is shared the same way.
+	 * Napses from nodes with zero output are not written, so sparse instances touch few weights.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param ixInstance index of instance.
+	 * @param buffer batch buffer owned by the calling thread.
+	 * @param stats accumulates the errors of the instance, may be null.
+	 */
+	public void backpropagateShared(double[][] inputs, double[][] targetOutputs, int ixInstance, BatchBuffer buffer, ErrorStats stats) {
+		// Classify instance and calculate all node errors.
+		backpropagateErrors(inputs, targetOutputs, ixInstance, ixInstance + 1, buffer, stats);
+
+		int capacity = buffer.capacity;
+		double[] batchOutputs = buffer.outputs;
+		double[] batchErrors = buffer.errors;
+
+		// Loop through and update napse weights from nodes with output.
+		optimizer.beginStep();
+		for (int ixNode = 0 ; ixNode < outputOffset ; ixNode++) {
+			double output = batchOutputs[ixNode * capacity];
+			if (output == 0.0) {
+				continue;
+			}
+			if (capacity == 1) {
+				updateWeights(ixNode, output, batchErrors);
+				continue;
+			}
+			for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+				weights[ixNapse] += optimizer.delta(ixNapse, output * batchErrors[napseTargets[ixNapse] * capacity], eta);
+			}
+		}
+	}
+
+	/**
+	 * Classifies a batch of instances and calculates the errors of all nodes into the batch buffer.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param from index of first instance in batch.
+	 * @param to index after last instance in batch.
+	 * @param buffer batch buffer with capacity of at least to - from.
+	 * @param stats accumulates the errors of each instance, may be null.
+	 */
+	private void backpropagateErrors(double[][] inputs, double[][] targetOutputs, int from, int to, BatchBuffer buffer, ErrorStats stats) {
+		// Classify batch to set all node outputs.
+		classifyBatch(inputs, targetOutputs, from, to, buffer, stats);
+
+		int capacity = buffer.capacity;
+		int size = to - from;
+		double[] batchOutputs = buffer.outputs;
+		double[] batchErrors = buffer.errors;
+
+		// Calculate output node errors (excluding bias node).
+		for (int ixOutput = 1 ; ixOutput < numOutputNodes ; ixOutput++) {
+			int row = (outputOffset + ixOutput) * capacity;
+			double factor = factors[ixOutput];
+			for (int ixColumn = 0 ; ixColumn < size ; ixColumn++) {
+				double factoredOutput = batchOutputs[row + ixColumn] * factor;
+				batchErrors[row + ixColumn] = factoredOutput * ( factor - factoredOutput ) * ( targetOutputs[from + ixColumn][ixOutput-1] - factoredOutput );
+			}
+		}
+
+		// Calculate hidden node errors (excluding bias nodes). Must be done after calculating downstream errors.
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			if (bias[ixNode]) {
+				continue;
+			}
+			int row = ixNode * capacity;
+			// Sum weighted downstream error rows.
+			Arrays.fill(batchErrors, row, row + size, 0.0);
+			for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+				kernels.axpy(weights[ixNapse], batchErrors, napseTargets[ixNapse] * capacity, batchErrors, row, size);
+			}
+			for (int ixColumn = 0 ; ixColumn < size ; ixColumn++) {
+				double output = batchOutputs[row + ixColumn];
+				batchErrors[row + ixColumn] = output * ( 1 - output ) * batchErrors[row + ixColumn];
+			}
+		}
+	}
+
+	/**
+	 * Updates weights by the optimizer's change for the mean of the gradients accumulated in the batch buffer, then clears them.
+	 * @param buffer batch buffer holding accumulated gradients.
+	 */
+	public void applyGradients(BatchBuffer buffer) {
+		if (buffer.gradientCount == 0) {
+			return;
+		}
+		double scale = 1.0 / buffer.gradientCount;
+		double[] gradients = buffer.gradients;
+		optimizer.beginStep();
+		for (int ixNapse = 0 ; ixNapse < weights.length ; ixNapse++) {
+			weights[ixNapse] += optimizer.delta(ixNapse, scale * gradients[ixNapse], eta);
+		}
+		buffer.clearGradients();
+	}
+
+	/**
+	 * Classifies a batch of instances, backpropagates their errors, and makes one weight update from the mean gradient.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param from index of first instance in batch.
+	 * @param to index after last instance in batch.
+	 * @param buffer batch buffer with capacity of at least to - from.
+	 * @param stats accumulates the errors of each instance, may be null.
+	 */
+	public void backpropagateBatch(double[][] inputs, double[][] targetOutputs, int from, int to, BatchBuffer buffer, ErrorStats stats) {
+		accumulateGradients(inputs, targetOutputs, from, to, buffer, stats);
+		applyGradients(buffer);
+	}
+
+	/**
+	 * Adds each napse's weight times its inbound node row to its outbound node row, for napses leaving a range of nodes.
+	 * Over a batch this is the product of the weight matrix and the inbound layer's output matrix.
+	 * @param fromNode first inbound node.
+	 * @param toNode node after last inbound node.
+	 * @param rows node rows.
+	 * @param capacity row stride.
+	 * @param size number of columns in use.
+	 */
+	private void multiplyWeights(int fromNode, int toNode, double[] rows, int capacity, int size) {
+		for (int ixNode = fromNode ; ixNode < toNode ; ixNode++) {
+			int row = ixNode * capacity;
+			for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+				kernels.axpy(weights[ixNapse], rows, row, rows, napseTargets[ixNapse] * capacity, size);
+			}
+		}
+	}
+
+	/**
+	 * Apply sigmoid function to a range of node rows.
+	 * @param rows node rows.
+	 * @param fromNode first node.
+	 * @param toNode node after last node.
+	 * @param capacity row stride.
+	 * @param size number of columns in use.
+	 */
+	private void sigmoid(double[] rows, int fromNode, int toNode, int capacity, int size) {
+		for (int ixNode = fromNode ; ixNode < toNode ; ixNode++) {
+			int row = ixNode * capacity;
+			for (int ix = row ; ix < row + size ; ix++) {
+				rows[ix] = sigmoid.apply(rows[ix]);
+			}
+		}
+	}
+
+	/**
+	 * Adds a node's weight-factored value to the values of its outbound nodes.
+	 * @param ixNode inbound node.
+	 * @param value inbound node value.
+	 */
+	private void addWeighted(int ixNode, double value) {
+		int from = napseOffsets[ixNode];
+		int to = napseOffsets[ixNode+1];
+		if (contiguous[ixNode] && from < to) {
+			kernels.axpy(value, weights, from, outputs, napseTargets[from], to - from);
+			return;
+		}
+		for (int ixNapse = from ; ixNapse < to ; ixNapse++) {
+			// Add weight-factored input to node value.
+			outputs[napseTargets[ixNapse]] += value * weights[ixNapse];
+		}
+	}
+
+	/**
+	 * Sums a node's outbound node values factored by napse weights.
+	 * @param ixNode inbound node.
+	 * @param values values by node index.
+	 * @return weighted sum.
+	 */
+	private double sumWeighted(int ixNode, double[] values) {
+		int from = napseOffsets[ixNode];
+		int to = napseOffsets[ixNode+1];
+		if (contiguous[ixNode] && from < to) {
+			return kernels.dot(weights, from, values, napseTargets[from], to - from);
+		}
+		double sum = 0.0;
+		for (int ixNapse = from ; ixNapse < to ; ixNapse++) {
+			sum += weights[ixNapse] * values[napseTargets[ixNapse]];
+		}
+		return sum;
+	}
+
+	/**
+	 * Updates a node's outbound napse weights by the optimizer's change for node value times outbound node error.
+	 * @param ixNode inbound node.
+	 * @param value inbound node value.
+	 * @param nodeErrors errors by node index.
+	 */
+	private void updateWeights(int ixNode, double value, double[] nodeErrors) {
+		int from = napseOffsets[ixNode];
+		int to = napseOffsets[ixNode+1];
+		if (contiguous[ixNode] && from < to) {
+			optimizer.updateRun(weights, from, value, nodeErrors, napseTargets[from], to - from, eta, kernels);
+			return;
+		}
+		for (int ixNapse = from ; ixNapse < to ; ixNapse++) {
+			weights[ixNapse] += optimizer.delta(ixNapse, value * nodeErrors[napseTargets[ixNapse]], eta);
+		}
+	}
+
+	/**
+	 * Updates the neighborhood (napse weights) by factor.
+	 * @param updateProb update probability.
+	 * @param weightFactor range to update weight.
+	 */
+	public void updateNeighborhood(double updateProb, double weightFactor) {
+		updateNeighborhood(updateProb, weightFactor, null);
+	}
+
+	/**
+	 * Updates the neighborhood (napse weights) by factor, recording each change so the move can be rolled back.
+	 * With a prune probability, an updated napse is instead disconnected, by setting its weight to exactly 0, with that
+	 * probability, and a disconnected one is reconnected with a weight from the update range with the same probability,
+	 * otherwise left alone. Moves are so reversible and the energy decides how sparse the network settles. Napses still
+	 * disconnected after training are removed from the object graph by NeuralNetwork.pruneZeroWeights.
+	 * @param updateProb update probability.
+	 * @param weightFactor range to update weight.
+	 * @param undoLog records former weights, may be null.
+	 */
+	public void updateNeighborhood(double updateProb, double weightFactor, UndoLog undoLog) {
+		// Draw only the napses to update, skipping over the rest. Random numbers are per thread, as replica chains move concurrently.
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int ixNapse = -1;
+		while (true) {
+			int skip = skipNapses(updateProb);
+			if (skip >= weights.length - 1 - ixNapse) {
+				break;
+			}
+			ixNapse += 1 + skip;
+			boolean disconnected = pruneProb > 0.0 && weights[ixNapse] == 0.0;
+			boolean toggle = pruneProb > 0.0 && random.nextDouble() < pruneProb;
+			if (disconnected && !toggle) {
+				continue;
+			}
+			if (undoLog != null) {
+				undoLog.record(ixNapse, weights[ixNapse]);
+			}
+			if (toggle && !disconnected) {
+				// Disconnect napse.
+				weights[ixNapse] = 0.0;
+				continue;
+			}
+			// Update napse weight, reconnecting a disconnected napse.
+			weights[ixNapse] = weights[ixNapse] + 2 * weightFactor * random.nextDouble() - weightFactor;
+		}
+	}
+
+	/**
+	 * Draw the number of napses to pass over before the next one updated, when each is updated independently with updateProb.
+	 * The gap is geometrically distributed, so sampling it costs one random number per updated napse rather than one per napse.
+	 * @param updateProb update probability.
+	 * @return napses to skip, Integer.MAX_VALUE for none updated.
+	 */
+	static int skipNapses(double updateProb) {
+		if (updateProb <= 0.0) {
+			return Integer.MAX_VALUE;
+		}
+		if (updateProb >= 1.0) {
+			return 0;
+		}
+		double skip = Math.floor(Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) / Math.log(1.0 - updateProb));
+		return (skip < Integer.MAX_VALUE) ? (int)skip : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Undo the weight changes recorded since the log was last committed.
+	 * @param undoLog records former weights.
+	 */
+	public void rollback(UndoLog undoLog) {
+		undoLog.rollback(weights);
+	}
+
+	/**
+	 * Copy weights, node outputs and errors back into a neural network with the topology this was compiled from.
+	 * @param neuralNetwork target neural network.
+	 */
+	public void exportTo(NeuralNetwork neuralNetwork) {
+		List<Node> nodes = new ArrayList<Node>(numNodes);
+		nodes.addAll(neuralNetwork.getInputNodes());
+		nodes.addAll(neuralNetwork.getHiddenNodes());
+		nodes.addAll(neuralNetwork.getOutputNodes());
+		if (nodes.size() != numNodes) {
+			throw new IllegalArgumentException("Neural network has " + nodes.size() + " nodes, expected " + numNodes);
+		}
+
+		int ixNapse = 0;
+		for (int ixNode = 0 ; ixNode < numNodes ; ixNode++) {
+			Node node = nodes.get(ixNode);
+			node.setOutput(outputs[ixNode]);
+			node.setError(errors[ixNode]);
+			if (ixNode < outputOffset) {
+				for (Napse napse : node.getOutputNapses()) {
+					napse.setWeight(weights[ixNapse++]);
+				}
+			}
+		}
+		if (ixNapse != weights.length) {
+			throw new IllegalArgumentException("Neural network has " + ixNapse + " napses, expected " + weights.length);
+		}
+	}
+
+	/**
+	 * Build a new node & napse object graph from this.
+	 * @return neural network.
+	 */
+	public NeuralNetwork toNeuralNetwork() {
+		NeuralNetwork neuralNetwork = new NeuralNetwork(eta, momentum);
+		List<Node> nodes = new ArrayList<Node>(numNodes);
+
+		List<InputNode> inputNodes = new ArrayList<InputNode>(numInputNodes);
+		for (int ixNode = 0 ; ixNode < hiddenOffset ; ixNode++) {
+			InputNode inputNode = new InputNode(outputs[ixNode], bias[ixNode]);
+			inputNodes.add(inputNode);
+			nodes.add(inputNode);
+		}
+
+		List<HiddenNode> hiddenNodes = new ArrayList<HiddenNode>(numHiddenNodes);
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			HiddenNode hiddenNode = new HiddenNode(outputs[ixNode], bias[ixNode]);
+			hiddenNodes.add(hiddenNode);
+			nodes.add(hiddenNode);
+		}
+
+		List<OutputNode> outputNodes = new ArrayList<OutputNode>(numOutputNodes);
+		for (int ixOutput = 0 ; ixOutput < numOutputNodes ; ixOutput++) {
+			int ixNode = outputOffset + ixOutput;
+			OutputNode outputNode = factored[ixOutput] ? new FactoredOutputNode(factors[ixOutput], bias[ixNode]) : new OutputNode(bias[ixNode]);
+			outputNode.setOutput(outputs[ixNode]);
+			outputNodes.add(outputNode);
+			nodes.add(outputNode);
+		}
+
+		// Connect napses to both of their ends.
+		for (int ixNode = 0 ; ixNode < outputOffset ; ixNode++) {
+			Node inNode = nodes.get(ixNode);
+			for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+				Node outNode = nodes.get(napseTargets[ixNapse]);
+				Napse napse = new Napse(inNode, outNode, weights[ixNapse]);
+				inNode.getOutputNapses().add(napse);
+				outNode.getInputNapses().add(napse);
+			}
+		}
+		for (int ixNode = 0 ; ixNode < numNodes ; ixNode++) {
+			nodes.get(ixNode).setError(errors[ixNode]);
+		}
+
+		neuralNetwork.setInputNodes(inputNodes);
+		neuralNetwork.setHiddenNodes(hiddenNodes);
+		neuralNetwork.setOutputNodes(outputNodes);
+
+		return neuralNetwork;
+	}
+
+	/**
+	 * @param other flat neural network.
+	 * @return true if other has the same nodes, output factors & napses, whatever their weights.
+	 */
+	public boolean hasSameTopology(FlatNeuralNetwork other) {
+		return numInputNodes == other.numInputNodes && numHiddenNodes == other.numHiddenNodes && numOutputNodes == other.numOutputNodes
+				&& Arrays.equals(bias, other.bias) && Arrays.equals(factored, other.factored) && Arrays.equals(factors, other.factors)
+				&& Arrays.equals(napseOffsets, other.napseOffsets) && Arrays.equals(napseTargets, other.napseTargets);
+	}
+
+	/**
+	 * @return the bytes writeTo() writes.
+	 */
+	public int getSerializedSize() {
+		return 4 * 4 + 3 * 8 + numNodes + numOutputNodes + 8 * numOutputNodes + 4 * napseOffsets.length + 4 * napseTargets.length + 8 * weights.length + 16 * numNodes;
+	}
+
+	/**
+	 * Write topology, weights & node state as bulk arrays: node & napse counts, eta, momentum & prune probability, bias
+	 * flags, factored flags & output factors, napse offsets & targets, then weights, node outputs & node errors.
+	 * @param buffer buffer to write to, at its position, of getSerializedSize() bytes remaining.
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putInt(numInputNodes).putInt(numHiddenNodes).putInt(numOutputNodes).putInt(weights.length);
+		buffer.putDouble(eta).putDouble(momentum).putDouble(pruneProb);
+		for (boolean flag : bias) {
+			buffer.put((byte)(flag ? 1 : 0));
+		}
+		for (boolean flag : factored) {
+			buffer.put((byte)(flag ? 1 : 0));
+		}
+		Checkpoint.putDoubles(buffer, factors);
+		Checkpoint.putInts(buffer, napseOffsets);
+		Checkpoint.putInts(buffer, napseTargets);
+		Checkpoint.putDoubles(buffer, weights);
+		Checkpoint.putDoubles(buffer, outputs);
+		Checkpoint.putDoubles(buffer, errors);
+	}
+
+	/**
+	 * Read a flat neural network written by writeTo(), checking its napses are well formed.
+	 * @param buffer buffer to read from, at its position.
+	 * @return flat neural network, with default optimizer.
+	 * @throws IOException if the napse layout is invalid.
+	 * @throws BufferUnderflowException if the buffer ends first.
+	 */
+	public static FlatNeuralNetwork readFrom(ByteBuffer buffer) throws IOException {
+		int numInputNodes = buffer.getInt();
+		int numHiddenNodes = buffer.getInt();
+		int numOutputNodes = buffer.getInt();
+		int numNapses = buffer.getInt();
+		if (numInputNodes < 1 || numHiddenNodes < 0 || numOutputNodes < 1 || numNapses < 0
+			|| (long)numInputNodes + numHiddenNodes + numOutputNodes + numNapses > buffer.remaining()) {
+			throw new IOException("Invalid network size: " + numInputNodes + " input, " + numHiddenNodes + " hidden & " + numOutputNodes + " output nodes, " + numNapses + " napses");
+		}
+		double eta = buffer.getDouble();
+		double momentum = buffer.getDouble();
+		double pruneProb = buffer.getDouble();
+		int numNodes = numInputNodes + numHiddenNodes + numOutputNodes;
+		boolean[] bias = new boolean[numNodes];
+		for (int ixNode = 0 ; ixNode < numNodes ; ixNode++) {
+			bias[ixNode] = buffer.get() != 0;
+		}
+		boolean[] factored = new boolean[numOutputNodes];
+		for (int ixOutput = 0 ; ixOutput < numOutputNodes ; ixOutput++) {
+			factored[ixOutput] = buffer.get() != 0;
+		}
+		double[] factors = Checkpoint.getDoubles(buffer, numOutputNodes);
+		int[] napseOffsets = Checkpoint.getInts(buffer, numInputNodes + numHiddenNodes + 1);
+		int[] napseTargets = Checkpoint.getInts(buffer, numNapses);
+
+		// Napses must run in order from each input & hidden node, to hidden or output nodes.
+		if (napseOffsets[0] != 0 || napseOffsets[napseOffsets.length - 1] != numNapses) {
+			throw new IOException("Invalid napse offsets");
+		}
+		for (int ixNode = 0 ; ixNode < napseOffsets.length - 1 ; ixNode++) {
+			if (napseOffsets[ixNode + 1] < napseOffsets[ixNode]) {
+				throw new IOException("Invalid napse offsets");
+			}
+		}
+		for (int target : napseTargets) {
+			if (target < numInputNodes || target >= numNodes) {
+				throw new IOException("Invalid napse target: " + target);
+			}
+		}
+		double[] weights = Checkpoint.getDoubles(buffer, numNapses);
+		double[] outputs = Checkpoint.getDoubles(buffer, numNodes);
+		double[] errors = Checkpoint.getDoubles(buffer, numNodes);
+		return new FlatNeuralNetwork(eta, momentum, pruneProb, numInputNodes, numHiddenNodes, numOutputNodes, bias, factored, factors, napseOffsets, napseTargets, weights, outputs, errors);
+	}
+
+	/**
+	 * Clone the weights & node state, sharing the topology.
+	 * @return flat neural network clone.
+	 */
+	@Override
+	public FlatNeuralNetwork clone() {
+		return new FlatNeuralNetwork(this);
+	}
+
+}
@@ -0,0 +1,316 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import com.sackett.reify.nn.NeuralNetwork.ClassifyOutput;
+
+/**
+ * This is a single precision (float32) copy of a flat neural network, for training at half the memory of weights,
+ * activations & dataset, with twice the lanes per vector kernel. It shares the flat network's topology arrays and
+ * follows the same classification & backpropagation steps, computing in float throughout except the reported errors,
+ * which are summed in double, and the exponential of the exact sigmoid, which is rounded to float from Math.exp.
+ * Weights are copied back into the flat network with exportTo, so the result can be compared in double precision.
+ * @author Joseph Sackett
+ */
+public class FloatNeuralNetwork {
+	/** Weight adjustment coefficient. */
+	private float eta;
+
+	/** Weight update rule, holding per napse state. */
+	private Optimizer optimizer;
+
+	/** Number of output nodes, including unused node at index 0. */
+	private int numOutputNodes;
+
+	/** Index of first hidden node. */
+	private int hiddenOffset;
+
+	/** Index of first output node. */
+	private int outputOffset;
+
+	/** Total number of nodes. */
+	private int numNodes;
+
+	/** Bias node flags. */
+	private boolean[] bias;
+
+	/** Output factors, 1 for unfactored outputs. */
+	private float[] factors;
+
+	/** Start of each inbound node's napses, with end marker. */
+	private int[] napseOffsets;
+
+	/** Outbound node index of each napse. */
+	private int[] napseTargets;
+
+	/** Flags, by inbound node, indicating its napses lead to consecutive nodes in order. */
+	private boolean[] contiguous;
+
+	/** Array kernels of inner loops. */
+	private Kernels kernels;
+
+	/** Sigmoid activation function. */
+	private Sigmoid sigmoid;
+
+	/** Napse weights. */
+	private float[] weights;
+
+	/** Node outputs (NETs before the sigmoid is applied). */
+	private float[] outputs;
+
+	/** Node errors. */
+	private float[] errors;
+
+	/**
+	 * Copy a flat neural network into single precision.
+	 * @param flatNeuralNetwork source flat neural network, whose optimizer state is copied.
+	 */
+	public FloatNeuralNetwork(FlatNeuralNetwork flatNeuralNetwork) {
+		this.eta = (float)flatNeuralNetwork.getEta();
+		this.optimizer = flatNeuralNetwork.getOptimizer().copy();
+		this.numOutputNodes = flatNeuralNetwork.getNumOutputNodes();
+		this.hiddenOffset = flatNeuralNetwork.getHiddenOffset();
+		this.outputOffset = flatNeuralNetwork.getOutputOffset();
+		this.numNodes = flatNeuralNetwork.getNumNodes();
+		this.bias = flatNeuralNetwork.getBias();
+		this.factors = toFloat(flatNeuralNetwork.getFactors());
+		this.napseOffsets = flatNeuralNetwork.getNapseOffsets();
+		this.napseTargets = flatNeuralNetwork.getNapseTargets();
+		this.contiguous = flatNeuralNetwork.getContiguous();
+		this.kernels = Kernels.get();
+		this.sigmoid = flatNeuralNetwork.getSigmoid();
+		this.weights = toFloat(flatNeuralNetwork.getWeights());
+		this.outputs = toFloat(flatNeuralNetwork.getNodeOutputs());
+		this.errors = toFloat(flatNeuralNetwork.getNodeErrors());
+	}
+
+	/**
+	 * Initializes the input values and classifies the instance by calculating all node values, including outputs and errors.
+	 * @param inputs array of input values.
+	 * @param targetOutputs array of target output values.
+	 * @return actual output values & errors.
+	 */
+	public ClassifyOutput classify(float[] inputs, float[] targetOutputs) {
+		// Set input node values (excluding bias node).
+		for (int ixInput = 0 ; ixInput < inputs.length ; ixInput++) {
+			outputs[ixInput+1] = inputs[ixInput];
+		}
+		// Clear values of hidden nodes (excluding bias nodes).
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			if (!bias[ixNode]) {
+				outputs[ixNode] = 0.0f;
+			}
+		}
+		// Clear output node values.
+		for (int ixNode = outputOffset ; ixNode < numNodes ; ixNode++) {
+			outputs[ixNode] = 0.0f;
+		}
+
+		// Calculate hidden node NETs.
+		for (int ixNode = 0 ; ixNode < hiddenOffset ; ixNode++) {
+			addWeighted(ixNode, outputs[ixNode]);
+		}
+
+		// Apply sigmoid function to hidden node NETs.
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			outputs[ixNode] = sigmoid.apply(outputs[ixNode]);
+		}
+
+		// Calculate output node NETs.
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			addWeighted(ixNode, outputs[ixNode]);
+		}
+
+		// Error square sum for root mean square error calculations.
+		double sumErrorsSqu = 0.0;
+		// Number of discrete classification errors.
+		long sumDiscreteErrors = 0;
+
+		double[] actualOutputs = new double[numOutputNodes-1];
+		// Apply sigmoid function to output node NETs, skipping dummy bias node.
+		for (int ix = 0 ; ix < actualOutputs.length ; ix++) {
+			int ixNode = outputOffset + ix + 1;
+			// Apply sigmoid function to accumulated NETs.
+			outputs[ixNode] = sigmoid.apply(outputs[ixNode]);
+			// Store factored output for return.
+			actualOutputs[ix] = outputs[ixNode] * factors[ix+1];
+
+			// Accumulate square of error.
+			double error = targetOutputs[ix] - actualOutputs[ix];
+			sumErrorsSqu += error * error;
+
+			// Accumulate discrete errors.
+			long discreteError = Math.abs((long)targetOutputs[ix] - Math.round(actualOutputs[ix]));
+			sumDiscreteErrors += (discreteError > 0) ? 1 : 0;
+		}
+
+		// Calculate root mean square error.
+		double rmsError = Math.sqrt(sumErrorsSqu / (double)targetOutputs.length);
+		// Calculate classification error.
+		double classError = (double)sumDiscreteErrors / (double)targetOutputs.length;
+
+		return new ClassifyOutput(actualOutputs, rmsError, classError);
+	}
+
+	/**
+	 * Classifies inputs, backpropagates errors based on expected outputs, and updates weights.
+	 * @param inputs array of input values.
+	 * @param targetOutputs array of target output values.
+	 * @return classification of inputs before the weight update, with its errors.
+	 */
+	public ClassifyOutput backpropagate(float[] inputs, float[] targetOutputs) {
+		// Classify inputs to set all node outputs.
+		ClassifyOutput classifyOutput = classify(inputs, targetOutputs);
+
+		// Calculate output node errors (excluding bias node).
+		for (int ixOutput = 1 ; ixOutput < numOutputNodes ; ixOutput++) {
+			int ixNode = outputOffset + ixOutput;
+			float factor = factors[ixOutput];
+			float factoredOutput = outputs[ixNode] * factor;
+			errors[ixNode] = factoredOutput * ( factor - factoredOutput ) * ( targetOutputs[ixOutput-1] - factoredOutput );
+		}
+
+		// Calculate hidden node errors (excluding bias nodes). Must be done after calculating downstream errors.
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			if (bias[ixNode]) {
+				continue;
+			}
+			float weightedErrors = sumWeighted(ixNode, errors);
+			float output = outputs[ixNode];
+			errors[ixNode] = output * ( 1 - output ) * weightedErrors;
+		}
+
+		// Loop through and update all napse weights (including bias nodes).
+		optimizer.beginStep();
+		for (int ixNode = 0 ; ixNode < outputOffset ; ixNode++) {
+			updateWeights(ixNode, outputs[ixNode], errors);
+		}
+
+		return classifyOutput;
+	}
+
+	/**
+	 * Adds a node's weight-factored value to the values of its outbound nodes.
+	 * @param ixNode inbound node.
+	 * @param value inbound node value.
+	 */
+	private void addWeighted(int ixNode, float value) {
+		int from = napseOffsets[ixNode];
+		int to = napseOffsets[ixNode+1];
+		if (contiguous[ixNode] && from < to) {
+			kernels.axpy(value, weights, from, outputs, napseTargets[from], to - from);
+			return;
+		}
+		for (int ixNapse = from ; ixNapse < to ; ixNapse++) {
+			// Add weight-factored input to node value.
+			outputs[napseTargets[ixNapse]] += value * weights[ixNapse];
+		}
+	}
+
+	/**
+	 * Sums a node's outbound node values factored by napse weights.
+	 * @param ixNode inbound node.
+	 * @param values values by node index.
+	 * @return weighted sum.
+	 */
+	private float sumWeighted(int ixNode, float[] values) {
+		int from = napseOffsets[ixNode];
+		int to = napseOffsets[ixNode+1];
+		if (contiguous[ixNode] && from < to) {
+			return kernels.dot(weights, from, values, napseTargets[from], to - from);
+		}
+		float sum = 0.0f;
+		for (int ixNapse = from ; ixNapse < to ; ixNapse++) {
+			sum += weights[ixNapse] * values[napseTargets[ixNapse]];
+		}
+		return sum;
+	}
+
+	/**
+	 * Updates a node's outbound napse weights by the optimizer's change for node value times outbound node error.
+	 * @param ixNode inbound node.
+	 * @param value inbound node value.
+	 * @param nodeErrors errors by node index.
+	 */
+	private void updateWeights(int ixNode, float value, float[] nodeErrors) {
+		int from = napseOffsets[ixNode];
+		int to = napseOffsets[ixNode+1];
+		if (contiguous[ixNode] && from < to) {
+			optimizer.updateRun(weights, from, value, nodeErrors, napseTargets[from], to - from, eta, kernels);
+			return;
+		}
+		for (int ixNapse = from ; ixNapse < to ; ixNapse++) {
+			weights[ixNapse] += (float)optimizer.delta(ixNapse, value * nodeErrors[napseTargets[ixNapse]], eta);
+		}
+	}
+
+	/**
+	 * Copy weights, node outputs and errors back into the flat neural network this was copied from, widening them to double.
+	 * @param flatNeuralNetwork target flat neural network.
+	 */
+	public void exportTo(FlatNeuralNetwork flatNeuralNetwork) {
+		double[] targetWeights = flatNeuralNetwork.getWeights();
+		if (targetWeights.length != weights.length) {
+			throw new IllegalArgumentException("Neural network has " + targetWeights.length + " napses, expected " + weights.length);
+		}
+		for (int ixNapse = 0 ; ixNapse < weights.length ; ixNapse++) {
+			targetWeights[ixNapse] = weights[ixNapse];
+		}
+		double[] targetOutputs = flatNeuralNetwork.getNodeOutputs();
+		double[] targetErrors = flatNeuralNetwork.getNodeErrors();
+		for (int ixNode = 0 ; ixNode < numNodes ; ixNode++) {
+			targetOutputs[ixNode] = outputs[ixNode];
+			targetErrors[ixNode] = errors[ixNode];
+		}
+		flatNeuralNetwork.setOptimizer(optimizer);
+	}
+
+	/**
+	 * @return bytes held in weights, node outputs & errors.
+	 */
+	public long getMemoryBytes() {
+		return 4L * (weights.length + outputs.length + errors.length);
+	}
+
+	/**
+	 * Round values to single precision.
+	 * @param values double precision values.
+	 * @return float values.
+	 */
+	public static float[] toFloat(double[] values) {
+		float[] floats = new float[values.length];
+		for (int ix = 0 ; ix < values.length ; ix++) {
+			floats[ix] = (float)values[ix];
+		}
+		return floats;
+	}
+
+	/**
+	 * Round a dataset to single precision.
+	 * @param values double precision rows.
+	 * @return float rows.
+	 */
+	public static float[][] toFloat(double[][] values) {
+		float[][] floats = new float[values.length][];
+		for (int ix = 0 ; ix < values.length ; ix++) {
+			floats[ix] = toFloat(values[ix]);
+		}
+		return floats;
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This trains a flat neural network by asynchronous (Hogwild style) backpropagation.
+ * Worker threads each take every n-th training instance and update the shared weights after every instance,
+ * without locks. Concurrent updates to the same weight may be lost, which is tolerated in exchange for
+ * no synchronization between workers. Results therefore vary from run to run.
+ * @author Joseph Sackett
+ */
+public class HogwildTrainer {
+	/** Neural network being trained. */
+	private FlatNeuralNetwork neuralNetwork;
+
+	/** Pool executing workers. */
+	private ForkJoinPool pool;
+
+	/** Node values of each worker. */
+	private BatchBuffer[] workerBuffers;
+
+	/** Errors of each worker. */
+	private ErrorStats[] workerStats;
+
+	/**
+	 * @param neuralNetwork neural network to train.
+	 * @param pool pool executing workers.
+	 * @param numWorkers number of workers.
+	 */
+	public HogwildTrainer(FlatNeuralNetwork neuralNetwork, ForkJoinPool pool, int numWorkers) {
+		this.neuralNetwork = neuralNetwork;
+		this.pool = pool;
+		workerBuffers = new BatchBuffer[numWorkers];
+		workerStats = new ErrorStats[numWorkers];
+		for (int ixWorker = 0 ; ixWorker < numWorkers ; ixWorker++) {
+			workerBuffers[ixWorker] = neuralNetwork.createBatchBuffer(1);
+			workerStats[ixWorker] = new ErrorStats();
+		}
+	}
+
+	/**
+	 * Train one epoch, each worker updating the weights after every instance.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param stats accumulates the errors of each instance.
+	 */
+	public void trainEpoch(double[][] inputs, double[][] targetOutputs, ErrorStats stats) {
+		List<WorkerTask> tasks = new ArrayList<WorkerTask>(workerBuffers.length);
+		for (int ixWorker = 0 ; ixWorker < workerBuffers.length ; ixWorker++) {
+			tasks.add(new WorkerTask(inputs, targetOutputs, ixWorker));
+		}
+		pool.invoke(new EpochTask(tasks));
+
+		for (ErrorStats workerStat : workerStats) {
+			if (stats != null) {
+				stats.add(workerStat);
+			}
+			workerStat.clear();
+		}
+	}
+
+	/** Forks all workers of an epoch and waits for them. */
+	private static class EpochTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** Workers of epoch. */
+		private List<WorkerTask> tasks;
+
+		EpochTask(List<WorkerTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/** Trains every n-th instance, starting at the worker's index. */
+	private class WorkerTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private double[][] inputs;
+		private double[][] targetOutputs;
+		private int ixWorker;
+
+		WorkerTask(double[][] inputs, double[][] targetOutputs, int ixWorker) {
+			this.inputs = inputs;
+			this.targetOutputs = targetOutputs;
+			this.ixWorker = ixWorker;
+		}
+
+		@Override
+		protected void compute() {
+			BatchBuffer buffer = workerBuffers[ixWorker];
+			ErrorStats stats = workerStats[ixWorker];
+			for (int ixInstance = ixWorker ; ixInstance < inputs.length ; ixInstance += workerBuffers.length) {
+				neuralNetwork.backpropagateShared(inputs, targetOutputs, ixInstance, buffer, stats);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,510 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.Arrays;
+import com.sackett.reify.nn.NeuralNetwork.ClassifyOutput;
+
+/**
+ * This evaluates simulated annealing moves incrementally from cached per-instance node values.
+ * For every training instance it caches each hidden node's NET from input napses, its NET from hidden napses,
+ * its output (sigmoid of the first plus the second, as classify calculates it), each output node's NET and output,
+ * and the instance's errors. A move only changes some weights, so evaluating it applies just those weight deltas,
+ * recalculates the sigmoids of the nodes they reach and rescores instances whose outputs changed.
+ * Every cache change is journaled so a rejected move is rolled back in place.
+ * The cache is rebuilt from scratch periodically to drop accumulated rounding.
+ * Hidden bias node outputs are settled at the sigmoid's fixed point first, where classify keeps them, so cached
+ * values match full classification; measureMaxDifference checks this.
+ * @author Joseph Sackett
+ */
+public class IncrementalEvaluator {
+	/** Number of accepted moves between full cache rebuilds. */
+	private static final int REBUILD_INTERVAL = 1000;
+
+	/** Input values of all instances. */
+	private double[][] inputs;
+
+	/** Target output values of all instances. */
+	private double[][] targetOutputs;
+
+	/** Index of first hidden node. */
+	private int hiddenOffset;
+
+	/** Index of first output node. */
+	private int outputOffset;
+
+	/** Bias node flags, by node index. */
+	private boolean[] bias;
+
+	/** Output factors, by output node number. */
+	private double[] factors;
+
+	/** Start of each input & hidden node's napses, with end marker. */
+	private int[] napseOffsets;
+
+	/** Outbound node index of each napse. */
+	private int[] napseTargets;
+
+	/** Inbound node index of each napse. */
+	private int[] napseSources;
+
+	/** Sigmoid activation function of network. */
+	private Sigmoid sigmoid;
+
+	/** Node outputs of network, supplying bias node values. */
+	private double[] nodeOutputs;
+
+	/** Weights the cache was calculated with. */
+	private double[] cachedWeights;
+
+	/** Cached values of all instances, stride values per instance. */
+	private double[] cache;
+
+	/** Number of cached values per instance. */
+	private int stride;
+
+	/** Offsets within an instance's cached values. */
+	private int inputNetOffset, hiddenNetOffset, hiddenValueOffset, outputNetOffset, outputValueOffset, rmsErrorOffset, classErrorOffset;
+
+	/** Journal of cache positions changed by pending move. */
+	private int[] journalPositions = new int[256];
+
+	/** Journal of former cache values. */
+	private double[] journalValues = new double[256];
+
+	/** Number of journal entries. */
+	private int journalSize;
+
+	/** Changed napse indexes of pending move, ascending. */
+	private int[] moveNapses = new int[16];
+
+	/** Number of changed napses. */
+	private int numMoveNapses;
+
+	/** Number of changed napses from input nodes (at the start of moveNapses). */
+	private int numInputMoveNapses;
+
+	/** Hidden nodes visited by pending move, ascending. */
+	private int[] moveNodes;
+
+	/** Number of hidden nodes visited by pending move. */
+	private int numMoveNodes;
+
+	/** Start of each visited hidden node's changed napses in moveNapses, with end marker. */
+	private int[] moveNodeNapses;
+
+	/** Output nodes reachable by pending move. */
+	private int[] moveOutputs;
+
+	/** Number of output nodes reachable by pending move. */
+	private int numMoveOutputs;
+
+	/** Node flags marking reach of pending move. */
+	private boolean[] reached;
+
+	/** Instance stamp marking nodes changed for current instance. */
+	private int[] dirtyStamps;
+
+	/** Current instance stamp. */
+	private int stamp;
+
+	/** Accepted moves since last cache rebuild. */
+	private int numAccepted;
+
+	/**
+	 * Build the cache for all instances.
+	 * @param neuralNetwork neural network to evaluate.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @throws IllegalArgumentException if hidden napses lead backward or bias nodes have inbound napses.
+	 */
+	public IncrementalEvaluator(FlatNeuralNetwork neuralNetwork, double[][] inputs, double[][] targetOutputs) {
+		this.inputs = inputs;
+		this.targetOutputs = targetOutputs;
+		hiddenOffset = neuralNetwork.getHiddenOffset();
+		outputOffset = neuralNetwork.getOutputOffset();
+		bias = neuralNetwork.getBias();
+		factors = neuralNetwork.getFactors();
+		napseOffsets = neuralNetwork.getNapseOffsets();
+		napseTargets = neuralNetwork.getNapseTargets();
+		sigmoid = neuralNetwork.getSigmoid();
+		int numNodes = neuralNetwork.getNumNodes();
+
+		// Resolve inbound node of each napse and check the network is feed-forward in node order.
+		napseSources = new int[napseTargets.length];
+		for (int ixNode = 0 ; ixNode < outputOffset ; ixNode++) {
+			for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+				napseSources[ixNapse] = ixNode;
+				int ixTarget = napseTargets[ixNapse];
+				if (ixTarget <= ixNode || (ixNode >= hiddenOffset && ixTarget < hiddenOffset)) {
+					throw new IllegalArgumentException("Incremental evaluation requires napses to lead forward in node order");
+				}
+				if (bias[ixTarget]) {
+					throw new IllegalArgumentException("Incremental evaluation requires bias nodes without inbound napses");
+				}
+			}
+		}
+
+		// Lay out cached values of an instance.
+		int numHidden = outputOffset - hiddenOffset;
+		int numOutput = numNodes - outputOffset;
+		inputNetOffset = 0;
+		hiddenNetOffset = inputNetOffset + numHidden;
+		hiddenValueOffset = hiddenNetOffset + numHidden;
+		outputNetOffset = hiddenValueOffset + numHidden;
+		outputValueOffset = outputNetOffset + numOutput;
+		rmsErrorOffset = outputValueOffset + numOutput;
+		classErrorOffset = rmsErrorOffset + 1;
+		stride = classErrorOffset + 1;
+		cache = new double[inputs.length * stride];
+
+		moveNodes = new int[numHidden];
+		moveNodeNapses = new int[numHidden + 1];
+		moveOutputs = new int[numOutput];
+		reached = new boolean[numNodes];
+		dirtyStamps = new int[numNodes];
+
+		rebuild(neuralNetwork);
+	}
+
+	/**
+	 * Recalculate the cache of all instances from the network's current weights, discarding any pending move.
+	 * @param neuralNetwork neural network to evaluate.
+	 */
+	public void rebuild(FlatNeuralNetwork neuralNetwork) {
+		neuralNetwork.settleBiasOutputs();
+		nodeOutputs = neuralNetwork.getNodeOutputs();
+		cachedWeights = neuralNetwork.getWeights().clone();
+		journalSize = 0;
+		numAccepted = 0;
+
+		Arrays.fill(cache, 0.0);
+		for (int ixInstance = 0 ; ixInstance < inputs.length ; ixInstance++) {
+			int base = ixInstance * stride;
+			// Accumulate NETs from input nodes.
+			for (int ixNode = 0 ; ixNode < hiddenOffset ; ixNode++) {
+				double value = inputValue(ixInstance, ixNode);
+				for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+					cache[inputNapsePosition(base, napseTargets[ixNapse])] += value * cachedWeights[ixNapse];
+				}
+			}
+			// Calculate hidden node outputs in order, accumulating their downstream NETs.
+			for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+				int ixHidden = ixNode - hiddenOffset;
+				double value = bias[ixNode] ? nodeOutputs[ixNode] : sigmoid(cache[base + inputNetOffset + ixHidden]) + cache[base + hiddenNetOffset + ixHidden];
+				cache[base + hiddenValueOffset + ixHidden] = value;
+				for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+					cache[hiddenNapsePosition(base, napseTargets[ixNapse])] += value * cachedWeights[ixNapse];
+				}
+			}
+			// Calculate output node outputs, skipping dummy bias node.
+			for (int ixNode = outputOffset + 1 ; ixNode < nodeOutputs.length ; ixNode++) {
+				int ixOutput = ixNode - outputOffset;
+				cache[base + outputValueOffset + ixOutput] = sigmoid(cache[base + outputNetOffset + ixOutput]);
+			}
+			score(ixInstance, base, false);
+		}
+	}
+
+	/**
+	 * Evaluate the network's pending move, whose changed weights are recorded in the undo log.
+	 * The move must then be accepted or rejected before the next is evaluated.
+	 * @param neuralNetwork neural network with move applied.
+	 * @param undoLog weight changes of move, may be empty.
+	 * @param stats accumulates the errors of each instance.
+	 */
+	public void evaluate(FlatNeuralNetwork neuralNetwork, UndoLog undoLog, ErrorStats stats) {
+		double[] weights = neuralNetwork.getWeights();
+		prepareMove(weights, undoLog);
+
+		for (int ixInstance = 0 ; ixInstance < inputs.length ; ixInstance++) {
+			int base = ixInstance * stride;
+			if (numMoveNapses > 0) {
+				applyMove(weights, ixInstance, base);
+			}
+			stats.add(cache[base + rmsErrorOffset], cache[base + classErrorOffset]);
+		}
+	}
+
+	/**
+	 * Check the cache against full classification. Evaluates the pending move, compares every instance's errors with
+	 * those classify calculates, then discards the move from the cache. With an empty undo log this checks the values
+	 * evaluate reports for the network as it stands.
+	 * @param neuralNetwork neural network with move applied.
+	 * @param undoLog weight changes of move, may be empty.
+	 * @return maximum absolute difference of instance RMS & class errors from classify.
+	 */
+	public double measureMaxDifference(FlatNeuralNetwork neuralNetwork, UndoLog undoLog) {
+		evaluate(neuralNetwork, undoLog, new ErrorStats());
+		double maxDifference = 0.0;
+		for (int ixInstance = 0 ; ixInstance < inputs.length ; ixInstance++) {
+			int base = ixInstance * stride;
+			ClassifyOutput output = neuralNetwork.classify(inputs[ixInstance], targetOutputs[ixInstance]);
+			maxDifference = Math.max(maxDifference, Math.abs(output.getRmsError() - cache[base + rmsErrorOffset]));
+			maxDifference = Math.max(maxDifference, Math.abs(output.getClassError() - cache[base + classErrorOffset]));
+		}
+		reject();
+		return maxDifference;
+	}
+
+	/**
+	 * Keep the evaluated move, rebuilding the cache periodically.
+	 * @param neuralNetwork neural network with move applied.
+	 */
+	public void accept(FlatNeuralNetwork neuralNetwork) {
+		double[] weights = neuralNetwork.getWeights();
+		for (int ix = 0 ; ix < numMoveNapses ; ix++) {
+			cachedWeights[moveNapses[ix]] = weights[moveNapses[ix]];
+		}
+		numMoveNapses = 0;
+		journalSize = 0;
+
+		if (++numAccepted >= REBUILD_INTERVAL) {
+			rebuild(neuralNetwork);
+		}
+	}
+
+	/** Discard the evaluated move, restoring the cache from the journal. */
+	public void reject() {
+		for (int ix = journalSize - 1 ; ix >= 0 ; ix--) {
+			cache[journalPositions[ix]] = journalValues[ix];
+		}
+		numMoveNapses = 0;
+		journalSize = 0;
+	}
+
+	/**
+	 * Collect the changed napses of a move and the nodes they can reach.
+	 * @param weights network weights with move applied.
+	 * @param undoLog weight changes of move.
+	 */
+	private void prepareMove(double[] weights, UndoLog undoLog) {
+		// Collect distinct, actually changed napses in ascending order, which groups them by inbound node.
+		numMoveNapses = 0;
+		for (int ix = 0 ; ix < undoLog.size() ; ix++) {
+			int ixNapse = undoLog.getIndex(ix);
+			if (weights[ixNapse] != cachedWeights[ixNapse]) {
+				if (numMoveNapses == moveNapses.length) {
+					moveNapses = Arrays.copyOf(moveNapses, numMoveNapses * 2);
+				}
+				moveNapses[numMoveNapses++] = ixNapse;
+			}
+		}
+		Arrays.sort(moveNapses, 0, numMoveNapses);
+		int numDistinct = 0;
+		for (int ix = 0 ; ix < numMoveNapses ; ix++) {
+			if (numDistinct == 0 || moveNapses[ix] != moveNapses[numDistinct-1]) {
+				moveNapses[numDistinct++] = moveNapses[ix];
+			}
+		}
+		numMoveNapses = numDistinct;
+
+		// Mark nodes reached by changed input napses.
+		Arrays.fill(reached, false);
+		int ixMove = 0;
+		while (ixMove < numMoveNapses && napseSources[moveNapses[ixMove]] < hiddenOffset) {
+			reached[napseTargets[moveNapses[ixMove]]] = true;
+			ixMove++;
+		}
+		numInputMoveNapses = ixMove;
+
+		// Visit hidden nodes in order: reached nodes pass the move on through all their napses, others through their changed napses.
+		numMoveNodes = 0;
+		for (int ixNode = hiddenOffset ; ixNode < outputOffset ; ixNode++) {
+			int moveStart = ixMove;
+			while (ixMove < numMoveNapses && napseSources[moveNapses[ixMove]] == ixNode) {
+				ixMove++;
+			}
+			if (!reached[ixNode] && moveStart == ixMove) {
+				continue;
+			}
+			moveNodes[numMoveNodes] = ixNode;
+			moveNodeNapses[numMoveNodes] = moveStart;
+			numMoveNodes++;
+			if (reached[ixNode]) {
+				for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+					reached[napseTargets[ixNapse]] = true;
+				}
+			}
+			else {
+				for (int ix = moveStart ; ix < ixMove ; ix++) {
+					reached[napseTargets[moveNapses[ix]]] = true;
+				}
+			}
+		}
+		moveNodeNapses[numMoveNodes] = ixMove;
+
+		// Collect reached output nodes.
+		numMoveOutputs = 0;
+		for (int ixNode = outputOffset ; ixNode < reached.length ; ixNode++) {
+			if (reached[ixNode]) {
+				moveOutputs[numMoveOutputs++] = ixNode;
+			}
+		}
+	}
+
+	/**
+	 * Apply the pending move to one instance's cache, rescoring it if any output changed.
+	 * @param weights network weights with move applied.
+	 * @param ixInstance instance index.
+	 * @param base start of instance's cached values.
+	 */
+	private void applyMove(double[] weights, int ixInstance, int base) {
+		stamp++;
+
+		// Apply changed input napse weights to NETs.
+		for (int ix = 0 ; ix < numInputMoveNapses ; ix++) {
+			int ixNapse = moveNapses[ix];
+			double value = inputValue(ixInstance, napseSources[ixNapse]);
+			if (value != 0.0) {
+				int ixTarget = napseTargets[ixNapse];
+				int position = inputNapsePosition(base, ixTarget);
+				set(position, cache[position] + value * (weights[ixNapse] - cachedWeights[ixNapse]));
+				dirtyStamps[ixTarget] = stamp;
+			}
+		}
+
+		// Recalculate visited hidden nodes in order, passing changes downstream.
+		for (int ixMoveNode = 0 ; ixMoveNode < numMoveNodes ; ixMoveNode++) {
+			int ixNode = moveNodes[ixMoveNode];
+			int ixHidden = ixNode - hiddenOffset;
+			int valuePosition = base + hiddenValueOffset + ixHidden;
+			double oldValue = cache[valuePosition];
+			double newValue = oldValue;
+			if (dirtyStamps[ixNode] == stamp) {
+				newValue = sigmoid(cache[base + inputNetOffset + ixHidden]) + cache[base + hiddenNetOffset + ixHidden];
+			}
+			if (newValue != oldValue) {
+				// Output changed, so every downstream NET changes.
+				set(valuePosition, newValue);
+				for (int ixNapse = napseOffsets[ixNode] ; ixNapse < napseOffsets[ixNode+1] ; ixNapse++) {
+					addHiddenNapse(base, napseTargets[ixNapse], newValue * weights[ixNapse] - oldValue * cachedWeights[ixNapse]);
+				}
+			}
+			else {
+				// Output unchanged, so only changed napses alter downstream NETs.
+				for (int ix = moveNodeNapses[ixMoveNode] ; ix < moveNodeNapses[ixMoveNode+1] ; ix++) {
+					int ixNapse = moveNapses[ix];
+					addHiddenNapse(base, napseTargets[ixNapse], oldValue * (weights[ixNapse] - cachedWeights[ixNapse]));
+				}
+			}
+		}
+
+		// Recalculate changed output nodes.
+		boolean outputChanged = false;
+		for (int ix = 0 ; ix < numMoveOutputs ; ix++) {
+			int ixNode = moveOutputs[ix];
+			if (dirtyStamps[ixNode] == stamp) {
+				int ixOutput = ixNode - outputOffset;
+				set(base + outputValueOffset + ixOutput, sigmoid(cache[base + outputNetOffset + ixOutput]));
+				outputChanged = true;
+			}
+		}
+		if (outputChanged) {
+			score(ixInstance, base, true);
+		}
+	}
+
+	/**
+	 * Add a hidden node's napse contribution change to its outbound node's NET.
+	 * @param base start of instance's cached values.
+	 * @param ixTarget outbound node.
+	 * @param change contribution change.
+	 */
+	private void addHiddenNapse(int base, int ixTarget, double change) {
+		if (change != 0.0) {
+			int position = hiddenNapsePosition(base, ixTarget);
+			set(position, cache[position] + change);
+			dirtyStamps[ixTarget] = stamp;
+		}
+	}
+
+	/**
+	 * Calculate an instance's errors from its cached outputs.
+	 * @param ixInstance instance index.
+	 * @param base start of instance's cached values.
+	 * @param journal flag to journal the change.
+	 */
+	private void score(int ixInstance, int base, boolean journal) {
+		double[] instanceTargets = targetOutputs[ixInstance];
+		double sumErrorsSqu = 0.0;
+		long sumDiscreteErrors = 0;
+		for (int ix = 0 ; ix < instanceTargets.length ; ix++) {
+			double actualOutput = cache[base + outputValueOffset + ix + 1] * factors[ix+1];
+			double error = instanceTargets[ix] - actualOutput;
+			sumErrorsSqu += error * error;
+			long discreteError = Math.abs((long)instanceTargets[ix] - Math.round(actualOutput));
+			sumDiscreteErrors += (discreteError > 0) ? 1 : 0;
+		}
+		double rmsError = Math.sqrt(sumErrorsSqu / (double)instanceTargets.length);
+		double classError = (double)sumDiscreteErrors / (double)instanceTargets.length;
+		if (journal) {
+			set(base + rmsErrorOffset, rmsError);
+			set(base + classErrorOffset, classError);
+		}
+		else {
+			cache[base + rmsErrorOffset] = rmsError;
+			cache[base + classErrorOffset] = classError;
+		}
+	}
+
+	/**
+	 * Journal and change a cached value.
+	 * @param position cache position.
+	 * @param value new value.
+	 */
+	private void set(int position, double value) {
+		if (journalSize == journalPositions.length) {
+			journalPositions = Arrays.copyOf(journalPositions, journalSize * 2);
+			journalValues = Arrays.copyOf(journalValues, journalSize * 2);
+		}
+		journalPositions[journalSize] = position;
+		journalValues[journalSize] = cache[position];
+		journalSize++;
+		cache[position] = value;
+	}
+
+	/**
+	 * @return output of input node for instance.
+	 */
+	private double inputValue(int ixInstance, int ixNode) {
+		return bias[ixNode] ? nodeOutputs[ixNode] : inputs[ixInstance][ixNode-1];
+	}
+
+	/**
+	 * @return cache position of NET fed by an input node napse.
+	 */
+	private int inputNapsePosition(int base, int ixTarget) {
+		return (ixTarget < outputOffset) ? base + inputNetOffset + ixTarget - hiddenOffset : base + outputNetOffset + ixTarget - outputOffset;
+	}
+
+	/**
+	 * @return cache position of NET fed by a hidden node napse.
+	 */
+	private int hiddenNapsePosition(int base, int ixTarget) {
+		return (ixTarget < outputOffset) ? base + hiddenNetOffset + ixTarget - hiddenOffset : base + outputNetOffset + ixTarget - outputOffset;
+	}
+
+	/**
+	 * @return sigmoid of NET, as the flat neural network applies it.
+	 */
+	private double sigmoid(double net) {
+		return sigmoid.apply(net);
+	}
+
+}
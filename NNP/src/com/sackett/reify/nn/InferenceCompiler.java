@@ -0,0 +1,533 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This compiles a trained neural network into a generated class implementing Scorer, for inference at the lowest
+ * per-call cost. The class file is written directly and defined by its own class loader: one straight-line method
+ * with every napse weight a constant, every node value a local variable, and the loops over nodes & napses fully
+ * unrolled, so no lists, bias checks or branches remain. Operations follow NeuralNetwork.classify in the same order,
+ * so scores match it exactly (with hidden bias nodes at the value classify's next call gives them, which training
+ * leaves settled). Without branches the class needs no stack map frames, so is written as Java 7 (version 51).
+ * Networks whose method would exceed MAX_CODE_SIZE, which HotSpot will not JIT compile, get a FlatNeuralNetwork
+ * backed scorer instead. Generated scorers hold no state so may be shared across threads; the fallback may not.
+ * @author Joseph Sackett
+ */
+public class InferenceCompiler {
+	/** Largest generated method, in bytes of code; HotSpot interprets methods beyond 8000 bytes. */
+	public static final int MAX_CODE_SIZE = 8000;
+
+	/** Generated class numbering. */
+	private static final AtomicInteger classCount = new AtomicInteger();
+
+	/** Constant pool tags. */
+	private static final int CONSTANT_UTF8 = 1, CONSTANT_DOUBLE = 6, CONSTANT_CLASS = 7, CONSTANT_METHODREF = 10, CONSTANT_NAME_AND_TYPE = 12;
+
+	/** Opcodes. */
+	private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC2_W = 0x14, DLOAD = 0x18, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b,
+			ALOAD_2 = 0x2c, DALOAD = 0x31, DSTORE = 0x39, ASTORE_2 = 0x4d, DASTORE = 0x52, DADD = 0x63, DMUL = 0x6b, DDIV = 0x6f,
+			DNEG = 0x77, DCONST_0 = 0x0e, DCONST_1 = 0x0f, ARETURN = 0xb0, RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8,
+			NEWARRAY = 0xbc, WIDE = 0xc4, T_DOUBLE = 7;
+
+	/** Constant pool entries, serialized. */
+	private ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+
+	/** Constant pool indexes by entry key. */
+	private Map<String,Integer> constants = new HashMap<String,Integer>();
+
+	/** Next constant pool index. */
+	private int nextConstant = 1;
+
+	/** Method code. */
+	private ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+	/** Next free local variable slot. */
+	private int nextLocal;
+
+	/** Default constructor, used by compile(). */
+	private InferenceCompiler() {
+	}
+
+	/**
+	 * Compile a neural network to a scorer, generated if small enough, else backed by a FlatNeuralNetwork.
+	 * @param neuralNetwork trained neural network, unchanged.
+	 * @return scorer.
+	 */
+	public static Scorer compile(NeuralNetwork neuralNetwork) {
+		Scorer scorer = compileGenerated(neuralNetwork);
+		if (scorer != null) {
+			return scorer;
+		}
+		final FlatNeuralNetwork flatNeuralNetwork = new FlatNeuralNetwork(neuralNetwork);
+		final double[] targetOutputs = new double[neuralNetwork.getOutputNodes().size() - 1];
+		return new Scorer() {
+			@Override
+			public double[] score(double[] inputs) {
+				return flatNeuralNetwork.classify(inputs, targetOutputs).getOutput();
+			}
+		};
+	}
+
+	/**
+	 * Compile a neural network to a generated scorer.
+	 * @param neuralNetwork trained neural network, unchanged.
+	 * @return generated scorer, or null if its method would exceed MAX_CODE_SIZE.
+	 */
+	public static Scorer compileGenerated(NeuralNetwork neuralNetwork) {
+		String className = InferenceCompiler.class.getPackage().getName() + ".GeneratedScorer" + classCount.incrementAndGet();
+		byte[] classFile = new InferenceCompiler().generate(neuralNetwork, className.replace('.', '/'));
+		if (classFile == null) {
+			return null;
+		}
+		try {
+			return (Scorer)new ScorerLoader(Scorer.class.getClassLoader()).define(className, classFile).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Generated scorer could not be created", e);
+		}
+	}
+
+	/**
+	 * Generate the class file of a scorer.
+	 * @param neuralNetwork trained neural network.
+	 * @param internalName class name, with slashes.
+	 * @return class file bytes, or null if the score method would exceed MAX_CODE_SIZE.
+	 */
+	private byte[] generate(NeuralNetwork neuralNetwork, String internalName) {
+		int thisClass = classConstant(internalName);
+		int superClass = classConstant("java/lang/Object");
+		int scorerClass = classConstant(Scorer.class.getName().replace('.', '/'));
+		int objectInit = methodConstant("java/lang/Object", "<init>", "()V");
+		int exp = methodConstant("java/lang/Math", "exp", "(D)D");
+		int initName = utf8Constant("<init>");
+		int initType = utf8Constant("()V");
+		int scoreName = utf8Constant("score");
+		int scoreType = utf8Constant("([D)[D");
+		int codeName = utf8Constant("Code");
+
+		if (!generateScore(neuralNetwork, exp) || code.size() > MAX_CODE_SIZE) {
+			return null;
+		}
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(51);
+			out.writeShort(nextConstant);
+			constantPool.writeTo(out);
+			// Public final class, extending Object and implementing Scorer, without fields.
+			out.writeShort(0x0001 | 0x0010 | 0x0020);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(scorerClass);
+			out.writeShort(0);
+			out.writeShort(2);
+
+			// Public constructor calling Object's.
+			byte[] initCode = { (byte)ALOAD_0, (byte)INVOKESPECIAL, (byte)(objectInit >> 8), (byte)objectInit, (byte)RETURN };
+			writeMethod(out, initName, initType, codeName, 1, 1, initCode);
+			// Score method. Stack holds at most output array & index, sigmoid's two 1s, a sum, a value and a weight.
+			writeMethod(out, scoreName, scoreType, codeName, 12, nextLocal, code.toByteArray());
+
+			out.writeShort(0);
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Generate the score method code, following NeuralNetwork.classify:
+	 * input nodes add weighted values to their outbound nodes; each hidden node, in list order, applies the sigmoid then
+	 * adds its weighted value to its outbound nodes, which include hidden nodes later in the list; output nodes apply
+	 * the sigmoid and factor. Each node value is computed once, from its contributions in the order classify adds them.
+	 * @param neuralNetwork trained neural network.
+	 * @param exp Math.exp method constant.
+	 * @return false if a hidden node feeds one earlier in the list, whose value it would change after use.
+	 */
+	private boolean generateScore(NeuralNetwork neuralNetwork, int exp) {
+		List<InputNode> inputNodes = neuralNetwork.getInputNodes();
+		List<HiddenNode> hiddenNodes = neuralNetwork.getHiddenNodes();
+		List<OutputNode> outputNodes = neuralNetwork.getOutputNodes();
+		// Local variable slots of node values; 0 is this, 1 inputs, 2 outputs.
+		Map<Double,Integer> nodeLocals = new HashMap<Double,Integer>();
+		// Contributions to each node, in the order classify adds them.
+		Map<Double,List<Napse>> contributions = new HashMap<Double,List<Napse>>();
+		nextLocal = 3;
+
+		// Load input values (excluding bias node, which is constant).
+		for (int ixInput = 1 ; ixInput < inputNodes.size() ; ixInput++) {
+			if (inputNodes.get(ixInput).getOutputNapses().isEmpty()) {
+				continue;
+			}
+			code.write(ALOAD_1);
+			pushInt(ixInput - 1);
+			code.write(DALOAD);
+			nodeLocals.put(inputNodes.get(ixInput).getId(), storeLocal());
+		}
+		for (InputNode inputNode : inputNodes) {
+			addContributions(inputNode, contributions);
+		}
+
+		// Calculate hidden node values in list order: NET from input nodes, sigmoid, then weighted earlier hidden nodes.
+		for (HiddenNode hiddenNode : hiddenNodes) {
+			if (hiddenNode.getOutputNapses().isEmpty()) {
+				continue;
+			}
+			List<Napse> inbound = getContributions(hiddenNode, contributions);
+			// Bias nodes keep their value, others start from 0.
+			double initial = hiddenNode.isBias() ? hiddenNode.getOutput() : 0.0;
+			int numInputs = 0;
+			while (numInputs < inbound.size() && inbound.get(numInputs).getInNode() instanceof InputNode) {
+				numInputs++;
+			}
+			if (numInputs == 0) {
+				pushDouble(sigmoid(initial));
+			}
+			else {
+				code.write(DCONST_1);
+				code.write(DCONST_1);
+				pushDouble(initial);
+				addWeighted(inbound.subList(0, numInputs), nodeLocals);
+				applyExp(exp);
+			}
+			addWeighted(inbound.subList(numInputs, inbound.size()), nodeLocals);
+			nodeLocals.put(hiddenNode.getId(), storeLocal());
+			for (Napse napse : hiddenNode.getOutputNapses()) {
+				if (nodeLocals.containsKey(napse.getOutNode().getId())) {
+					return false;
+				}
+			}
+			addContributions(hiddenNode, contributions);
+		}
+
+		// Calculate output values into new array, skipping dummy bias node.
+		pushInt(outputNodes.size() - 1);
+		code.write(NEWARRAY);
+		code.write(T_DOUBLE);
+		code.write(ASTORE_2);
+		for (int ixOutput = 1 ; ixOutput < outputNodes.size() ; ixOutput++) {
+			OutputNode outputNode = outputNodes.get(ixOutput);
+			code.write(ALOAD_2);
+			pushInt(ixOutput - 1);
+			code.write(DCONST_1);
+			code.write(DCONST_1);
+			code.write(DCONST_0);
+			addWeighted(getContributions(outputNode, contributions), nodeLocals);
+			applyExp(exp);
+			if (outputNode instanceof FactoredOutputNode) {
+				pushDouble(((FactoredOutputNode)outputNode).getFactor());
+				code.write(DMUL);
+			}
+			code.write(DASTORE);
+		}
+		code.write(ALOAD_2);
+		code.write(ARETURN);
+		return true;
+	}
+
+	/**
+	 * Record a node's outbound napses as contributions to their outbound nodes.
+	 * @param node inbound node.
+	 * @param contributions contributions by outbound node id.
+	 */
+	private static void addContributions(Node node, Map<Double,List<Napse>> contributions) {
+		for (Napse napse : node.getOutputNapses()) {
+			getContributions(napse.getOutNode(), contributions).add(napse);
+		}
+	}
+
+	/**
+	 * @param node outbound node.
+	 * @param contributions contributions by outbound node id.
+	 * @return contributions to node, in order added.
+	 */
+	private static List<Napse> getContributions(Node node, Map<Double,List<Napse>> contributions) {
+		List<Napse> napses = contributions.get(node.getId());
+		if (napses == null) {
+			napses = new ArrayList<Napse>();
+			contributions.put(node.getId(), napses);
+		}
+		return napses;
+	}
+
+	/**
+	 * Add weighted inbound node values to the sum on the stack. Constant inbound values (bias nodes) are multiplied here.
+	 * @param napses contributing napses.
+	 * @param nodeLocals local variable slots of node values.
+	 */
+	private void addWeighted(List<Napse> napses, Map<Double,Integer> nodeLocals) {
+		for (Napse napse : napses) {
+			Integer local = nodeLocals.get(napse.getInNode().getId());
+			if (local == null) {
+				pushDouble(napse.getInNode().getOutput() * napse.getWeight());
+			}
+			else {
+				loadLocal(local);
+				pushDouble(napse.getWeight());
+				code.write(DMUL);
+			}
+			code.write(DADD);
+		}
+	}
+
+	/**
+	 * Complete 1.0 / (1.0 + Math.exp(-1.0 * NET)) with 1.0, 1.0 & NET on the stack.
+	 * @param exp Math.exp method constant.
+	 */
+	private void applyExp(int exp) {
+		code.write(DNEG);
+		code.write(INVOKESTATIC);
+		code.write(exp >> 8);
+		code.write(exp);
+		code.write(DADD);
+		code.write(DDIV);
+	}
+
+	/**
+	 * @param net node NET.
+	 * @return sigmoid of NET, as NeuralNetwork calculates it.
+	 */
+	private static double sigmoid(double net) {
+		return 1.0 / (1.0 + Math.exp(-1.0 * net));
+	}
+
+	/**
+	 * Store the double on the stack in a new local variable.
+	 * @return local variable slot.
+	 */
+	private int storeLocal() {
+		int local = nextLocal;
+		nextLocal += 2;
+		writeLocal(DSTORE, local);
+		return local;
+	}
+
+	/**
+	 * @param local local variable slot of a double to push.
+	 */
+	private void loadLocal(int local) {
+		writeLocal(DLOAD, local);
+	}
+
+	/**
+	 * Write a local variable instruction, widened for slots beyond 255.
+	 * @param opcode instruction.
+	 * @param local local variable slot.
+	 */
+	private void writeLocal(int opcode, int local) {
+		if (local > 255) {
+			code.write(WIDE);
+			code.write(opcode);
+			code.write(local >> 8);
+		}
+		else {
+			code.write(opcode);
+		}
+		code.write(local);
+	}
+
+	/**
+	 * @param value int to push.
+	 */
+	private void pushInt(int value) {
+		if (value <= 5) {
+			code.write(ICONST_0 + value);
+		}
+		else if (value <= Byte.MAX_VALUE) {
+			code.write(BIPUSH);
+			code.write(value);
+		}
+		else {
+			code.write(SIPUSH);
+			code.write(value >> 8);
+			code.write(value);
+		}
+	}
+
+	/**
+	 * @param value double to push, 0 & 1 by instruction, others from the constant pool.
+	 */
+	private void pushDouble(double value) {
+		if (Double.doubleToRawLongBits(value) == 0L) {
+			code.write(DCONST_0);
+		}
+		else if (value == 1.0) {
+			code.write(DCONST_1);
+		}
+		else {
+			int index = doubleConstant(value);
+			code.write(LDC2_W);
+			code.write(index >> 8);
+			code.write(index);
+		}
+	}
+
+	/**
+	 * Write a method with its code attribute.
+	 */
+	private static void writeMethod(DataOutputStream out, int name, int type, int codeName, int maxStack, int maxLocals, byte[] methodCode) throws IOException {
+		out.writeShort(0x0001);
+		out.writeShort(name);
+		out.writeShort(type);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + methodCode.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(methodCode.length);
+		out.write(methodCode);
+		// No exception table or attributes.
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+
+	/**
+	 * @param value string.
+	 * @return index of UTF8 constant.
+	 */
+	private int utf8Constant(String value) {
+		Integer index = constants.get("U" + value);
+		if (index == null) {
+			index = addConstant("U" + value, 1);
+			DataOutputStream out = new DataOutputStream(constantPool);
+			try {
+				out.writeByte(CONSTANT_UTF8);
+				out.writeUTF(value);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @param internalName class name, with slashes.
+	 * @return index of class constant.
+	 */
+	private int classConstant(String internalName) {
+		Integer index = constants.get("C" + internalName);
+		if (index == null) {
+			int name = utf8Constant(internalName);
+			index = addConstant("C" + internalName, 1);
+			writeConstant(CONSTANT_CLASS, name);
+		}
+		return index;
+	}
+
+	/**
+	 * @param owner internal name of declaring class.
+	 * @param name method name.
+	 * @param type method descriptor.
+	 * @return index of method reference constant.
+	 */
+	private int methodConstant(String owner, String name, String type) {
+		String key = "M" + owner + "." + name + type;
+		Integer index = constants.get(key);
+		if (index == null) {
+			int ownerClass = classConstant(owner);
+			int methodName = utf8Constant(name);
+			int methodType = utf8Constant(type);
+			int nameAndType = addConstant("N" + name + type, 1);
+			writeConstant(CONSTANT_NAME_AND_TYPE, methodName, methodType);
+			index = addConstant(key, 1);
+			writeConstant(CONSTANT_METHODREF, ownerClass, nameAndType);
+		}
+		return index;
+	}
+
+	/**
+	 * @param value double.
+	 * @return index of double constant, which takes two entries.
+	 */
+	private int doubleConstant(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		String key = "D" + bits;
+		Integer index = constants.get(key);
+		if (index == null) {
+			index = addConstant(key, 2);
+			constantPool.write(CONSTANT_DOUBLE);
+			for (int shift = 56 ; shift >= 0 ; shift -= 8) {
+				constantPool.write((int)(bits >> shift));
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Reserve constant pool entries under a key.
+	 * @param key entry key.
+	 * @param size number of entries.
+	 * @return index of entry.
+	 */
+	private int addConstant(String key, int size) {
+		int index = nextConstant;
+		nextConstant += size;
+		constants.put(key, index);
+		return index;
+	}
+
+	/**
+	 * Write a constant of a tag and two-byte indexes.
+	 * @param tag constant tag.
+	 * @param indexes referenced entries.
+	 */
+	private void writeConstant(int tag, int... indexes) {
+		constantPool.write(tag);
+		for (int index : indexes) {
+			constantPool.write(index >> 8);
+			constantPool.write(index);
+		}
+	}
+
+	/**
+	 * This defines one generated class, so it can be unloaded with its scorer.
+	 */
+	private static class ScorerLoader extends ClassLoader {
+		/**
+		 * @param parent loader of Scorer.
+		 */
+		ScorerLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		/**
+		 * @param name class name.
+		 * @param classFile class file bytes.
+		 * @return defined class.
+		 */
+		Class<?> define(String name, byte[] classFile) {
+			return defineClass(name, classFile, 0, classFile.length);
+		}
+	}
+
+}
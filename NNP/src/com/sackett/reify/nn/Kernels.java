@@ -0,0 +1,209 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+/**
+ * These are the array kernels under the flat neural network's inner loops: axpy for layer forward sums and weight
+ * updates, and dot for back-propagated error sums. Backends are selected at runtime by name:
+ * scalar - plain loops, the reference;
+ * unrolled - dot with four independent accumulators, breaking the add dependency chain on any JDK;
+ * vector - the JDK Vector API (jdk.incubator.vector), in the separate src16 source root since it needs JDK 16 or later
+ * and --add-modules jdk.incubator.vector. It is loaded reflectively and falls back to unrolled if unavailable.
+ * The default is taken from system property reify.kernels, else scalar. Axpy results are identical across backends;
+ * dot sums in a different order in the unrolled & vector backends, so differ in the last bits.
+ * Each kernel comes in double and single (float) precision; single precision vectors hold twice the lanes.
+ * @author Joseph Sackett
+ */
+public abstract class Kernels {
+	/** Backend names. */
+	public static final String[] NAMES = { "scalar", "unrolled", "vector" };
+
+	/** Class name of Vector API backend. */
+	private static final String VECTOR_CLASS = "com.sackett.reify.nn.VectorKernels";
+
+	/** Selected backend. */
+	private static Kernels kernels = create(System.getProperty("reify.kernels", "scalar"));
+
+	/**
+	 * @return the selected backend.
+	 */
+	public static Kernels get() {
+		return kernels;
+	}
+
+	/**
+	 * Select the backend used by flat neural networks created afterwards.
+	 * @param name one of NAMES.
+	 * @return the selected backend, which is unrolled if vector was requested but is unavailable.
+	 * @throws IllegalArgumentException for unknown names.
+	 */
+	public static Kernels select(String name) {
+		kernels = create(name);
+		return kernels;
+	}
+
+	/**
+	 * Create a backend by name.
+	 * @param name one of NAMES.
+	 * @return backend.
+	 * @throws IllegalArgumentException for unknown names.
+	 */
+	private static Kernels create(String name) {
+		switch (name) {
+		case "scalar":
+			return new Scalar();
+		case "unrolled":
+			return new Unrolled();
+		case "vector":
+			try {
+				return (Kernels)Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | LinkageError e) {
+				System.err.println("Vector kernels unavailable (" + e + "), using unrolled");
+				return new Unrolled();
+			}
+		default:
+			throw new IllegalArgumentException("Unknown kernels: " + name);
+		}
+	}
+
+	/**
+	 * @return backend name.
+	 */
+	public abstract String getName();
+
+	/** Add alpha times x to y. */
+	public abstract void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+	/**
+	 * Dot product of x and y.
+	 * @return sum of products.
+	 */
+	public abstract double dot(double[] x, int xOffset, double[] y, int yOffset, int length);
+
+	/** Add alpha times x to y, in single precision. */
+	public abstract void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length);
+
+	/**
+	 * Dot product of x and y, in single precision.
+	 * @return sum of products.
+	 */
+	public abstract float dot(float[] x, int xOffset, float[] y, int yOffset, int length);
+
+	/** Plain loops. */
+	static class Scalar extends Kernels {
+		@Override
+		public String getName() {
+			return "scalar";
+		}
+
+		@Override
+		public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+			for (int ix = 0 ; ix < length ; ix++) {
+				y[yOffset + ix] += alpha * x[xOffset + ix];
+			}
+		}
+
+		@Override
+		public double dot(double[] x, int xOffset, double[] y, int yOffset, int length) {
+			double sum = 0.0;
+			for (int ix = 0 ; ix < length ; ix++) {
+				sum += x[xOffset + ix] * y[yOffset + ix];
+			}
+			return sum;
+		}
+
+		@Override
+		public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+			for (int ix = 0 ; ix < length ; ix++) {
+				y[yOffset + ix] += alpha * x[xOffset + ix];
+			}
+		}
+
+		@Override
+		public float dot(float[] x, int xOffset, float[] y, int yOffset, int length) {
+			float sum = 0.0f;
+			for (int ix = 0 ; ix < length ; ix++) {
+				sum += x[xOffset + ix] * y[yOffset + ix];
+			}
+			return sum;
+		}
+	}
+
+	/** Dot unrolled by four with independent accumulators, which the JIT cannot do itself without reordering the sum. */
+	static class Unrolled extends Kernels {
+		@Override
+		public String getName() {
+			return "unrolled";
+		}
+
+		@Override
+		public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+			// Left plain: the JIT vectorizes this loop itself, manual unrolling defeats it.
+			for (int ix = 0 ; ix < length ; ix++) {
+				y[yOffset + ix] += alpha * x[xOffset + ix];
+			}
+		}
+
+		@Override
+		public double dot(double[] x, int xOffset, double[] y, int yOffset, int length) {
+			double sum0 = 0.0;
+			double sum1 = 0.0;
+			double sum2 = 0.0;
+			double sum3 = 0.0;
+			int ix = 0;
+			for ( ; ix + 3 < length ; ix += 4) {
+				sum0 += x[xOffset + ix] * y[yOffset + ix];
+				sum1 += x[xOffset + ix + 1] * y[yOffset + ix + 1];
+				sum2 += x[xOffset + ix + 2] * y[yOffset + ix + 2];
+				sum3 += x[xOffset + ix + 3] * y[yOffset + ix + 3];
+			}
+			for ( ; ix < length ; ix++) {
+				sum0 += x[xOffset + ix] * y[yOffset + ix];
+			}
+			return (sum0 + sum1) + (sum2 + sum3);
+		}
+
+		@Override
+		public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+			for (int ix = 0 ; ix < length ; ix++) {
+				y[yOffset + ix] += alpha * x[xOffset + ix];
+			}
+		}
+
+		@Override
+		public float dot(float[] x, int xOffset, float[] y, int yOffset, int length) {
+			float sum0 = 0.0f;
+			float sum1 = 0.0f;
+			float sum2 = 0.0f;
+			float sum3 = 0.0f;
+			int ix = 0;
+			for ( ; ix + 3 < length ; ix += 4) {
+				sum0 += x[xOffset + ix] * y[yOffset + ix];
+				sum1 += x[xOffset + ix + 1] * y[yOffset + ix + 1];
+				sum2 += x[xOffset + ix + 2] * y[yOffset + ix + 2];
+				sum3 += x[xOffset + ix + 3] * y[yOffset + ix + 3];
+			}
+			for ( ; ix < length ; ix++) {
+				sum0 += x[xOffset + ix] * y[yOffset + ix];
+			}
+			return (sum0 + sum1) + (sum2 + sum3);
+		}
+	}
+
+}
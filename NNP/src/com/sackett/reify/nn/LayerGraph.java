@@ -0,0 +1,387 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This describes a neural network's topology as a directed acyclic graph of layers, each fully connected to the layers
+ * it feeds. There is one input layer, any number of hidden layers in any depth or branching, and one or more output
+ * layers whose nodes together form the network's outputs. Input & hidden layers start with a bias node.
+ * The graph builds the node & napse object graph, whose node lists hold the layers in topological order, and is kept
+ * by it so ExecutionPlan can compile it layer by layer.
+ * @author Joseph Sackett
+ */
+public class LayerGraph {
+	/** Layers by name, in the order added. */
+	private Map<String,Layer> layers = new LinkedHashMap<String,Layer>();
+
+	/** Layers in topological order, once sorted. */
+	private List<Layer> sortedLayers;
+
+	/**
+	 * Add the input layer.
+	 * @param name layer name.
+	 * @param size number of nodes, excluding bias node.
+	 * @return new layer.
+	 */
+	public Layer addInput(String name, int size) {
+		return add(new Layer(name, Layer.INPUT, size, 1.0));
+	}
+
+	/**
+	 * Add a hidden layer.
+	 * @param name layer name.
+	 * @param size number of nodes, excluding bias node.
+	 * @return new layer.
+	 */
+	public Layer addHidden(String name, int size) {
+		return add(new Layer(name, Layer.HIDDEN, size, 1.0));
+	}
+
+	/**
+	 * Add an output layer of plain output nodes.
+	 * @param name layer name.
+	 * @param size number of nodes.
+	 * @return new layer.
+	 */
+	public Layer addOutput(String name, int size) {
+		return add(new Layer(name, Layer.OUTPUT, size, 1.0));
+	}
+
+	/**
+	 * Add an output layer of factored output nodes.
+	 * @param name layer name.
+	 * @param size number of nodes.
+	 * @param factor output factor.
+	 * @return new layer.
+	 */
+	public Layer addOutput(String name, int size, double factor) {
+		Layer layer = add(new Layer(name, Layer.OUTPUT, size, factor));
+		layer.factored = true;
+		return layer;
+	}
+
+	/**
+	 * Connect every node of one layer to every non-bias node of another.
+	 * @param fromName inbound layer name.
+	 * @param toName outbound layer name.
+	 * @throws IllegalArgumentException for unknown layers, or connections out of an output layer or into the input layer.
+	 */
+	public void connect(String fromName, String toName) {
+		Layer from = getLayer(fromName);
+		Layer to = getLayer(toName);
+		if (from.kind == Layer.OUTPUT || to.kind == Layer.INPUT) {
+			throw new IllegalArgumentException("Cannot connect " + fromName + " to " + toName);
+		}
+		from.outbound.add(to);
+		to.inbound.add(from);
+		sortedLayers = null;
+	}
+
+	/**
+	 * @param name layer name.
+	 * @return layer.
+	 * @throws IllegalArgumentException for unknown layers.
+	 */
+	public Layer getLayer(String name) {
+		Layer layer = layers.get(name);
+		if (layer == null) {
+			throw new IllegalArgumentException("Unknown layer: " + name);
+		}
+		return layer;
+	}
+
+	/**
+	 * Sort the layers so each follows all layers feeding it (Kahn's algorithm), checking the graph is a usable network.
+	 * @return layers in topological order, input layer first.
+	 * @throws IllegalArgumentException for cycles, no or several input layers, no output layer, or layers cut off from them.
+	 */
+	public List<Layer> sort() {
+		if (sortedLayers != null) {
+			return sortedLayers;
+		}
+		// Count unsorted inbound layers of each layer; ready layers have none.
+		Map<Layer,Integer> numInbound = new HashMap<Layer,Integer>();
+		Deque<Layer> ready = new ArrayDeque<Layer>();
+		int numInputs = 0;
+		int numOutputs = 0;
+		for (Layer layer : layers.values()) {
+			numInbound.put(layer, layer.inbound.size());
+			if (layer.kind == Layer.INPUT) {
+				numInputs++;
+				ready.add(layer);
+			}
+			else if (layer.inbound.isEmpty()) {
+				throw new IllegalArgumentException("Layer " + layer.name + " has no inbound layers");
+			}
+			if (layer.kind == Layer.OUTPUT) {
+				numOutputs++;
+			}
+			else if (layer.outbound.isEmpty()) {
+				throw new IllegalArgumentException("Layer " + layer.name + " has no outbound layers");
+			}
+		}
+		if (numInputs != 1 || numOutputs == 0) {
+			throw new IllegalArgumentException("Layer graph needs one input layer and at least one output layer");
+		}
+
+		// Take ready layers in order, releasing the layers they feed.
+		List<Layer> sorted = new ArrayList<Layer>(layers.size());
+		while (!ready.isEmpty()) {
+			Layer layer = ready.remove();
+			sorted.add(layer);
+			for (Layer outbound : layer.outbound) {
+				int count = numInbound.get(outbound) - 1;
+				numInbound.put(outbound, count);
+				if (count == 0) {
+					ready.add(outbound);
+				}
+			}
+		}
+		if (sorted.size() != layers.size()) {
+			throw new IllegalArgumentException("Layer graph has a cycle");
+		}
+		sortedLayers = sorted;
+		return sortedLayers;
+	}
+
+	/**
+	 * Build the node & napse object graph with random weights. Hidden nodes are listed layer by layer in topological
+	 * order, each layer bias node first, and output nodes likewise after the unused node at index 0. Napses are added
+	 * by inbound node, to its outbound layers in the order connected.
+	 * @param minWeight minimum initial weight.
+	 * @param maxWeight maximum initial weight.
+	 * @param biasNodes flag to connect bias nodes.
+	 * @return neural network holding this graph.
+	 */
+	public NeuralNetwork buildNeuralNetwork(double minWeight, double maxWeight, boolean biasNodes) {
+		List<InputNode> inputNodes = new ArrayList<InputNode>();
+		List<HiddenNode> hiddenNodes = new ArrayList<HiddenNode>();
+		List<OutputNode> outputNodes = new ArrayList<OutputNode>();
+		// Nodes of each layer, for connecting.
+		Map<Layer,List<Node>> layerNodes = new HashMap<Layer,List<Node>>();
+
+		// Build nodes layer by layer. Includes bias node at index 0 of input & hidden layers.
+		outputNodes.add(new OutputNode(true));
+		for (Layer layer : sort()) {
+			List<Node> nodes = new ArrayList<Node>(layer.size + 1);
+			if (layer.kind == Layer.INPUT) {
+				inputNodes.add(new InputNode(1.0, true));
+				for (int ix = 1 ; ix <= layer.size ; ix++) {
+					inputNodes.add(new InputNode());
+				}
+				nodes.addAll(inputNodes);
+			}
+			else if (layer.kind == Layer.HIDDEN) {
+				nodes.add(new HiddenNode(1.0, true));
+				for (int ix = 1 ; ix <= layer.size ; ix++) {
+					nodes.add(new HiddenNode());
+				}
+				for (Node node : nodes) {
+					hiddenNodes.add((HiddenNode)node);
+				}
+			}
+			else {
+				for (int ix = 1 ; ix <= layer.size ; ix++) {
+					nodes.add(layer.factored ? new FactoredOutputNode(layer.factor, false) : new OutputNode());
+				}
+				for (Node node : nodes) {
+					outputNodes.add((OutputNode)node);
+				}
+			}
+			layerNodes.put(layer, nodes);
+		}
+
+		// Add synapses from each node to the non-bias nodes of its outbound layers.
+		for (Layer layer : sortedLayers) {
+			for (Node inNode : layerNodes.get(layer)) {
+				// If not using bias nodes, skip adding synapses from bias node.
+				if (!biasNodes && inNode.isBias()) {
+					continue;
+				}
+				for (Layer outbound : layer.outbound) {
+					for (Node outNode : layerNodes.get(outbound)) {
+						if (outNode.isBias()) {
+							continue;
+						}
+						// Create synapse.
+						Napse napse = new Napse(inNode, outNode, (maxWeight - minWeight) * Math.random() + minWeight);
+						// Add to both of its ends.
+						inNode.getOutputNapses().add(napse);
+						outNode.getInputNapses().add(napse);
+					}
+				}
+			}
+		}
+
+		NeuralNetwork neuralNetwork = new NeuralNetwork();
+		neuralNetwork.setInputNodes(inputNodes);
+		neuralNetwork.setHiddenNodes(hiddenNodes);
+		neuralNetwork.setOutputNodes(outputNodes);
+		neuralNetwork.setLayerGraph(this);
+		return neuralNetwork;
+	}
+
+	/**
+	 * @return the number of hidden layers.
+	 */
+	public int getNumHiddenLayers() {
+		int numHidden = 0;
+		for (Layer layer : layers.values()) {
+			numHidden += (layer.kind == Layer.HIDDEN) ? 1 : 0;
+		}
+		return numHidden;
+	}
+
+	/**
+	 * Add a layer under a new name.
+	 * @param layer new layer.
+	 * @return the layer.
+	 * @throws IllegalArgumentException for duplicate names.
+	 */
+	private Layer add(Layer layer) {
+		if (layers.containsKey(layer.name)) {
+			throw new IllegalArgumentException("Duplicate layer: " + layer.name);
+		}
+		layers.put(layer.name, layer);
+		sortedLayers = null;
+		return layer;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Layer layer : sort()) {
+			builder.append((builder.length() > 0) ? ", " : "").append(layer);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * This is one layer of the graph.
+	 */
+	public static class Layer {
+		/** Input layer kind. */
+		public static final int INPUT = 0;
+
+		/** Hidden layer kind. */
+		public static final int HIDDEN = 1;
+
+		/** Output layer kind. */
+		public static final int OUTPUT = 2;
+
+		/** Layer name. */
+		private String name;
+
+		/** Layer kind. */
+		private int kind;
+
+		/** Number of nodes, excluding bias node. */
+		private int size;
+
+		/** Output factor, 1 for plain output nodes. */
+		private double factor;
+
+		/** Factored output nodes flag. */
+		private boolean factored;
+
+		/** Layers feeding this one, in the order connected. */
+		private List<Layer> inbound = new ArrayList<Layer>();
+
+		/** Layers fed by this one, in the order connected. */
+		private List<Layer> outbound = new ArrayList<Layer>();
+
+		/**
+		 * @param name layer name.
+		 * @param kind layer kind.
+		 * @param size number of nodes, excluding bias node.
+		 * @param factor output factor.
+		 */
+		private Layer(String name, int kind, int size, double factor) {
+			if (size < 1) {
+				throw new IllegalArgumentException("Layer " + name + " needs at least one node: " + size);
+			}
+			this.name = name;
+			this.kind = kind;
+			this.size = size;
+			this.factor = factor;
+		}
+
+		/**
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the kind, INPUT, HIDDEN or OUTPUT.
+		 */
+		public int getKind() {
+			return kind;
+		}
+
+		/**
+		 * @return the number of nodes, excluding bias node.
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return flag indicating a bias node leads the layer.
+		 */
+		public boolean hasBias() {
+			return kind != OUTPUT;
+		}
+
+		/**
+		 * @return the output factor, 1 for plain output nodes.
+		 */
+		public double getFactor() {
+			return factor;
+		}
+
+		/**
+		 * @return the layers feeding this one.
+		 */
+		public List<Layer> getInbound() {
+			return inbound;
+		}
+
+		/**
+		 * @return the layers fed by this one.
+		 */
+		public List<Layer> getOutbound() {
+			return outbound;
+		}
+
+		@Override
+		public String toString() {
+			return name + "(" + size + ")";
+		}
+	}
+
+}
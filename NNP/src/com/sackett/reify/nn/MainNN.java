@@ -17,14 +17,15 @@
 */
 package com.sackett.reify.nn;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import com.sackett.reify.nn.NeuralNetwork.ClassifyOutput;
 
@@ -42,10 +43,16 @@ public class MainNN {
 	/** Neural network. */
 	private NeuralNetwork neuralNetwork;
 	
-	/** Input data. */
+	/** Neural network compiled to flat arrays for training. */
+	private FlatNeuralNetwork flatNeuralNetwork;
+	
+	/** Loaded data, rows of which serial training reads in place, null when streaming. */
+	private Dataset dataset;
+	
+	/** Input data, copied from the dataset for training that takes arrays, otherwise null. */
 	private double[][] trainInputs;
 	
-	/** Output data. */
+	/** Output data, copied from the dataset for training that takes arrays, otherwise null. */
 	private double[][] trainOutputs;
 
 	/** Maximum number of training epochs. */
@@ -66,6 +73,96 @@ public class MainNN {
 	/** Weight factor change each epoch. */
 	private double weightFactorChange;
 	
+	/** Number of training instances per backpropagation weight update. */
+	private int batchSize = 1;
+	
+	/** Number of training threads. */
+	private int numThreads = 1;
+	
+	/** Asynchronous (Hogwild style) parallel training flag. */
+	private boolean asyncTraining = false;
+	
+	/** Flag to compare synchronous and asynchronous parallel training. */
+	private boolean compareParallel = false;
+	
+	/** Flag to evaluate simulated annealing moves incrementally from cached instance values. */
+	private boolean incrementalEvaluation = false;
+	
+	/** Backpropagation optimizer name, defaulting to momentum when a momentum is given, otherwise sgd. */
+	private String optimizerName;
+	
+	/** Backpropagation arithmetic precision: double, float, or compare to train both. */
+	private String precision = "double";
+	
+	/** Flag to hold training inputs as sparse rows, visiting only non-zero inputs. */
+	private boolean sparseInputs = false;
+	
+	/** Flag to adapt simulated annealing temperature & weight factor to acceptance ratios, instead of linear cooling. */
+	private boolean adaptiveSchedule = false;
+	
+	/** Number of instances per simulated annealing screening mini-batch, 0 to evaluate every move on the full set. */
+	private int miniBatchSize = 0;
+	
+	/** Number of simulated annealing replicas run at different temperatures (parallel tempering). */
+	private int numReplicas = 1;
+	
+	/** Epochs between replica exchanges. */
+	private int exchangeInterval = 10;
+	
+	/** Flag to train with an execution plan compiled from the layer graph, instead of the flat neural network. */
+	private boolean planExecution = false;
+	
+	/** Execution plan, when selected. */
+	private ExecutionPlan executionPlan;
+	
+	/** Target fraction of napses disconnected by magnitude pruning after training, 0 for none. */
+	private double pruneSparsity = 0.0;
+	
+	/** Probability a simulated annealing move disconnects a napse rather than reweighting it. */
+	private double pruneProb = 0.0;
+	
+	/** Number of rows per chunk when streaming the data file instead of loading it, 0 to load it. */
+	private int streamChunkRows = 0;
+	
+	/** Flag to shuffle streamed chunk order each epoch. */
+	private boolean shuffleChunks = false;
+	
+	/** Data file stream, when streaming. */
+	private DatasetStream datasetStream;
+	
+	/** File to save the training state to after training, null for none. */
+	private String checkpointFileName;
+	
+	/** File to resume the training state from, null for none. */
+	private String resumeFileName;
+	
+	/** Simulated annealing temperature reached, for checkpoints. */
+	private double saTemp;
+	
+	/** Adaptive schedule state reached, or resumed, null for none. */
+	private double[] scheduleState;
+	
+	/** Flag to start annealing from the resumed network's energy, cleared once started. */
+	private boolean startFromEnergy;
+	
+	/** Flag to rebuild the object graph from the resumed flat network once trained, its topology differing. */
+	private boolean rebuildNeuralNetwork;
+	
+	/** Flag to compile the trained network into a generated scorer class and compare its inference with classify. */
+	private boolean compileScorer = false;
+	
+	/** Default instances per weight update of data-parallel backpropagation. */
+	private static final int PARALLEL_BATCH_SIZE = 16;
+	
+	/** Number of prune & fine-tune rounds reaching the target sparsity. */
+	private static final int PRUNE_STEPS = 4;
+	
+	/** Pool executing parallel training, when multi-threaded. */
+	private ForkJoinPool pool;
+	
+	/** Number of instances a parallel training shard runs through its buffer at once. */
+	private static final int SHARD_CHUNK_SIZE = 64;
+	
 	/** 4 decimal display. */
 	private static DecimalFormat decFormat = new DecimalFormat("#.####");
 	
@@ -79,11 +176,30 @@ public class MainNN {
 
 	/** Main program for neural network test. */
 	public static void main(String[] args) {
+		// Separate named options (--name=value) from positional arguments.
+		Map<String,String> options = new HashMap<String,String>();
+		List<String> positionalArgs = new ArrayList<String>();
+		for (String arg : args) {
+			int ixEquals = arg.indexOf('=');
+			if (arg.startsWith("--") && ixEquals > 2) {
+				options.put(arg.substring(2, ixEquals), arg.substring(ixEquals + 1));
+			}
+			else {
+				positionalArgs.add(arg);
+			}
+		}
+		args = positionalArgs.toArray(new String[positionalArgs.size()]);
+		
 		if (args.length < 4) {
 			printUsage();
 			System.exit(1);
 		}
 		
+		if (args[0].equalsIgnoreCase("convert")) {
+			convert(args);
+			return;
+		}
+		
 		// Can use either simulated annealing or backpropagation.
 		boolean saBpFlag = true;;
 		if (args[0].equalsIgnoreCase("sa")) {
@@ -106,37 +222,18 @@ public class MainNN {
 		// Get number of output nodes from command line.
 		int numOutputNodes = Integer.parseInt(args[3]);
 
-		// Load data file into input & output arrays.
-		List<double[]> trainInputs = new ArrayList<double[]>();
-		List<double[]> trainOutputs = new ArrayList<double[]>();
-		BufferedReader reader = null;
-		try {
-			reader = new BufferedReader(new FileReader(inputFileName));
-			String row;
-			String[] cells;
-			while ((row = reader.readLine()) != null) {
-				cells = row.split(",");
-				double[] inputValues = new double[numInputNodes];
-				trainInputs.add(inputValues);
-				double[] outputValues = new double[numOutputNodes];
-				trainOutputs.add(outputValues);
-				for (int ix = 0 ; ix < cells.length ; ix++) {
-					// Place value in input or output array.
-					if (ix < numInputNodes) {
-						inputValues[ix] = Double.parseDouble(cells[ix]);
-					}
-					else {
-						outputValues[ix - numInputNodes] = Double.parseDouble(cells[ix]);
-					}
-				}
+		// Load data file, mapping binary files into memory, unless streaming it.
+		Dataset dataset = null;
+		if (!options.containsKey("stream")) {
+			try {
+				long startTime = System.nanoTime();
+				dataset = BinaryDataset.isBinary(inputFileName) ? BinaryDataset.load(inputFileName, numInputNodes, numOutputNodes)
+																: CsvLoader.load(inputFileName, numInputNodes, numOutputNodes);
+				System.out.println("Loaded " + dataset + " in " + Math.round((System.nanoTime() - startTime) / 1000000.0) + " ms");
 			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			if (reader != null) {
-				try { reader.close(); } catch (IOException e) {}
+			catch (IOException | IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
 			}
 		}
 		
@@ -182,8 +279,8 @@ public class MainNN {
 				System.exit(1);
 			}
 			// Construct neural network and mainNN metaheuristic execution object.
-			mainNN = new MainNN(trainInputs.toArray(new double[trainInputs.size()][]), trainOutputs.toArray(new double[trainOutputs.size()][]), maxEpochs, startTemp, endTemp, updateProb, weightFactor, weightFactorChange, 
-								buildNeuralNetwork(numInputNodes, numOutputNodes, numHiddenNodes, minWeight, maxWeight, true, palletData));
+			mainNN = new MainNN(null, null, maxEpochs, startTemp, endTemp, updateProb, weightFactor, weightFactorChange, 
+								buildNeuralNetwork(numInputNodes, numOutputNodes, getHiddenLayerSizes(options, numInputNodes, numOutputNodes, numHiddenNodes, palletData), minWeight, maxWeight, true, palletData));
 		}
 		else {
 			switch(args.length) {
@@ -207,20 +304,292 @@ public class MainNN {
 				System.exit(1);
 			}
 			// Construct neural network and mainNN metaheuristic execution object.
-			mainNN = new MainNN(trainInputs.toArray(new double[trainInputs.size()][]), trainOutputs.toArray(new double[trainOutputs.size()][]), maxEpochs, eta, momentum,
-								buildNeuralNetwork(numInputNodes, numOutputNodes, numHiddenNodes, minWeight, maxWeight, true, palletData));
+			mainNN = new MainNN(null, null, maxEpochs, eta, momentum,
+								buildNeuralNetwork(numInputNodes, numOutputNodes, getHiddenLayerSizes(options, numInputNodes, numOutputNodes, numHiddenNodes, palletData), minWeight, maxWeight, true, palletData));
+		}
+		
+		mainNN.dataset = dataset;
+		
+		// Apply named options.
+		try {
+			mainNN.configure(options, saBpFlag);
+		}
+		catch (IllegalArgumentException ex) {
+			System.out.println(ex.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+		if (mainNN.streamChunkRows > 0) {
+			try {
+				mainNN.datasetStream = new DatasetStream(inputFileName, numInputNodes, numOutputNodes, mainNN.streamChunkRows);
+				mainNN.datasetStream.setShuffle(mainNN.shuffleChunks);
+			}
+			catch (IOException | IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+			}
 		}
 		
 		// Execute mainNN metaheuristic, based on above configuration.
 		mainNN.run(saBpFlag);
 	}
 	
+	/**
+	 * Convert a CSV data file to a binary dataset file, exiting on errors.
+	 * @param args convert, CSV filename, num input nodes, num output nodes, binary filename & optional value type.
+	 */
+	private static void convert(String[] args) {
+		if (args.length < 5 || args.length > 6) {
+			printUsage();
+			System.exit(1);
+		}
+		try {
+			int valueType = (args.length == 6 && args[5].equalsIgnoreCase("float")) ? BinaryDataset.FLOAT : BinaryDataset.DOUBLE;
+			if (args.length == 6 && valueType == BinaryDataset.DOUBLE && !args[5].equalsIgnoreCase("double")) {
+				throw new IllegalArgumentException("Unknown value type: " + args[5]);
+			}
+			long startTime = System.nanoTime();
+			Dataset dataset = CsvLoader.load(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+			BinaryDataset.write(dataset, args[4], valueType);
+			System.out.println("Converted " + dataset + " to " + args[4] + " in " + Math.round((System.nanoTime() - startTime) / 1000000.0) + " ms");
+		}
+		catch (IOException | IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+	
 	/** Display command line syntax. */
 	private static void printUsage() {
 		System.out.println("Usage for simulated annealing:");
 		System.out.println("java com.sackett.reify.nn.MainNN sa {input filename} {num input nodes} {num output nodes} [num hidden nodes] [pallet output flag] [min init weight] [max init weight] [max num epochs] [init temp] [start temp] [end temp] [update prob] [weight factor] [weight factor change]");
 		System.out.println("Usage for backpropagation:");
-		System.out.println("java com.sackett.reify.nn.MainNN bp {input filename} {num input nodes} {num output nodes} [num hidden nodes] [pallet output flag] [min init weight] [max init weight] [max num epochs] [eta]");
+		System.out.println("java com.sackett.reify.nn.MainNN bp {input filename} {num input nodes} {num output nodes} [num hidden nodes] [pallet output flag] [min init weight] [max init weight] [max num epochs] [eta] [momentum]");
+		System.out.println("Usage to convert a CSV data file to a binary dataset, which either usage above loads by mapping it into memory:");
+		System.out.println("java com.sackett.reify.nn.MainNN convert {input filename} {num input nodes} {num output nodes} {binary filename} [double|float]");
+		System.out.println("Options for backpropagation:");
+		System.out.println("--batch={instances per weight update}");
+		System.out.println("--threads={training threads} (data-parallel, one weight update per batch, default batch is " + PARALLEL_BATCH_SIZE + " with eta scaled by its square root)");
+		System.out.println("--async={true|false} (with --threads, lock-free updates after every instance)");
+		System.out.println("--compare={true|false} (with --threads, report throughput & convergence of sync and async modes)");
+		System.out.println("--optimizer={sgd|momentum|nesterov|rmsprop|adam} (default momentum when [momentum] given, otherwise sgd)");
+		System.out.println("--precision={double|float|compare} (float trains in float32 & reports errors vs double, compare trains both)");
+		System.out.println("--plan={true|false} (train through an execution plan compiled layer by layer from the layer graph)");
+		System.out.println("Options for simulated annealing:");
+		System.out.println("--threads={evaluation threads}");
+		System.out.println("--eval={full|incremental} (incremental applies only each move's weight changes to cached instance values)");
+		System.out.println("--schedule={linear|adaptive} (adaptive steers temperature & weight factor by acceptance ratio and reheats on stalls)");
+		System.out.println("--minibatch={instances} (screen moves on random mini-batches, confirming promising ones on the full set)");
+		System.out.println("--replicas={replicas} (parallel tempering, one chain per temperature from start to end temp)");
+		System.out.println("--exchange={epochs between replica exchanges} (default 10)");
+		System.out.println("--saprune={probability} (chance a move disconnects an updated napse instead of reweighting it)");
+		System.out.println("Options for both:");
+		System.out.println("--sparse={true|false} (serial only, hold inputs as sparse rows & skip zero inputs in classify & sgd updates)");
+		System.out.println("--sigmoid={exact|table|polynomial} (activation function, table & polynomial approximate Math.exp)");
+		System.out.println("--kernels={scalar|unrolled|vector} (inner loop kernels, vector needs JDK 16+ & --add-modules jdk.incubator.vector)");
+		System.out.println("--layers={size,size,...} (hidden layers in sequence, replacing [num hidden nodes], several need --plan)");
+		System.out.println("--stream={rows per chunk} (stream the data file in chunks, reading the next in the background, instead of loading it)");
+		System.out.println("--shuffle={true|false} (with --stream, shuffle chunk order each epoch)");
+		System.out.println("--checkpoint={filename} (after training, save network, optimizer & annealing state)");
+		System.out.println("--resume={filename} (continue training from a checkpoint, [max num epochs] more epochs)");
+		System.out.println("--compile={true|false} (after training, generate a scorer class with weights as constants & compare its latency with classify)");
+		System.out.println("--prune={sparsity} (after training, disconnect smallest weights in " + PRUNE_STEPS + " rounds to this fraction, fine-tuning each for 1/" + PRUNE_STEPS + " of max epochs)");
+	}
+	
+	/**
+	 * Get hidden layer sizes from the --layers option, else the single [num hidden nodes] layer. Exits on invalid sizes,
+	 * or node counts no network can be built with, before any layer is built.
+	 * @param options option values by name.
+	 * @param numInputNodes number of input nodes argument.
+	 * @param numOutputNodes number of output nodes argument.
+	 * @param numHiddenNodes number of hidden nodes argument.
+	 * @param palletData pallet network flag, which has its own layers.
+	 * @return hidden layer sizes, in order from input to output.
+	 */
+	private static int[] getHiddenLayerSizes(Map<String,String> options, int numInputNodes, int numOutputNodes, int numHiddenNodes, boolean palletData) {
+		try {
+			if (numInputNodes < 1 || numOutputNodes < 1) {
+				throw new IllegalArgumentException("Networks need at least one input & one output node: " + numInputNodes + " inputs, " + numOutputNodes + " outputs");
+			}
+			if (!options.containsKey("layers")) {
+				if (numHiddenNodes < 1) {
+					throw new IllegalArgumentException("Networks need at least one hidden node: " + numHiddenNodes);
+				}
+				return new int[] { numHiddenNodes };
+			}
+			if (palletData) {
+				throw new IllegalArgumentException("--layers does not apply to pallet networks");
+			}
+			String[] sizes = options.get("layers").split(",");
+			int[] hiddenLayerSizes = new int[sizes.length];
+			for (int ix = 0 ; ix < sizes.length ; ix++) {
+				hiddenLayerSizes[ix] = Integer.parseInt(sizes[ix].trim());
+				if (hiddenLayerSizes[ix] < 1) {
+					throw new IllegalArgumentException("Hidden layer sizes must be positive: " + options.get("layers"));
+				}
+			}
+			return hiddenLayerSizes;
+		}
+		catch (IllegalArgumentException ex) {
+			System.out.println(ex.getMessage());
+			printUsage();
+			System.exit(1);
+			return null;
+		}
+	}
+	
+	/**
+	 * Apply named command line options.
+	 * @param options option values by name.
+	 * @param saBpFlag true for simulated annealing, false for backpropagation.
+	 * @throws IllegalArgumentException for unknown options.
+	 */
+	private void configure(Map<String,String> options, boolean saBpFlag) {
+		for (Map.Entry<String,String> option : options.entrySet()) {
+			switch (option.getKey()) {
+			case "batch":
+				batchSize = Integer.parseInt(option.getValue());
+				if (batchSize < 1) {
+					throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+				}
+				break;
+			case "threads":
+				numThreads = Integer.parseInt(option.getValue());
+				if (numThreads < 1) {
+					throw new IllegalArgumentException("Threads must be positive: " + numThreads);
+				}
+				break;
+			case "async":
+				asyncTraining = Boolean.parseBoolean(option.getValue());
+				break;
+			case "compare":
+				compareParallel = Boolean.parseBoolean(option.getValue());
+				break;
+			case "eval":
+				if (!option.getValue().equals("full") && !option.getValue().equals("incremental")) {
+					throw new IllegalArgumentException("Unknown evaluation: " + option.getValue());
+				}
+				incrementalEvaluation = option.getValue().equals("incremental");
+				break;
+			case "optimizer":
+				if (!Arrays.asList(Optimizer.NAMES).contains(option.getValue())) {
+					throw new IllegalArgumentException("Unknown optimizer: " + option.getValue());
+				}
+				optimizerName = option.getValue();
+				break;
+			case "schedule":
+				if (!option.getValue().equals("linear") && !option.getValue().equals("adaptive")) {
+					throw new IllegalArgumentException("Unknown schedule: " + option.getValue());
+				}
+				adaptiveSchedule = option.getValue().equals("adaptive");
+				break;
+			case "minibatch":
+				miniBatchSize = Integer.parseInt(option.getValue());
+				if (miniBatchSize < 1) {
+					throw new IllegalArgumentException("Mini-batch size must be positive: " + miniBatchSize);
+				}
+				break;
+			case "replicas":
+				numReplicas = Integer.parseInt(option.getValue());
+				if (numReplicas < 1) {
+					throw new IllegalArgumentException("Replicas must be positive: " + numReplicas);
+				}
+				break;
+			case "precision":
+				if (!Arrays.asList("double", "float", "compare").contains(option.getValue())) {
+					throw new IllegalArgumentException("Unknown precision: " + option.getValue());
+				}
+				precision = option.getValue();
+				break;
+			case "sigmoid":
+				if (!Arrays.asList(Sigmoid.NAMES).contains(option.getValue())) {
+					throw new IllegalArgumentException("Unknown sigmoid: " + option.getValue());
+				}
+				Sigmoid sigmoid = Sigmoid.select(option.getValue());
+				System.out.println("Sigmoid: " + sigmoid.getName() + ", max error: " + Sigmoid.measureMaxError(sigmoid));
+				break;
+			case "sparse":
+				sparseInputs = Boolean.parseBoolean(option.getValue());
+				break;
+			case "kernels":
+				if (!Arrays.asList(Kernels.NAMES).contains(option.getValue())) {
+					throw new IllegalArgumentException("Unknown kernels: " + option.getValue());
+				}
+				System.out.println("Kernels: " + Kernels.select(option.getValue()).getName());
+				break;
+			case "prune":
+				pruneSparsity = Double.parseDouble(option.getValue());
+				if (pruneSparsity < 0.0 || pruneSparsity >= 1.0) {
+					throw new IllegalArgumentException("Prune sparsity must be from 0 to below 1: " + pruneSparsity);
+				}
+				break;
+			case "saprune":
+				pruneProb = Double.parseDouble(option.getValue());
+				if (pruneProb < 0.0 || pruneProb > 1.0) {
+					throw new IllegalArgumentException("Prune probability must be from 0 to 1: " + pruneProb);
+				}
+				break;
+			case "layers":
+				// Applied when building the neural network.
+				break;
+			case "plan":
+				planExecution = Boolean.parseBoolean(option.getValue());
+				break;
+			case "compile":
+				compileScorer = Boolean.parseBoolean(option.getValue());
+				break;
+			case "stream":
+				streamChunkRows = Integer.parseInt(option.getValue());
+				if (streamChunkRows < 1) {
+					throw new IllegalArgumentException("Stream chunk rows must be positive: " + streamChunkRows);
+				}
+				break;
+			case "shuffle":
+				shuffleChunks = Boolean.parseBoolean(option.getValue());
+				break;
+			case "checkpoint":
+				checkpointFileName = option.getValue();
+				break;
+			case "resume":
+				resumeFileName = option.getValue();
+				break;
+			case "exchange":
+				exchangeInterval = Integer.parseInt(option.getValue());
+				if (exchangeInterval < 1) {
+					throw new IllegalArgumentException("Exchange interval must be positive: " + exchangeInterval);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: --" + option.getKey());
+			}
+		}
+		if (!precision.equals("double") && (batchSize > 1 || numThreads > 1 || asyncTraining || compareParallel)) {
+			throw new IllegalArgumentException("--precision=" + precision + " trains one instance at a time, without --batch, --threads, --async or --compare");
+		}
+		if (sparseInputs && (batchSize > 1 || numThreads > 1 || asyncTraining || compareParallel || !precision.equals("double")
+							|| incrementalEvaluation || miniBatchSize > 0 || numReplicas > 1)) {
+			throw new IllegalArgumentException("--sparse applies to serial per-instance bp and serial sa evaluation only");
+		}
+		if (planExecution && (saBpFlag || batchSize > 1 || numThreads > 1 || asyncTraining || compareParallel || !precision.equals("double")
+							|| sparseInputs || pruneSparsity > 0.0 || compileScorer)) {
+			throw new IllegalArgumentException("--plan applies to serial per-instance bp only");
+		}
+		if (streamChunkRows > 0 && (saBpFlag || batchSize > 1 || numThreads > 1 || asyncTraining || compareParallel || !precision.equals("double")
+							|| sparseInputs || planExecution || pruneSparsity > 0.0 || compileScorer)) {
+			throw new IllegalArgumentException("--stream applies to serial per-instance bp only");
+		}
+		if ((checkpointFileName != null || resumeFileName != null) && (planExecution || !precision.equals("double") || compareParallel || numReplicas > 1)) {
+			throw new IllegalArgumentException("--checkpoint & --resume apply to flat network training, without --plan, --precision, --compare or --replicas");
+		}
+		if (numReplicas > 1 && (!saBpFlag || adaptiveSchedule || miniBatchSize > 0 || numThreads > 1)) {
+			throw new IllegalArgumentException("--replicas runs sa chains on a fixed temperature ladder, one thread each, without --schedule=adaptive, --minibatch or --threads");
+		}
+		if (shuffleChunks && streamChunkRows == 0) {
+			throw new IllegalArgumentException("--shuffle applies to --stream");
+		}
+		if (!planExecution && neuralNetwork.getLayerGraph() != null && options.containsKey("layers") && neuralNetwork.getLayerGraph().getNumHiddenLayers() > 1) {
+			throw new IllegalArgumentException("Several hidden layers need --plan=true, flat networks evaluate all hidden nodes as one layer");
+		}
 	}
 
 	/**
@@ -252,18 +621,325 @@ public class MainNN {
 	
 	/** Executes simulated annealing or backpropagation metaheuristic. */
 	private void run(boolean saBpFlag) {
+		if (!readsRowsInPlace(saBpFlag)) {
+			copyRows();
+		}
+		if (planExecution) {
+			// Compile layer graph into an execution plan for training.
+			executionPlan = new ExecutionPlan(neuralNetwork);
+			executionPlan.setOptimizer(createOptimizer(executionPlan.getNumWeights()));
+			System.out.println("Execution plan: " + executionPlan);
+			bpPlan().print();
+			executionPlan.exportTo(neuralNetwork);
+			return;
+		}
+		if (resumeFileName != null) {
+			resume(saBpFlag);
+		}
+		else {
+			compile(saBpFlag);
+		}
+		if (numThreads > 1 || asyncTraining || compareParallel || (saBpFlag && numReplicas > 1)) {
+			pool = new ForkJoinPool(saBpFlag ? Math.max(numThreads, numReplicas) : numThreads);
+		}
+		
+		try {
+			train(saBpFlag);
+			if (pruneSparsity > 0.0 || pruneProb > 0.0) {
+				copyRows();
+				prune(saBpFlag);
+			}
+			if (compileScorer) {
+				copyRows();
+				compileScorer();
+			}
+			if (checkpointFileName != null) {
+				saveCheckpoint(saBpFlag);
+			}
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * Check whether training reads rows from the dataset in place: serial per-instance bp and serial sa evaluation stopping
+	 * once rejection is certain. For binary data that is the file mapped into memory, so training holds no copy and
+	 * shares the page cache with every other process reading the file.
+	 * @param saBpFlag true for simulated annealing, false for backpropagation.
+	 * @return true if training needs no data arrays.
+	 */
+	private boolean readsRowsInPlace(boolean saBpFlag) {
+		if (sparseInputs || numThreads > 1) {
+			return false;
+		}
+		if (saBpFlag) {
+			return !incrementalEvaluation && miniBatchSize == 0 && numReplicas <= 1;
+		}
+		return precision.equals("double") && batchSize <= 1 && !asyncTraining && !compareParallel && !planExecution;
+	}
+	
+	/** Copy the dataset rows to the data arrays, for training, pruning & reports that take them, once. */
+	private void copyRows() {
+		if (trainInputs == null && dataset != null) {
+			trainInputs = dataset.getInputRows();
+			trainOutputs = dataset.getOutputRows();
+		}
+	}
+	
+	/**
+	 * Resume training state from the checkpoint file, exiting if it cannot be read or does not fit the data.
+	 * The checkpoint's flat network is trained as read, in place of compiling the object graph; when its topology differs
+	 * from the arguments' (as after pruning) the object graph is rebuilt from it once trained. Backpropagation continues
+	 * the optimizer state if the optimizer is the same one, annealing from the temperature, weight factor and schedule
+	 * reached; eta & momentum come from the arguments.
+	 * @param saBpFlag true for simulated annealing, false for backpropagation.
+	 */
+	private void resume(boolean saBpFlag) {
+		Checkpoint checkpoint = null;
+		try {
+			long startTime = System.nanoTime();
+			checkpoint = Checkpoint.read(resumeFileName);
+			System.out.println("Read checkpoint " + resumeFileName + " of " + checkpoint.getNetwork().getNumNapses() + " napses in " + Math.round((System.nanoTime() - startTime) / 1000.0) + " us");
+		}
+		catch (IOException e) {
+			System.out.println("Cannot resume: " + e.getMessage());
+			System.exit(1);
+		}
+		FlatNeuralNetwork resumed = checkpoint.getNetwork();
+		if (resumed.getNumInputNodes() != neuralNetwork.getInputNodes().size() || resumed.getNumOutputNodes() != neuralNetwork.getOutputNodes().size()) {
+			System.out.println("Checkpoint network has " + (resumed.getNumInputNodes() - 1) + " inputs & " + (resumed.getNumOutputNodes() - 1) + " outputs, data has "
+								+ (neuralNetwork.getInputNodes().size() - 1) + " & " + (neuralNetwork.getOutputNodes().size() - 1));
+			System.exit(1);
+		}
+		flatNeuralNetwork = resumed;
+		startFromEnergy = saBpFlag;
+		flatNeuralNetwork.setEta(neuralNetwork.getEta());
+		flatNeuralNetwork.setMomentum(neuralNetwork.getMomentum());
+		flatNeuralNetwork.setPruneProb(pruneProb);
+		// Node & napse counts decide whether trained weights export to the arguments' object graph.
+		rebuildNeuralNetwork = resumed.getNumHiddenNodes() != neuralNetwork.getHiddenNodes().size() || resumed.getNumNapses() != neuralNetwork.getNumNapses();
+		if (rebuildNeuralNetwork) {
+			System.out.println("Checkpoint topology differs from the arguments, training its " + resumed.getNumNapses() + " napses");
+		}
+		if (!saBpFlag) {
+			flatNeuralNetwork.setOptimizer(createOptimizer(flatNeuralNetwork.getNumNapses()));
+			if (checkpoint.getTrainer() == Checkpoint.BP) {
+				// Continue optimizer where it left off, if still the same one.
+				if (checkpoint.restoreOptimizer(flatNeuralNetwork.getOptimizer())) {
+					System.out.println("Resumed " + checkpoint.getOptimizerName() + " optimizer state");
+				}
+				else {
+					System.out.println("Checkpoint optimizer " + checkpoint.getOptimizerName() + " differs from " + flatNeuralNetwork.getOptimizer().getName() + ", starting its state afresh");
+				}
+			}
+		}
+
+		if (saBpFlag && checkpoint.getTrainer() == Checkpoint.SA) {
+			startTemp = checkpoint.getTemp();
+			weightFactor = checkpoint.getWeightFactor();
+			scheduleState = checkpoint.getScheduleState();
+			System.out.println("Resumed annealing at temp: " + checkpoint.getTemp() + ", weight factor: " + checkpoint.getWeightFactor());
+		}
+		else if (saBpFlag != (checkpoint.getTrainer() == Checkpoint.SA)) {
+			System.out.println("Checkpoint was trained by " + ((checkpoint.getTrainer() == Checkpoint.SA) ? "sa" : "bp") + ", resuming its weights only");
+		}
+	}
+	
+	/**
+	 * Save the training state to the checkpoint file, reporting failure without stopping.
+	 * @param saBpFlag true for simulated annealing, false for backpropagation.
+	 */
+	private void saveCheckpoint(boolean saBpFlag) {
+		Checkpoint checkpoint = saBpFlag ? new Checkpoint(flatNeuralNetwork, saTemp, weightFactor, scheduleState) : new Checkpoint(flatNeuralNetwork);
+		try {
+			long startTime = System.nanoTime();
+			checkpoint.write(checkpointFileName);
+			System.out.println("Saved checkpoint " + checkpointFileName + " of " + flatNeuralNetwork.getNumNapses() + " napses in " + Math.round((System.nanoTime() - startTime) / 1000.0) + " us");
+		}
+		catch (IOException e) {
+			System.out.println("Checkpoint not saved: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Compile object graph into flat arrays for training, with a fresh optimizer for backpropagation.
+	 * @param saBpFlag true for simulated annealing, false for backpropagation.
+	 */
+	private void compile(boolean saBpFlag) {
+		flatNeuralNetwork = new FlatNeuralNetwork(neuralNetwork);
+		flatNeuralNetwork.setPruneProb(pruneProb);
+		if (!saBpFlag) {
+			flatNeuralNetwork.setOptimizer(createOptimizer(flatNeuralNetwork.getNumNapses()));
+		}
+	}
+	
+	/**
+	 * Create the selected optimizer, defaulting to momentum when [momentum] is given, otherwise sgd.
+	 * @param numNapses number of napse weights to hold state for.
+	 * @return new optimizer.
+	 */
+	private Optimizer createOptimizer(int numNapses) {
+		double momentum = neuralNetwork.getMomentum();
+		String name = (optimizerName != null) ? optimizerName : (momentum != 0.0) ? "momentum" : "sgd";
+		return Optimizer.create(name, numNapses, momentum);
+	}
+	
+	/**
+	 * Train the compiled or resumed network, then copy trained weights back into object graph, or rebuild it from them.
+	 * @param saBpFlag true for simulated annealing, false for backpropagation.
+	 */
+	private void train(boolean saBpFlag) {
 		if (saBpFlag) {
 			sa();
 		}
 		else {
 			bp();
 		}
+		if (rebuildNeuralNetwork) {
+			// Resumed topology differs from the arguments', so build its object graph.
+			neuralNetwork = flatNeuralNetwork.toNeuralNetwork();
+			rebuildNeuralNetwork = false;
+		}
+		else {
+			flatNeuralNetwork.exportTo(neuralNetwork);
+		}
+	}
+	
+	/**
+	 * Prune the trained network and compile it to a sparse layout holding only connected napses. Napses disconnected by
+	 * annealing moves are removed first, then with a target sparsity the smallest magnitude napses are disconnected in
+	 * PRUNE_STEPS rounds of growing sparsity, cubic in the round so later rounds cut less, fine-tuning the remaining napses for 1/PRUNE_STEPS of max epochs after each.
+	 * Reports napses, memory, accuracy and inference time of the trained and pruned networks.
+	 * @param saBpFlag true for simulated annealing, false for backpropagation.
+	 */
+	private void prune(boolean saBpFlag) {
+		int numDenseNapses = neuralNetwork.getNumNapses() + neuralNetwork.getNumDisconnectedNapses();
+		printInference("Trained", flatNeuralNetwork, numDenseNapses);
+		
+		if (pruneSparsity > 0.0) {
+			maxEpochs = Math.max(1, maxEpochs / PRUNE_STEPS);
+			for (int step = 1 ; step <= PRUNE_STEPS ; step++) {
+				int numRemoved = neuralNetwork.pruneZeroWeights();
+				// Cut hardest early, while the network has most redundancy to recover with: s * (1 - (1 - step/steps)^3).
+				double remaining = 1.0 - (double)step / PRUNE_STEPS;
+				numRemoved += neuralNetwork.pruneByMagnitude(pruneSparsity * (1.0 - remaining * remaining * remaining));
+				System.out.println("Prune round " + step + ": disconnected " + numRemoved + " napses, " + neuralNetwork.getNumNapses() + " remain");
+				compile(saBpFlag);
+				train(saBpFlag);
+			}
+		}
+		neuralNetwork.pruneZeroWeights();
+		compile(saBpFlag);
+		printInference("Pruned", flatNeuralNetwork, numDenseNapses);
+	}
+	
+	/**
+	 * Classify the training set to report a network's napses, memory, accuracy and inference time per instance.
+	 * @param label network description.
+	 * @param network network to classify with.
+	 * @param numDenseNapses napses of the unpruned network.
+	 */
+	private void printInference(String label, FlatNeuralNetwork network, int numDenseNapses) {
+		ErrorStats stats = new ErrorStats();
+		for (int ixTrain = 0 ; ixTrain < trainInputs.length ; ixTrain++) {
+			ClassifyOutput classifyOutput = network.classify(trainInputs[ixTrain], trainOutputs[ixTrain]);
+			stats.add(classifyOutput.getRmsError(), classifyOutput.getClassError());
+		}
+		long classifyTime = timeScorer(flatScorer(network));
+		int numNapses = network.getNumNapses();
+		System.out.println(label + ": napses: " + numNapses + " of " + numDenseNapses + ", sparsity: " + pctFormat.format((1.0 - (double)numNapses / numDenseNapses) * 100) + '%'
+							+ ", memory: " + network.getMemoryBytes() + " bytes, aveRMSE: " + decFormat.format(stats.getAvgRMSE()) + ", Acc: " + pctFormat.format(stats.getAccuracy() * 100) + '%'
+							+ ", classify: " + classifyTime + " ns/instance");
+	}
+	
+	/**
+	 * Compile the trained network into a generated scorer, checking its outputs against the object graph's classify
+	 * over the training set, then report per call latency of the object graph, flat network and generated scorer.
+	 */
+	private void compileScorer() {
+		long startTime = System.nanoTime();
+		Scorer generatedScorer = InferenceCompiler.compileGenerated(neuralNetwork);
+		long compileTime = System.nanoTime() - startTime;
+		if (generatedScorer == null) {
+			System.out.println("Compiled scorer: network exceeds " + InferenceCompiler.MAX_CODE_SIZE + " bytes of generated code, use classify");
+			return;
+		}
+		// Outputs should match classify exactly, generated scorer holding hidden bias values as of its next call.
+		double maxDifference = 0.0;
+		for (int ixTrain = 0 ; ixTrain < trainInputs.length ; ixTrain++) {
+			double[] scores = generatedScorer.score(trainInputs[ixTrain]);
+			double[] outputs = neuralNetwork.classify(trainInputs[ixTrain], trainOutputs[ixTrain]).getOutput();
+			for (int ixOutput = 0 ; ixOutput < outputs.length ; ixOutput++) {
+				maxDifference = Math.max(maxDifference, Math.abs(scores[ixOutput] - outputs[ixOutput]));
+			}
+		}
+		
+		final double[] targetOutputs = trainOutputs[0];
+		Scorer objectScorer = new Scorer() {
+			@Override
+			public double[] score(double[] inputs) {
+				return neuralNetwork.classify(inputs, targetOutputs).getOutput();
+			}
+		};
+		System.out.println("Compiled scorer: " + Math.round(compileTime / 1000.0) + " us to compile, max output difference from classify: " + maxDifference);
+		System.out.println("Latency: object graph classify: " + timeScorer(objectScorer) + " ns/call, flat classify: " + timeScorer(flatScorer(flatNeuralNetwork))
+							+ " ns/call, compiled scorer: " + timeScorer(generatedScorer) + " ns/call");
+	}
+	
+	/**
+	 * @param network flat network to classify with.
+	 * @return scorer of the network's classify, for timing.
+	 */
+	private Scorer flatScorer(final FlatNeuralNetwork network) {
+		final double[] targetOutputs = trainOutputs[0];
+		return new Scorer() {
+			@Override
+			public double[] score(double[] inputs) {
+				return network.classify(inputs, targetOutputs).getOutput();
+			}
+		};
+	}
+	
+	/**
+	 * Time a scorer over whole passes of the training set for at least half a second, after as long warming up.
+	 * Used for every inference latency reported, so they compare like for like.
+	 * @param scorer scorer to time.
+	 * @return average nanoseconds per call.
+	 */
+	private long timeScorer(Scorer scorer) {
+		long elapsedTime = 0;
+		long calls = 0;
+		// Sum of an output, so calls cannot be optimized away.
+		double sum = 0.0;
+		for (int pass = 0 ; pass < 2 ; pass++) {
+			long startTime = System.nanoTime();
+			calls = 0;
+			do {
+				for (int ixTrain = 0 ; ixTrain < trainInputs.length ; ixTrain++) {
+					sum += scorer.score(trainInputs[ixTrain])[0];
+				}
+				calls += trainInputs.length;
+				elapsedTime = System.nanoTime() - startTime;
+			} while (elapsedTime < 500000000L);
+		}
+		return (sum == Double.MAX_VALUE) ? 0 : Math.round((double)elapsedTime / calls);
 	}
 	
 	/** Execute simulated annealing metaheuristic. */
 	private void sa() {
-		// Previous neural network.
-		NeuralNetwork prevNeuralNetwork = null;
+		if (numReplicas > 1) {
+			// Run one chain per temperature, keeping the best network any of them found.
+			ReplicaExchangeTrainer trainer = new ReplicaExchangeTrainer(flatNeuralNetwork, trainInputs, trainOutputs, numReplicas, startTemp, endTemp,
+																		updateProb, weightFactor, weightFactorChange, incrementalEvaluation, pool);
+			flatNeuralNetwork = trainer.train(maxEpochs, exchangeInterval);
+			return;
+		}
+		
+		// Weight changes of last move, for regressing to previous neural network.
+		UndoLog undoLog = new UndoLog();
 		// Previous epoch average error.
 		double prevAvgRMSE = Double.MAX_VALUE;
 		// Previous epoch maximum error.
@@ -274,44 +950,138 @@ public class MainNN {
 		double maxAccuracy = 0.0;
 		// Minimum average RMSE over all epochs.
 		double minAveRMSE = Double.MAX_VALUE;
+		// Epoch errors.
+		ErrorStats stats = new ErrorStats();
+		// Parallel epoch evaluation, when multi-threaded.
+		ParallelEvaluator evaluator = (numThreads > 1) ? new ParallelEvaluator(flatNeuralNetwork, pool, numThreads, SHARD_CHUNK_SIZE) : null;
+		// Mini-batch move screening, when selected.
+		StochasticEvaluator stochasticEvaluator = (miniBatchSize > 0) ? new StochasticEvaluator(trainInputs, trainOutputs, miniBatchSize) : null;
+		// Incremental move evaluation, when selected and not screening.
+		IncrementalEvaluator incrementalEvaluator = (incrementalEvaluation && stochasticEvaluator == null) ? new IncrementalEvaluator(flatNeuralNetwork, trainInputs, trainOutputs) : null;
+		// Serial move evaluation stopping once rejection is certain, otherwise.
+		EarlyAbortEvaluator abortEvaluator = (trainInputs != null) ? new EarlyAbortEvaluator(trainInputs, trainOutputs, sparseInputs ? createSparseInputs() : null)
+																	: new EarlyAbortEvaluator(dataset);
+		int numInstances = dataset.getNumRows();
+		// Acceptance driven temperature & weight factor, when selected.
+		AdaptiveSchedule schedule = adaptiveSchedule ? new AdaptiveSchedule(startTemp, weightFactor, maxEpochs) : null;
+		if (schedule != null && scheduleState != null) {
+			schedule.setState(scheduleState);
+		}
+		if (startFromEnergy) {
+			// Start from the resumed network's energy, so the first move is judged against it.
+			startFromEnergy = false;
+			if (stochasticEvaluator != null) {
+				stochasticEvaluator.evaluate(flatNeuralNetwork, stats);
+				stochasticEvaluator.accept();
+			}
+			else {
+				abortEvaluator.classifyAll(flatNeuralNetwork, stats);
+				abortEvaluator.accept();
+			}
+			prevAvgRMSE = minAveRMSE = stats.getAvgRMSE();
+			prevMaxRMSE = stats.getMaxRMSE();
+			prevAccuracy = maxAccuracy = stats.getAccuracy();
+			System.out.println("Resumed: maxRMSE: " + decFormat.format(prevMaxRMSE) + ", aveRMSE: " + decFormat.format(prevAvgRMSE) 
+								+ ", Acc: " + pctFormat.format(prevAccuracy * 100) + '%');
+			if (maxEpochs > 0) {
+				flatNeuralNetwork.updateNeighborhood(updateProb, (schedule != null) ? schedule.getWeightFactor() : weightFactor, undoLog);
+			}
+		}
 
 		// Loop through epochs.
-		for (int epoch = 0 ; epoch < maxEpochs ; epoch++) {
-			// Sum root mean square error. 
-			double sumRMSE = 0.0;
-			// Maximum root mean square error. 
-			double maxRMSE = 0.0;
-			// Sum classification errors.
-			double sumClassError = 0.0;
+		int epoch;
+		for (epoch = 0 ; epoch < maxEpochs ; epoch++) {
+			double temp = (schedule != null) ? schedule.getTemp() : ((double)maxEpochs - (double)epoch)/(double)maxEpochs * (startTemp - endTemp) + endTemp;
+			// Uniform draw deciding an uphill move, shared by mini-batch screening & full set confirmation.
+			double random = Math.random();
 			
-			// Loop through training instances.
-			for (int ixTrain = 0 ; ixTrain < trainInputs.length ; ixTrain++) {
-				ClassifyOutput classifyOutput = neuralNetwork.classify(trainInputs[ixTrain], trainOutputs[ixTrain]);
-				sumRMSE = sumRMSE + classifyOutput.getRmsError();
-				maxRMSE = Math.max(maxRMSE, classifyOutput.getRmsError());
-				sumClassError = sumClassError + classifyOutput.getClassError();
+			// Lowest energy at which the move is certainly rejected.
+			double rejectEnergy = energy(prevAvgRMSE, prevMaxRMSE) - temp * Math.log(random);
+			// Flag & energy increase of a move rejected before full evaluation.
+			boolean rejectedEarly = false;
+			double earlyEnergyIncrease = 0.0;
+			
+			stats.clear();
+			if (stochasticEvaluator != null) {
+				// Reject without full evaluation if mini-batches show the move would be rejected.
+				if (prevAvgRMSE != Double.MAX_VALUE && !stochasticEvaluator.isPromising(flatNeuralNetwork, -temp * Math.log(random))) {
+					rejectedEarly = true;
+					earlyEnergyIncrease = stochasticEvaluator.getMeanDifference();
+				}
+				else {
+					// Confirm promising move on full set, classifying only instances screening did not draw.
+					stochasticEvaluator.evaluate(flatNeuralNetwork, stats);
+				}
+			}
+			else if (incrementalEvaluator != null) {
+				// Apply only the weight changes of the last move to cached instance values.
+				incrementalEvaluator.evaluate(flatNeuralNetwork, undoLog, stats);
+			}
+			else if (evaluator != null) {
+				// Classify training instances across threads a block at a time, stopping once rejection is certain.
+				int blockSize = numThreads * SHARD_CHUNK_SIZE;
+				for (int from = 0 ; from < numInstances && !rejectedEarly ; from += blockSize) {
+					evaluator.evaluate(flatNeuralNetwork, trainInputs, trainOutputs, from, Math.min(from + blockSize, numInstances), stats);
+					rejectedEarly = from + blockSize < numInstances && EarlyAbortEvaluator.isRejectionCertain(stats, numInstances, prevAvgRMSE, rejectEnergy);
+				}
+			}
+			else {
+				// Loop through training instances, stopping once rejection is certain.
+				rejectedEarly = abortEvaluator.evaluate(flatNeuralNetwork, prevAvgRMSE, rejectEnergy, stats);
 			}
 			
-			double avgRMSE = sumRMSE / trainInputs.length;
-			double accuracy = 1 - sumClassError / trainInputs.length;
+			if (rejectedEarly) {
+				if (stochasticEvaluator == null) {
+					System.out.println("Epoch " + epoch + ": rejected after " + stats.getCount() + " of " + numInstances + " instances");
+					earlyEnergyIncrease = energy(stats.getSumRMSE() / numInstances, stats.getMaxRMSE()) - energy(prevAvgRMSE, prevMaxRMSE);
+				}
+				if (schedule != null) {
+					schedule.update(epoch, 0.0, earlyEnergyIncrease, true, false);
+				}
+				// Regress to previous neural network.
+				flatNeuralNetwork.rollback(undoLog);
+				undoLog.commit();
+				if (epoch+1 < maxEpochs) {
+					flatNeuralNetwork.updateNeighborhood(updateProb, (schedule != null) ? schedule.getWeightFactor() : weightFactor, undoLog);
+				}
+				weightFactor *= weightFactorChange;
+				continue;
+			}
+			
+			double avgRMSE = stats.getAvgRMSE();
+			double maxRMSE = stats.getMaxRMSE();
+			double sumClassError = stats.getSumClassError();
+			double accuracy = stats.getAccuracy();
 			System.out.println("Epoch " + epoch + ": maxRMSE: " + decFormat.format(maxRMSE) + ", aveRMSE: " + decFormat.format(avgRMSE) 
 								+ ", Acc: " + pctFormat.format(accuracy * 100) + '%');
 			// Regress to previous neural network if error is higher.
-			if (avgRMSE > prevAvgRMSE && !moveUphill(prevAvgRMSE, avgRMSE, prevMaxRMSE, maxRMSE, ((double)maxEpochs - (double)epoch)/(double)maxEpochs * (startTemp - endTemp) + endTemp)) {
-				neuralNetwork = prevNeuralNetwork;
+			boolean uphill = avgRMSE > prevAvgRMSE;
+			boolean accepted = !(uphill && !moveUphill(prevAvgRMSE, avgRMSE, prevMaxRMSE, maxRMSE, temp, random));
+			if (schedule != null) {
+				schedule.update(epoch, energy(prevAvgRMSE, prevMaxRMSE), energy(avgRMSE, maxRMSE), uphill, accepted);
+			}
+			if (!accepted) {
+				if (incrementalEvaluator != null) {
+					incrementalEvaluator.reject();
+				}
+				flatNeuralNetwork.rollback(undoLog);
 				avgRMSE = prevAvgRMSE;
 				maxRMSE = prevMaxRMSE;
 				accuracy = prevAccuracy;
 			}
-			
-			// Save previous neural network.
-			try {
-				prevNeuralNetwork = neuralNetwork.clone();
+			else if (incrementalEvaluator != null) {
+				incrementalEvaluator.accept(flatNeuralNetwork);
+			}
+			else if (stochasticEvaluator != null) {
+				stochasticEvaluator.accept();
 			}
-			catch (CloneNotSupportedException ex) {
-				ex.printStackTrace();
+			else if (evaluator == null) {
+				abortEvaluator.accept();
 			}
 			
+			// Keep current neural network as previous.
+			undoLog.commit();
+			
 			// Save previous error for next comparison.
 			prevAvgRMSE = avgRMSE;
 			prevMaxRMSE = maxRMSE;
@@ -319,7 +1089,7 @@ public class MainNN {
 			
 			if (epoch+1 < maxEpochs) {
 				// Update neural network neighborhood.
-				neuralNetwork.updateNeighborhood(updateProb, weightFactor);
+				flatNeuralNetwork.updateNeighborhood(updateProb, (schedule != null) ? schedule.getWeightFactor() : weightFactor, undoLog);
 			}
 			
 			// Terminate if classification error is zero.
@@ -340,285 +1110,510 @@ public class MainNN {
 			}
 		}
 		System.out.println("minAveRMSE: " + decFormat.format(minAveRMSE) + ", maxAccuracy: " + pctFormat.format(maxAccuracy * 100) + '%');
+		// Keep temperature of next epoch & schedule reached, for checkpoints.
+		saTemp = (schedule != null) ? schedule.getTemp() : ((double)maxEpochs - (double)Math.min(epoch + 1, maxEpochs))/(double)maxEpochs * (startTemp - endTemp) + endTemp;
+		scheduleState = (schedule != null) ? schedule.getState() : null;
+		if (stochasticEvaluator != null) {
+			System.out.println(stochasticEvaluator.report(Math.min(epoch + 1, maxEpochs)));
+		}
+		else if (incrementalEvaluator != null) {
+			System.out.println("Incremental evaluation: max instance error difference from classify: " + incrementalEvaluator.measureMaxDifference(flatNeuralNetwork, undoLog));
+		}
+		else if (evaluator == null) {
+			System.out.println(abortEvaluator.report(Math.min(epoch + 1, maxEpochs)));
+		}
+	}
+	
+	/**
+	 * Compress training inputs to sparse rows, reporting their density.
+	 * @return sparse training inputs.
+	 */
+	private SparseRows createSparseInputs() {
+		SparseRows sparseTrainInputs = new SparseRows(trainInputs);
+		System.out.println("Sparse inputs: " + sparseTrainInputs.getNumEntries() + " non-zeros, density: " + pctFormat.format(sparseTrainInputs.getDensity() * 100) + '%');
+		return sparseTrainInputs;
 	}
 	
 	/** Calculate simulated annealing chance of moving uphill, check random probability and return flag indicating direction. */ 
-	private static boolean moveUphill(double prevAvgRMSE, double avgRMSE, double prevMaxRMSE, double maxRMSE, double temp) {
-		double adjPrevAvgRMSE = prevAvgRMSE + prevMaxRMSE / 100;
-		double adjAvgRMSE = avgRMSE + maxRMSE / 100;
-		double prob = Math.exp((adjPrevAvgRMSE - adjAvgRMSE) / temp);
-		double random = Math.random();
+	private static boolean moveUphill(double prevAvgRMSE, double avgRMSE, double prevMaxRMSE, double maxRMSE, double temp, double random) {
+		double adjPrevAvgRMSE = energy(prevAvgRMSE, prevMaxRMSE);
+		double adjAvgRMSE = energy(avgRMSE, maxRMSE);
+		double prob = uphillProbability(adjPrevAvgRMSE, adjAvgRMSE, temp);
 		System.out.println(((prob > random) ? "UP" : "  ") + "  prob- " + decFormat.format(prob) + "  random- " + decFormat.format(random) + "  prevAvgRMSE- " + decFormat.format(adjPrevAvgRMSE) + "  avgRMSE- " + decFormat.format(adjAvgRMSE) + "  temp- " + temp);
 		return prob > random ;
 	}
 	
+	/** Calculate simulated annealing energy: average RMSE adjusted by maximum RMSE. */
+	static double energy(double avgRMSE, double maxRMSE) {
+		return avgRMSE + maxRMSE / 100;
+	}
+	
+	/** Calculate simulated annealing chance of moving uphill from previous to current energy at temperature. */
+	static double uphillProbability(double prevEnergy, double energy, double temp) {
+		return Math.exp((prevEnergy - energy) / temp);
+	}
+	
 	/** Execute backpropagation metaheuristic. */
 	private void bp() {
+		if (precision.equals("compare")) {
+			comparePrecisions();
+			return;
+		}
+		if (precision.equals("float")) {
+			bpFloat().print();
+			return;
+		}
+		if (compareParallel) {
+			compareParallelModes();
+			return;
+		}
+		if (asyncTraining) {
+			bpAsync().print();
+			return;
+		}
+		if (numThreads > 1) {
+			bpParallel().print();
+			return;
+		}
+		if (batchSize > 1) {
+			bpBatch();
+			return;
+		}
+		if (datasetStream != null) {
+			bpStream().print();
+			return;
+		}
+		bpInstances();
+	}
+	
+	/**
+	 * Execute backpropagation metaheuristic, updating weights after every instance.
+	 * @return training throughput & convergence.
+	 */
+	private TrainingReport bpInstances() {
+		TrainingReport report = new TrainingReport("double");
+		SparseRows sparseTrainInputs = sparseInputs ? createSparseInputs() : null;
+		// Row values, when reading the dataset in place.
+		double[] inputRow = (trainInputs == null) ? new double[dataset.getNumInputs()] : null;
+		double[] outputRow = (trainInputs == null) ? new double[dataset.getNumOutputs()] : null;
+		int numInstances = dataset.getNumRows();
+		ErrorStats stats = new ErrorStats();
 		// Loop through epochs.
 		for (int epoch = 0 ; epoch < maxEpochs ; epoch++) {
-			// Sum root mean square error. 
-			double sumRMSE = 0.0;
-			// Maximum root mean square error. 
-			double maxRMSE = 0.0;
-			// Sum classification errors.
-			double sumClassError = 0.0;
+			stats.clear();
 			// Loop through training instances.
-			for (int ixTrain = 0 ; ixTrain < trainInputs.length ; ixTrain++) {
-				// Set neural network inputs.
-				neuralNetwork.backpropagate(trainInputs[ixTrain], trainOutputs[ixTrain]);
-				ClassifyOutput classifyOutput = neuralNetwork.classify(trainInputs[ixTrain], trainOutputs[ixTrain]);
-				sumRMSE = sumRMSE + classifyOutput.getRmsError();
-				maxRMSE = Math.max(maxRMSE, classifyOutput.getRmsError());
-				sumClassError = sumClassError + classifyOutput.getClassError();
+			for (int ixTrain = 0 ; ixTrain < numInstances ; ixTrain++) {
+				// Train on instance, taking its errors from the same forward pass.
+				ClassifyOutput classifyOutput;
+				if (sparseTrainInputs != null) {
+					classifyOutput = flatNeuralNetwork.backpropagate(sparseTrainInputs, ixTrain, trainOutputs[ixTrain]);
+				}
+				else if (inputRow != null) {
+					dataset.getInputs(ixTrain, inputRow);
+					dataset.getOutputs(ixTrain, outputRow);
+					classifyOutput = flatNeuralNetwork.backpropagate(inputRow, outputRow);
+				}
+				else {
+					classifyOutput = flatNeuralNetwork.backpropagate(trainInputs[ixTrain], trainOutputs[ixTrain]);
+				}
+				stats.add(classifyOutput.getRmsError(), classifyOutput.getClassError());
 			}
 			
-			System.out.println("Epoch " + epoch + ": maxRMSE: " + decFormat.format(maxRMSE) + ", aveRMSE: " + decFormat.format(sumRMSE / trainInputs.length) + ", Acc: " + pctFormat.format((1 - sumClassError / trainInputs.length) * 100) + '%');
+			printEpoch(epoch, stats);
+			report.addEpoch(stats);
 			
 			// Terminate if classification error is zero.
-			if (sumClassError == 0.0) {
+			if (stats.getSumClassError() == 0.0) {
 				System.out.println("Success");
 				break;
 			}
 		}
+		report.finish();
+		return report;
 	}
-
-	/** Build regular neural network or more advanced palletizing network with factored output nodes, based on flag. */
-	private static NeuralNetwork buildNeuralNetwork(int numInputNodes, int numOutputNodes, int numHiddenNodes, double minWeight, double maxWeight, boolean biasNodes, boolean palletData) {
-		if (palletData) {
-			return buildPalletNeuralNetwork(numInputNodes, numOutputNodes, numHiddenNodes, minWeight, maxWeight, biasNodes);
+	
+	/**
+	 * Execute backpropagation metaheuristic over the streamed data file, chunk by chunk, updating weights after every
+	 * instance. Each chunk is read in the background while the one before trains.
+	 * @return training throughput & convergence.
+	 */
+	private TrainingReport bpStream() {
+		System.out.println("Streaming " + datasetStream.getNumRows() + " rows in " + datasetStream.getNumChunks() + " chunks of " + datasetStream.getChunkRows()
+							+ " rows, holding " + datasetStream.getMemoryBytes() + " bytes");
+		TrainingReport report = new TrainingReport("stream");
+		ErrorStats stats = new ErrorStats();
+		try {
+			// Loop through epochs.
+			for (int epoch = 0 ; epoch < maxEpochs ; epoch++) {
+				stats.clear();
+				// Loop through chunks, then their training instances.
+				for (int ixChunk = 0 ; ixChunk < datasetStream.getNumChunks() ; ixChunk++) {
+					DatasetStream.Chunk chunk = datasetStream.next();
+					double[][] chunkInputs = chunk.getInputs();
+					double[][] chunkOutputs = chunk.getOutputs();
+					for (int ixTrain = 0 ; ixTrain < chunk.getNumRows() ; ixTrain++) {
+						ClassifyOutput classifyOutput = flatNeuralNetwork.backpropagate(chunkInputs[ixTrain], chunkOutputs[ixTrain]);
+						stats.add(classifyOutput.getRmsError(), classifyOutput.getClassError());
+					}
+				}
+				
+				printEpoch(epoch, stats);
+				report.addEpoch(stats);
+				
+				// Terminate if classification error is zero.
+				if (stats.getSumClassError() == 0.0) {
+					System.out.println("Success");
+					break;
+				}
+			}
+			report.finish();
+			System.out.println("Waited " + Math.round(datasetStream.getWaitTime() / 1000000.0) + " ms for chunk reads");
 		}
-		else {
-			return buildStandardNeuralNetwork(numInputNodes, numOutputNodes, numHiddenNodes, minWeight, maxWeight, biasNodes);
+		catch (IOException | IllegalArgumentException e) {
+			// Report unreadable or malformed data as loading it does.
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+		finally {
+			try { datasetStream.close(); } catch (IOException e) {}
 		}
+		return report;
 	}
 	
-	/** Build standard neural network. */
-	private static NeuralNetwork buildStandardNeuralNetwork(int numInputNodes, int numOutputNodes, int numHiddenNodes, double minWeight, double maxWeight, boolean biasNodes) {
-		NeuralNetwork neuralNetwork = new NeuralNetwork();
-		
-		// Build node layers. Capacity includes room for optional bias node.
-		List<InputNode> inputNodes = new ArrayList<InputNode>(numInputNodes + 1);
-		List<HiddenNode> hiddenNodes = new ArrayList<HiddenNode>(numHiddenNodes + 1);
-		List<OutputNode> outputNodes = new ArrayList<OutputNode>(numOutputNodes + 1);
-		
-		// Build input nodes (at 1..numInputNodes). Includes optionally used bias node at index 0.
-		inputNodes.add(new InputNode(1.0, true));
-		for (int ix = 1 ; ix <= numInputNodes ; ix++) {
-			inputNodes.add(new InputNode());
+	/**
+	 * Execute backpropagation metaheuristic through the execution plan, updating weights after every instance.
+	 * @return training throughput & convergence.
+	 */
+	private TrainingReport bpPlan() {
+		TrainingReport report = new TrainingReport("plan");
+		ErrorStats stats = new ErrorStats();
+		// Loop through epochs.
+		for (int epoch = 0 ; epoch < maxEpochs ; epoch++) {
+			stats.clear();
+			// Loop through training instances.
+			for (int ixTrain = 0 ; ixTrain < trainInputs.length ; ixTrain++) {
+				ClassifyOutput classifyOutput = executionPlan.backpropagate(trainInputs[ixTrain], trainOutputs[ixTrain]);
+				stats.add(classifyOutput.getRmsError(), classifyOutput.getClassError());
+			}
+			
+			printEpoch(epoch, stats);
+			report.addEpoch(stats);
+			
+			// Terminate if classification error is zero.
+			if (stats.getSumClassError() == 0.0) {
+				System.out.println("Success");
+				break;
+			}
 		}
-		
-		// Build hidden nodes (at 1..numHiddenNodes). Includes optionally used bias node at index 0.
-		hiddenNodes.add(new HiddenNode(1.0, true));
-		for (int ix = 1 ; ix <= numHiddenNodes ; ix++) {
-			hiddenNodes.add(new HiddenNode());
+		report.finish();
+		return report;
+	}
+	
+	/**
+	 * Execute backpropagation metaheuristic in single precision, updating weights after every instance.
+	 * The trained weights are copied back to the flat neural network and the training set is classified with them in both
+	 * precisions, reporting the difference along with the memory held by each.
+	 * @return training throughput & convergence.
+	 */
+	private TrainingReport bpFloat() {
+		TrainingReport report = new TrainingReport("float");
+		FloatNeuralNetwork floatNeuralNetwork = new FloatNeuralNetwork(flatNeuralNetwork);
+		float[][] floatInputs = FloatNeuralNetwork.toFloat(trainInputs);
+		float[][] floatOutputs = FloatNeuralNetwork.toFloat(trainOutputs);
+		ErrorStats stats = new ErrorStats();
+		// Loop through epochs.
+		for (int epoch = 0 ; epoch < maxEpochs ; epoch++) {
+			stats.clear();
+			// Loop through training instances.
+			for (int ixTrain = 0 ; ixTrain < floatInputs.length ; ixTrain++) {
+				ClassifyOutput classifyOutput = floatNeuralNetwork.backpropagate(floatInputs[ixTrain], floatOutputs[ixTrain]);
+				stats.add(classifyOutput.getRmsError(), classifyOutput.getClassError());
+			}
+			
+			printEpoch(epoch, stats);
+			report.addEpoch(stats);
+			
+			// Terminate if classification error is zero.
+			if (stats.getSumClassError() == 0.0) {
+				System.out.println("Success");
+				break;
+			}
 		}
+		report.finish();
+		floatNeuralNetwork.exportTo(flatNeuralNetwork);
 		
-		// Build input nodes (at 1..numOutputNodes). Includes unused node at index 0 for consistency.
-		outputNodes.add(new OutputNode(true));
-		for (int ix = 1 ; ix <= numOutputNodes ; ix++) {
-			outputNodes.add(new OutputNode());
+		// Classify training set with the trained weights in both precisions.
+		ErrorStats floatStats = new ErrorStats();
+		ErrorStats doubleStats = new ErrorStats();
+		double maxOutputDiff = 0.0;
+		long datasetValues = 0;
+		for (int ixTrain = 0 ; ixTrain < trainInputs.length ; ixTrain++) {
+			ClassifyOutput floatOutput = floatNeuralNetwork.classify(floatInputs[ixTrain], floatOutputs[ixTrain]);
+			ClassifyOutput doubleOutput = flatNeuralNetwork.classify(trainInputs[ixTrain], trainOutputs[ixTrain]);
+			floatStats.add(floatOutput.getRmsError(), floatOutput.getClassError());
+			doubleStats.add(doubleOutput.getRmsError(), doubleOutput.getClassError());
+			for (int ixOutput = 0 ; ixOutput < doubleOutput.getOutput().length ; ixOutput++) {
+				maxOutputDiff = Math.max(maxOutputDiff, Math.abs(floatOutput.getOutput()[ixOutput] - doubleOutput.getOutput()[ixOutput]));
+			}
+			datasetValues += trainInputs[ixTrain].length + trainOutputs[ixTrain].length;
 		}
+		System.out.println("Float vs double classification with trained weights: aveRMSE: " + decFormat.format(floatStats.getAvgRMSE()) + " vs " + decFormat.format(doubleStats.getAvgRMSE())
+							+ ", Acc: " + pctFormat.format(floatStats.getAccuracy() * 100) + "% vs " + pctFormat.format(doubleStats.getAccuracy() * 100)
+							+ "%, max output difference: " + maxOutputDiff);
+		System.out.println("Float vs double memory: network: " + floatNeuralNetwork.getMemoryBytes() + " vs " + 2 * floatNeuralNetwork.getMemoryBytes()
+							+ " bytes, dataset: " + 4 * datasetValues + " vs " + 8 * datasetValues + " bytes");
+		return report;
+	}
+	
+	/** Train from the same initial weights in single and double precision, then report throughput & convergence of both. */
+	private void comparePrecisions() {
+		FlatNeuralNetwork initialNeuralNetwork = flatNeuralNetwork.clone();
+		TrainingReport floatReport = bpFloat();
+		FlatNeuralNetwork floatNeuralNetwork = flatNeuralNetwork;
 		
-		// Add synapse between input & hidden layers.
-		for (InputNode inputNode : inputNodes) {
-			// If not using bias nodes, skip adding synapses to bias node.
-			if (!biasNodes && inputNode.isBias()) {
-				continue;
+		flatNeuralNetwork = initialNeuralNetwork;
+		TrainingReport doubleReport = bpInstances();
+		
+		System.out.println("Precision comparison:");
+		floatReport.print();
+		doubleReport.print();
+		
+		// Keep the more accurate neural network.
+		if (floatReport.accuracy > doubleReport.accuracy) {
+			flatNeuralNetwork = floatNeuralNetwork;
+		}
+	}
+
+	/** Execute mini-batch backpropagation metaheuristic, making one weight update per batch of training instances. */
+	private void bpBatch() {
+		BatchBuffer batchBuffer = flatNeuralNetwork.createBatchBuffer(batchSize);
+		ErrorStats stats = new ErrorStats();
+		// Loop through epochs.
+		for (int epoch = 0 ; epoch < maxEpochs ; epoch++) {
+			stats.clear();
+			// Loop through batches of training instances.
+			for (int from = 0 ; from < trainInputs.length ; from += batchSize) {
+				flatNeuralNetwork.backpropagateBatch(trainInputs, trainOutputs, from, Math.min(from + batchSize, trainInputs.length), batchBuffer, stats);
 			}
-			for (HiddenNode hiddenNode : hiddenNodes) {
-				// If not using bias nodes, skip adding synapses to bias node.
-				if (hiddenNode.isBias()) {
-					continue;
-				}
-				// Create synapse.
-				Napse napse = new Napse(inputNode, hiddenNode, getRandomWeight(minWeight, maxWeight));
-				// Add to both of its ends.
-				inputNode.getOutputNapses().add(napse);
-				hiddenNode.getInputNapses().add(napse);
+			
+			printEpoch(epoch, stats);
+			
+			// Terminate if classification error is zero.
+			if (stats.getSumClassError() == 0.0) {
+				System.out.println("Success");
+				break;
 			}
 		}
-		
-		// Add synapse between hidden & output layers.
-		for (HiddenNode hiddenNode : hiddenNodes) {
-			// If not using bias nodes, skip adding synapses to bias node.
-			if (!biasNodes && hiddenNode.isBias()) {
-				continue;
-			}
-			for (OutputNode outputNode : outputNodes) {
-				// Skip adding synapses to bias node.
-				if (outputNode.isBias()) {
-					continue;
+	}
+	
+	/**
+	 * Execute data-parallel backpropagation metaheuristic, making one weight update per batch. The default batch is
+	 * PARALLEL_BATCH_SIZE instances with eta scaled by its square root, keeping per epoch progress near the serial path's,
+	 * which updates after every instance.
+	 * @return training throughput & convergence.
+	 */
+	private TrainingReport bpParallel() {
+		boolean defaultBatch = batchSize <= 1;
+		int parallelBatchSize = defaultBatch ? Math.min(PARALLEL_BATCH_SIZE, trainInputs.length) : batchSize;
+		double eta = flatNeuralNetwork.getEta();
+		if (defaultBatch) {
+			flatNeuralNetwork.setEta(eta * Math.sqrt(parallelBatchSize));
+		}
+		TrainingReport report = new TrainingReport("sync, " + numThreads + " threads, batch " + parallelBatchSize);
+		ParallelTrainer trainer = new ParallelTrainer(flatNeuralNetwork, pool, numThreads, SHARD_CHUNK_SIZE);
+		ErrorStats stats = new ErrorStats();
+		try {
+			// Loop through epochs.
+			for (int epoch = 0 ; epoch < maxEpochs ; epoch++) {
+				stats.clear();
+				trainer.trainEpoch(trainInputs, trainOutputs, parallelBatchSize, stats);
+				
+				printEpoch(epoch, stats);
+				report.addEpoch(stats);
+				
+				// Terminate if classification error is zero.
+				if (stats.getSumClassError() == 0.0) {
+					System.out.println("Success");
+					break;
 				}
-				// Create synapse.
-				Napse napse = new Napse(hiddenNode, outputNode, getRandomWeight(minWeight, maxWeight));
-				// Add to both of its ends.
-				hiddenNode.getOutputNapses().add(napse);
-				outputNode.getInputNapses().add(napse);
 			}
 		}
+		finally {
+			flatNeuralNetwork.setEta(eta);
+		}
+		report.finish();
+		return report;
+	}
+	
+	/**
+	 * Execute asynchronous (Hogwild style) parallel backpropagation metaheuristic, updating shared weights after every instance without locks.
+	 * @return training throughput & convergence.
+	 */
+	private TrainingReport bpAsync() {
+		TrainingReport report = new TrainingReport("async, " + numThreads + " threads");
+		HogwildTrainer trainer = new HogwildTrainer(flatNeuralNetwork, pool, numThreads);
+		ErrorStats stats = new ErrorStats();
+		// Loop through epochs.
+		for (int epoch = 0 ; epoch < maxEpochs ; epoch++) {
+			stats.clear();
+			trainer.trainEpoch(trainInputs, trainOutputs, stats);
+			
+			printEpoch(epoch, stats);
+			report.addEpoch(stats);
+			
+			// Terminate if classification error is zero.
+			if (stats.getSumClassError() == 0.0) {
+				System.out.println("Success");
+				break;
+			}
+		}
+		report.finish();
+		return report;
+	}
+	
+	/** Train from the same initial weights in synchronous and asynchronous parallel modes, then report throughput & convergence of both. */
+	private void compareParallelModes() {
+		FlatNeuralNetwork initialNeuralNetwork = flatNeuralNetwork.clone();
+		TrainingReport syncReport = bpParallel();
+		FlatNeuralNetwork syncNeuralNetwork = flatNeuralNetwork;
+		
+		flatNeuralNetwork = initialNeuralNetwork;
+		TrainingReport asyncReport = bpAsync();
 		
-		// Add input, hidden and output layers to neural network.
-		neuralNetwork.setInputNodes(inputNodes);
-		neuralNetwork.setHiddenNodes(hiddenNodes);
-		neuralNetwork.setOutputNodes(outputNodes);
+		System.out.println("Parallel training comparison:");
+		syncReport.print();
+		asyncReport.print();
 		
-		return neuralNetwork;
+		// Keep the more accurate neural network.
+		if (syncReport.accuracy > asyncReport.accuracy) {
+			flatNeuralNetwork = syncNeuralNetwork;
+		}
+	}
+	
+	/** Display epoch errors. */
+	private static void printEpoch(int epoch, ErrorStats stats) {
+		System.out.println("Epoch " + epoch + ": maxRMSE: " + decFormat.format(stats.getMaxRMSE()) + ", aveRMSE: " + decFormat.format(stats.getAvgRMSE()) + ", Acc: " + pctFormat.format(stats.getAccuracy() * 100) + '%');
 	}
 
-	/** Build advanced palletizing network with factored output nodes. */
-	private static NeuralNetwork buildPalletNeuralNetwork(int numInputNodes, int numOutputNodes, int numHiddenNodes, double minWeight, double maxWeight, boolean biasNodes) {
-		NeuralNetwork neuralNetwork = new NeuralNetwork();
+	/**
+	 * This records the throughput & convergence of a training run.
+	 */
+	private static class TrainingReport {
+		/** Training mode description. */
+		private String mode;
 		
-		// Build node layers. Capacity includes room for optional bias node.
-		List<InputNode> inputNodes = new ArrayList<InputNode>(numInputNodes + 1);
-		List<HiddenNode> hiddenNodes = new ArrayList<HiddenNode>(numHiddenNodes + 1);
-		List<OutputNode> outputNodes = new ArrayList<OutputNode>(numOutputNodes + 1);
-		// Intermediate hidden layers between first hidden later and output nodes.
-		List<HiddenNode> hiddenNodesA = new ArrayList<HiddenNode>(numHiddenNodes + 1);
-		List<HiddenNode> hiddenNodesB = new ArrayList<HiddenNode>(numHiddenNodes + 1);
+		/** Start time in nanoseconds. */
+		private long startTime = System.nanoTime();
 		
-		// Build input nodes (at 1..numInputNodes). Includes optionally used bias node at index 0.
-		inputNodes.add(new InputNode(1.0, true));
-		for (int ix = 1 ; ix <= numInputNodes ; ix++) {
-			inputNodes.add(new InputNode());
-		}
+		/** Elapsed time in nanoseconds. */
+		private long elapsedTime;
 		
-		// Build hidden nodes (at 1..numHiddenNodes). Includes optionally used bias node at index 0.
-		hiddenNodes.add(new HiddenNode(1.0, true));
-		for (int ix = 1 ; ix <= numHiddenNodes ; ix++) {
-			hiddenNodes.add(new HiddenNode());
-		}
+		/** Number of epochs run. */
+		private int epochs;
 		
-		// Build intermediate A hidden nodes (at 1..numHiddenNodes). Includes optionally used bias node at index 0.
-		hiddenNodesA.add(new HiddenNode(1.0, true));
-		for (int ix = 1 ; ix <= numHiddenNodes ; ix++) {
-			hiddenNodesA.add(new HiddenNode());
-		}
+		/** Number of instances trained. */
+		private long instances;
 		
-		// Build intermediate B hidden nodes (at 1..numHiddenNodes). Includes optionally used bias node at index 0.
-		hiddenNodesB.add(new HiddenNode(1.0, true));
-		for (int ix = 1 ; ix <= numHiddenNodes ; ix++) {
-			hiddenNodesB.add(new HiddenNode());
-		}
+		/** Last epoch average root mean square error. */
+		private double avgRMSE;
 		
-		// Build output nodes (at 1..numOutputNodes). Includes unused node at index 0 for consistency.
-		outputNodes.add(new OutputNode(true));
-		for (int ix = 1 ; ix <= numOutputNodes ; ix++) {
-			outputNodes.add(new FactoredOutputNode((ix < 6) ? 9.0 : 4.0, false));
-		}
+		/** Last epoch accuracy. */
+		private double accuracy;
 		
-		// Add synapse between input & hidden layers.
-		for (InputNode inputNode : inputNodes) {
-			// If not using bias nodes, skip adding synapses to bias node.
-			if (!biasNodes && inputNode.isBias()) {
-				continue;
-			}
-			for (HiddenNode hiddenNode : hiddenNodes) {
-				// If not using bias nodes, skip adding synapses to bias node.
-				if (hiddenNode.isBias()) {
-					continue;
-				}
-				// Create synapse.
-				Napse napse = new Napse(inputNode, hiddenNode, getRandomWeight(minWeight, maxWeight));
-				// Add to both of its ends.
-				inputNode.getOutputNapses().add(napse);
-				hiddenNode.getInputNapses().add(napse);
-			}
+		/** Maximum epoch accuracy. */
+		private double maxAccuracy;
+		
+		/** First epoch reaching maximum accuracy. */
+		private int maxAccuracyEpoch;
+		
+		/**
+		 * @param mode training mode description.
+		 */
+		TrainingReport(String mode) {
+			this.mode = mode;
 		}
 		
-		// Add synapse from hidden to hiddenA & hiddenB layers.
-		for (HiddenNode hiddenNode : hiddenNodes) {
-			// If not using bias nodes, skip adding synapses to bias node.
-			if (!biasNodes && hiddenNode.isBias()) {
-				continue;
-			}
-			for (HiddenNode hiddenNodeA : hiddenNodesA) {
-				// Skip adding synapses to bias node.
-				if (hiddenNodeA.isBias()) {
-					continue;
-				}
-				// Create synapse.
-				Napse napse = new Napse(hiddenNode, hiddenNodeA, getRandomWeight(minWeight, maxWeight));
-				// Add to both of its ends.
-				hiddenNode.getOutputNapses().add(napse);
-				hiddenNodeA.getInputNapses().add(napse);
-			}
-			for (HiddenNode hiddenNodeB : hiddenNodesB) {
-				// Skip adding synapses to bias node.
-				if (hiddenNodeB.isBias()) {
-					continue;
-				}
-				// Create synapse.
-				Napse napse = new Napse(hiddenNode, hiddenNodeB, getRandomWeight(minWeight, maxWeight));
-				// Add to both of its ends.
-				hiddenNode.getOutputNapses().add(napse);
-				hiddenNodeB.getInputNapses().add(napse);
+		/** Record errors of an epoch. */
+		void addEpoch(ErrorStats stats) {
+			instances += stats.getCount();
+			avgRMSE = stats.getAvgRMSE();
+			accuracy = stats.getAccuracy();
+			if (maxAccuracy < accuracy) {
+				maxAccuracy = accuracy;
+				maxAccuracyEpoch = epochs;
 			}
+			epochs++;
 		}
 		
-		// Add synapse between hiddenA & first 5 nodes of output layers.
-		for (HiddenNode hiddenNodeA : hiddenNodesA) {
-			// If not using bias nodes, skip adding synapses to bias node.
-			if (!biasNodes && hiddenNodeA.isBias()) {
-				continue;
-			}
-			int ix = 0;
-			for (OutputNode outputNode : outputNodes) {
-				// Skip adding synapses to bias node.
-				if (outputNode.isBias()) {
-					continue;
-				}
-				// Create synapse.
-				Napse napse = new Napse(hiddenNodeA, outputNode, getRandomWeight(minWeight, maxWeight));
-				// Add to both of its ends.
-				hiddenNodeA.getOutputNapses().add(napse);
-				outputNode.getInputNapses().add(napse);
-				
-				if (++ix >= 5) {
-					break;
-				}
-			}
+		/** Record end of training. */
+		void finish() {
+			elapsedTime = System.nanoTime() - startTime;
 		}
 		
-		// Add synapse between hiddenB & last 5 nodes of output layers.
-		for (HiddenNode hiddenNodeB : hiddenNodesB) {
-			// If not using bias nodes, skip adding synapses to bias node.
-			if (!biasNodes && hiddenNodeB.isBias()) {
-				continue;
-			}
-			int ix = 0;
-			for (OutputNode outputNode : outputNodes) {
-				// Skip adding synapses to bias node.
-				if (outputNode.isBias() || ++ix <= 5) {
-					continue;
-				}
-				// Create synapse.
-				Napse napse = new Napse(hiddenNodeB, outputNode, getRandomWeight(minWeight, maxWeight));
-				// Add to both of its ends.
-				hiddenNodeB.getOutputNapses().add(napse);
-				outputNode.getInputNapses().add(napse);				
-			}			
+		/** Display report. */
+		void print() {
+			double seconds = elapsedTime / 1.0e9;
+			System.out.println(mode + ": epochs: " + epochs + ", time: " + decFormat.format(seconds) + "s, throughput: " + Math.round(instances / seconds) + " instances/s"
+								+ ", aveRMSE: " + decFormat.format(avgRMSE) + ", Acc: " + pctFormat.format(accuracy * 100) + '%'
+								+ ", maxAcc: " + pctFormat.format(maxAccuracy * 100) + "% at epoch " + maxAccuracyEpoch);
 		}
+	}
 
-		// Collect different layers of hidden nodes together.
-		List<HiddenNode> allHiddenNodes = new ArrayList<HiddenNode>();
-		allHiddenNodes.addAll(hiddenNodes);
-		allHiddenNodes.addAll(hiddenNodesA);
-		allHiddenNodes.addAll(hiddenNodesB);
-		
-		// Add input, hidden and output layers to neural network.
-		neuralNetwork.setInputNodes(inputNodes);
-		neuralNetwork.setHiddenNodes(allHiddenNodes);
-		neuralNetwork.setOutputNodes(outputNodes);
+	/** Build regular neural network or more advanced palletizing network with factored output nodes, based on flag. */
+	private static NeuralNetwork buildNeuralNetwork(int numInputNodes, int numOutputNodes, int[] hiddenLayerSizes, double minWeight, double maxWeight, boolean biasNodes, boolean palletData) {
+		if (palletData) {
+			return buildPalletNeuralNetwork(numInputNodes, numOutputNodes, hiddenLayerSizes[0], minWeight, maxWeight, biasNodes);
+		}
+		else {
+			return buildStandardNeuralNetwork(numInputNodes, numOutputNodes, hiddenLayerSizes, minWeight, maxWeight, biasNodes);
+		}
+	}
+	
+	/** Build standard neural network, hidden layers in sequence. */
+	private static NeuralNetwork buildStandardNeuralNetwork(int numInputNodes, int numOutputNodes, int[] hiddenLayerSizes, double minWeight, double maxWeight, boolean biasNodes) {
+		LayerGraph layerGraph = new LayerGraph();
+		layerGraph.addInput("input", numInputNodes);
+		String previous = "input";
+		for (int ix = 0 ; ix < hiddenLayerSizes.length ; ix++) {
+			String name = (hiddenLayerSizes.length == 1) ? "hidden" : "hidden" + (ix + 1);
+			layerGraph.addHidden(name, hiddenLayerSizes[ix]);
+			layerGraph.connect(previous, name);
+			previous = name;
+		}
+		layerGraph.addOutput("output", numOutputNodes);
+		layerGraph.connect(previous, "output");
 		
-		return neuralNetwork;
+		return layerGraph.buildNeuralNetwork(minWeight, maxWeight, biasNodes);
 	}
 
 	/**
-	 * Generate random weight between minWeight & maxWeight.
-	 * @return random weight
+	 * Build advanced palletizing network with factored output nodes. The first hidden layer feeds intermediate hidden
+	 * layers A & B, which head the first 5 outputs (factor 9) and the rest (factor 4). Layer B is left out for 5 or fewer outputs.
 	 */
-	private static double getRandomWeight(double minWeight, double maxWeight) {
-		return (maxWeight - minWeight) * Math.random() + minWeight;
+	private static NeuralNetwork buildPalletNeuralNetwork(int numInputNodes, int numOutputNodes, int numHiddenNodes, double minWeight, double maxWeight, boolean biasNodes) {
+		LayerGraph layerGraph = new LayerGraph();
+		layerGraph.addInput("input", numInputNodes);
+		layerGraph.addHidden("hidden", numHiddenNodes);
+		// Head B only when there are outputs beyond the first 5 to feed.
+		boolean headB = numOutputNodes > 5;
+		layerGraph.addHidden("hiddenA", numHiddenNodes);
+		if (headB) {
+			layerGraph.addHidden("hiddenB", numHiddenNodes);
+		}
+		layerGraph.addOutput("outputA", Math.min(5, numOutputNodes), 9.0);
+		if (headB) {
+			layerGraph.addOutput("outputB", numOutputNodes - 5, 4.0);
+		}
+		layerGraph.connect("input", "hidden");
+		layerGraph.connect("hidden", "hiddenA");
+		if (headB) {
+			layerGraph.connect("hidden", "hiddenB");
+		}
+		layerGraph.connect("hiddenA", "outputA");
+		if (headB) {
+			layerGraph.connect("hiddenB", "outputB");
+		}
+		
+		return layerGraph.buildNeuralNetwork(minWeight, maxWeight, biasNodes);
 	}
 }
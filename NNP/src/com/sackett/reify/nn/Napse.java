@@ -32,6 +32,9 @@ public class Napse {
 	
 	/** Connection Weight. */
 	private double weight;
+	
+	/** Previous weight update, carried into the next by momentum. */
+	private double prevDelta;
 
 	/**
 	 * @param inNode Input node.
@@ -91,7 +94,9 @@ public class Napse {
 	 * @param momentum adjustment factor to prior update.
 	 */
 	public void updateWeight(double eta, double momentum) {
-		weight = weight + eta * inNode.getOutput() * outNode.getError();
+		double delta = eta * inNode.getOutput() * outNode.getError() + momentum * prevDelta;
+		weight = weight + delta;
+		prevDelta = delta;
 	}
 
 	/**
@@ -100,7 +105,9 @@ public class Napse {
 	 */
 	@Override
 	public Napse clone() throws CloneNotSupportedException {
-		return new Napse(inNode, outNode, weight);
+		Napse clone = new Napse(inNode, outNode, weight);
+		clone.prevDelta = prevDelta;
+		return clone;
 	}
 
 	/** Calculates hash code for this Napse. */
@@ -18,6 +18,8 @@
 package com.sackett.reify.nn;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +44,9 @@ public class NeuralNetwork {
 	/** Output nodes. */
 	private List<OutputNode> outputNodes;	
 	
+	/** Layer topology the nodes were built from, null if built directly. */
+	private LayerGraph layerGraph;
+	
 	/** Default constructor. */
 	public NeuralNetwork() {
 
@@ -113,6 +118,20 @@ public class NeuralNetwork {
 		return outputNodes;
 	}
 
+	/**
+	 * @return the layer topology the nodes were built from, null if built directly.
+	 */
+	public LayerGraph getLayerGraph() {
+		return layerGraph;
+	}
+
+	/**
+	 * @param layerGraph the layer topology the nodes were built from.
+	 */
+	public void setLayerGraph(LayerGraph layerGraph) {
+		this.layerGraph = layerGraph;
+	}
+
 	/**
 	 * @param eta the eta to set
 	 */
@@ -234,10 +253,11 @@ public class NeuralNetwork {
 	 * Classifies inputs, backpropagates errors based on expected outputs, and updates weights. 
 	 * @param inputs array of input values.
 	 * @param outputs array of target output values.
+	 * @return classification of inputs before the weight update, with its errors.
 	 */
-	public void backpropagate(double[] inputs, double[] outputs) {
+	public ClassifyOutput backpropagate(double[] inputs, double[] outputs) {
 		// Classify inputs to set all node outputs.
-		classify(inputs, outputs);
+		ClassifyOutput classifyOutput = classify(inputs, outputs);
 		
 		// Calculate output node errors (excluding bias node).
 		for (int ixOutput = 1 ; ixOutput < outputNodes.size() ; ixOutput++) {
@@ -264,9 +284,14 @@ public class NeuralNetwork {
 				napse.updateWeight(eta, momentum);
 			}
 		}
+		
+		return classifyOutput;
 	}
 	
+	/** Input to hidden napses disconnected by pruning, saved for potential reuse. */
 	private List<Napse> discInputToHiddenNapses = new ArrayList<Napse>();
+
+	/** Hidden to hidden/output napses disconnected by pruning, saved for potential reuse. */
 	private List<Napse> discHiddenToOutputNapses = new ArrayList<Napse>();
 	
 	/**
@@ -275,53 +300,172 @@ public class NeuralNetwork {
 	 * @param weightFactor range to update weight.
 	 */
 	public void updateNeighborhood(double updateProb, double weightFactor) {
+		updateNeighborhood(updateProb, weightFactor, 0.0);
+	}
+
+	/**
+	 * Updates the neighborhood (napse connections & weights) by factor, disconnecting some of the updated napses.
+	 * @param updateProb update probability.
+	 * @param weightFactor range to update weight.
+	 * @param pruneProb probability an updated napse is disconnected rather than reweighted.
+	 */
+	public void updateNeighborhood(double updateProb, double weightFactor, double pruneProb) {
 		// Maps of nodes for resolving Napse connections.
 		Map<Double,InputNode> inputNodesMap = new HashMap<Double,InputNode>();
 		Map<Double,HiddenNode> hiddenNodesMap = new HashMap<Double,HiddenNode>();
 		
+		// Number of napses to pass over before the next update.
+		int skip = FlatNeuralNetwork.skipNapses(updateProb);
+		
 		// Loop through and input to hidden napses and alter layer connections & weights.
-		List<Napse> removedInputToHiddenNapses = new ArrayList<Napse>();
+		List<Napse> removedNapses = new ArrayList<Napse>();
 		for (InputNode inputNode : inputNodes) {
 			// Place in map for indexing to resolve Napse connections.
 			inputNodesMap.put(inputNode.getId(), inputNode);
 			for (Napse napse : inputNode.getOutputNapses()) {
-				if (checkRandom(updateProb)) {
-					// Update napse weight.
-					napse.setWeight(factorWeight(napse.getWeight(), weightFactor));
+				if (skip-- == 0) {
+					if (pruneProb > 0.0 && Math.random() < pruneProb) {
+						// Remove after the loop, which is iterating this node's napses.
+						removedNapses.add(napse);
+					}
+					else {
+						// Update napse weight.
+						napse.setWeight(factorWeight(napse.getWeight(), weightFactor));
+					}
+					skip = FlatNeuralNetwork.skipNapses(updateProb);
 				}
 			}
 		}
-		
-		// Loop through removed napses to disconnect and save for later use.
-		for (Napse napse : removedInputToHiddenNapses) {
-			// Remove from in node.
-			((InputNode)napse.getInNode()).getOutputNapses().remove(napse);
-			// Remove from out node.
-			((HiddenNode)napse.getOutNode()).getInputNapses().remove(napse);
-			// Save for potential rese later.
-			discInputToHiddenNapses.add(napse);
-		}
 
 		// Loop through and hidden to output napses and alter layer connections & weights.
 		for (HiddenNode hiddenNode : hiddenNodes) {
 			// Place in map for indexing to resolve Napse connections.
 			hiddenNodesMap.put(hiddenNode.getId(), hiddenNode);
 			for (Napse napse : hiddenNode.getOutputNapses()) {
-				if (checkRandom(updateProb)) {
-					// Update napse weight.
-					napse.setWeight(factorWeight(napse.getWeight(), weightFactor));
+				if (skip-- == 0) {
+					if (pruneProb > 0.0 && Math.random() < pruneProb) {
+						removedNapses.add(napse);
+					}
+					else {
+						// Update napse weight.
+						napse.setWeight(factorWeight(napse.getWeight(), weightFactor));
+					}
+					skip = FlatNeuralNetwork.skipNapses(updateProb);
 				}
 			}
 		}
+
+		// Loop through removed napses to disconnect and save for later use.
+		for (Napse napse : removedNapses) {
+			disconnect(napse);
+		}
 	}
-	
-	/** 
-	 * Check for random occurrence.
-	 * @param probability chance of random occurrence.
-	 * @return indicator of occurrence.
+
+	/**
+	 * Disconnects the smallest magnitude napses of each layer until the given fraction of the layer's napses, connected
+	 * or not, is disconnected. Napses already disconnected count towards the fraction. Layers are pruned separately
+	 * since their weights differ in scale, so a global cut could disconnect a whole layer.
+	 * @param sparsity target fraction of napses disconnected, from 0 to 1.
+	 * @return number of napses disconnected by this call.
 	 */
-	private static boolean checkRandom(double probability) {
-		return Math.random() < probability;
+	public int pruneByMagnitude(double sparsity) {
+		return pruneByMagnitude(getConnectedNapses(inputNodes), discInputToHiddenNapses.size(), sparsity)
+				+ pruneByMagnitude(getConnectedNapses(hiddenNodes), discHiddenToOutputNapses.size(), sparsity);
+	}
+
+	/**
+	 * Disconnects the smallest magnitude napses of a layer until the given fraction of its napses is disconnected.
+	 * @param napses connected napses of the layer.
+	 * @param numDisconnected napses of the layer already disconnected.
+	 * @param sparsity target fraction of napses disconnected, from 0 to 1.
+	 * @return number of napses disconnected.
+	 */
+	private int pruneByMagnitude(List<Napse> napses, int numDisconnected, double sparsity) {
+		int numRemove = (int)Math.round(sparsity * (napses.size() + numDisconnected)) - numDisconnected;
+		if (numRemove <= 0) {
+			return 0;
+		}
+		numRemove = Math.min(numRemove, napses.size());
+
+		// Order connected napses by ascending weight magnitude.
+		Collections.sort(napses, new Comparator<Napse>() {
+			@Override
+			public int compare(Napse napse1, Napse napse2) {
+				return Double.compare(Math.abs(napse1.getWeight()), Math.abs(napse2.getWeight()));
+			}
+		});
+		for (int ixNapse = 0 ; ixNapse < numRemove ; ixNapse++) {
+			disconnect(napses.get(ixNapse));
+		}
+		return numRemove;
+	}
+
+	/**
+	 * Disconnects napses of weight exactly 0, which is how the flat neural network marks napses pruned by annealing.
+	 * @return number of napses disconnected.
+	 */
+	public int pruneZeroWeights() {
+		int numRemoved = 0;
+		List<Napse> napses = getConnectedNapses(inputNodes);
+		napses.addAll(getConnectedNapses(hiddenNodes));
+		for (Napse napse : napses) {
+			if (napse.getWeight() == 0.0) {
+				disconnect(napse);
+				numRemoved++;
+			}
+		}
+		return numRemoved;
+	}
+
+	/**
+	 * Removes a napse from both of its nodes and saves it for potential reuse.
+	 * @param napse connected napse.
+	 */
+	private void disconnect(Napse napse) {
+		// Remove from in node.
+		napse.getInNode().getOutputNapses().remove(napse);
+		// Remove from out node.
+		napse.getOutNode().getInputNapses().remove(napse);
+		// Save for potential reuse later.
+		if (napse.getInNode() instanceof InputNode) {
+			discInputToHiddenNapses.add(napse);
+		}
+		else {
+			discHiddenToOutputNapses.add(napse);
+		}
+	}
+
+	/**
+	 * @param nodes input or hidden nodes.
+	 * @return the connected outbound napses of the nodes.
+	 */
+	private static List<Napse> getConnectedNapses(List<? extends Node> nodes) {
+		List<Napse> napses = new ArrayList<Napse>();
+		for (Node node : nodes) {
+			napses.addAll(node.getOutputNapses());
+		}
+		return napses;
+	}
+
+	/**
+	 * @return the number of connected napses.
+	 */
+	public int getNumNapses() {
+		int numNapses = 0;
+		for (InputNode inputNode : inputNodes) {
+			numNapses += inputNode.getOutputNapses().size();
+		}
+		for (HiddenNode hiddenNode : hiddenNodes) {
+			numNapses += hiddenNode.getOutputNapses().size();
+		}
+		return numNapses;
+	}
+
+	/**
+	 * @return the number of napses disconnected by pruning.
+	 */
+	public int getNumDisconnectedNapses() {
+		return discInputToHiddenNapses.size() + discHiddenToOutputNapses.size();
 	}
 	
 	/**
@@ -473,9 +617,12 @@ public class NeuralNetwork {
 			}
 		}
 		
+		// Share layer topology.
+		clone.layerGraph = layerGraph;
+		
 		// Retain disconnected nodes.
-		clone.discInputToHiddenNapses = discInputToHiddenNapses;
-		clone.discHiddenToOutputNapses = discHiddenToOutputNapses;
+		clone.discInputToHiddenNapses = new ArrayList<Napse>(discInputToHiddenNapses);
+		clone.discHiddenToOutputNapses = new ArrayList<Napse>(discHiddenToOutputNapses);
 
 		return clone;
 	}
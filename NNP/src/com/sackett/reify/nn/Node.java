@@ -124,6 +124,13 @@ public abstract class Node {
 		this.output = output;
 	}
 
+	/**
+	 * @param error the error to set
+	 */
+	void setError(double error) {
+		this.error = error;
+	}
+
 	/**
 	 * Method hashes Id.
 	 * @return hash code.
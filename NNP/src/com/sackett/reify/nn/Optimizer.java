@@ -0,0 +1,335 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+/**
+ * This turns napse gradients into weight changes for backpropagation.
+ * A gradient is the inbound node output times the outbound node error, so adding eta times it to the weight
+ * reduces the error (plain gradient descent). Optimizers keep any per-napse state in flat arrays indexed like
+ * FlatNeuralNetwork's weights. Each weight update step calls beginStep() once, then delta() for the napses it updates.
+ * @author Joseph Sackett
+ */
+public abstract class Optimizer {
+	/** Optimizer names, as accepted by create(). */
+	public static final String[] NAMES = { "sgd", "momentum", "nesterov", "rmsprop", "adam" };
+
+	/** Term keeping divisions by gradient magnitude finite. */
+	protected static final double EPSILON = 1e-8;
+
+	/**
+	 * Create an optimizer by name.
+	 * @param name one of NAMES.
+	 * @param numNapses number of napse weights to hold state for.
+	 * @param momentum momentum coefficient for momentum & nesterov, or 0.0 for the default of 0.9.
+	 * @return new optimizer.
+	 * @throws IllegalArgumentException for unknown names.
+	 */
+	public static Optimizer create(String name, int numNapses, double momentum) {
+		switch (name) {
+		case "sgd":
+			return new Sgd();
+		case "momentum":
+			return new Momentum(numNapses, (momentum == 0.0) ? 0.9 : momentum, false);
+		case "nesterov":
+			return new Momentum(numNapses, (momentum == 0.0) ? 0.9 : momentum, true);
+		case "rmsprop":
+			return new RMSProp(numNapses, 0.9);
+		case "adam":
+			return new Adam(numNapses, 0.9, 0.999);
+		default:
+			throw new IllegalArgumentException("Unknown optimizer: " + name);
+		}
+	}
+
+	/** Start a weight update step. */
+	public void beginStep() {
+	}
+
+	/**
+	 * Calculate the change to one napse weight.
+	 * @param ixNapse napse index.
+	 * @param gradient inbound node output times outbound node error, or its mean over a batch.
+	 * @param eta adjustment coefficient.
+	 * @return amount to add to the weight.
+	 */
+	public abstract double delta(int ixNapse, double gradient, double eta);
+
+	/**
+	 * Update a run of consecutive weights whose gradients are one inbound value times consecutive outbound errors.
+	 * @param weights napse weights.
+	 * @param ixNapse index of first napse.
+	 * @param value inbound node value.
+	 * @param errors outbound node errors.
+	 * @param errorsOffset index of first outbound error.
+	 * @param length number of napses.
+	 * @param eta adjustment coefficient.
+	 * @param kernels array kernels.
+	 */
+	public void updateRun(double[] weights, int ixNapse, double value, double[] errors, int errorsOffset, int length, double eta, Kernels kernels) {
+		for (int ix = 0 ; ix < length ; ix++) {
+			weights[ixNapse + ix] += delta(ixNapse + ix, value * errors[errorsOffset + ix], eta);
+		}
+	}
+
+	/**
+	 * Update a run of consecutive single precision weights, as updateRun above. State is kept in double precision.
+	 * @param weights napse weights.
+	 * @param ixNapse index of first napse.
+	 * @param value inbound node value.
+	 * @param errors outbound node errors.
+	 * @param errorsOffset index of first outbound error.
+	 * @param length number of napses.
+	 * @param eta adjustment coefficient.
+	 * @param kernels array kernels.
+	 */
+	public void updateRun(float[] weights, int ixNapse, float value, float[] errors, int errorsOffset, int length, float eta, Kernels kernels) {
+		for (int ix = 0 ; ix < length ; ix++) {
+			weights[ixNapse + ix] += (float)delta(ixNapse + ix, value * errors[errorsOffset + ix], eta);
+		}
+	}
+
+	/**
+	 * @return flag indicating a zero gradient leaves the weight unchanged, so sparse updates may skip it.
+	 */
+	public boolean isSparse() {
+		return false;
+	}
+
+	/**
+	 * @return optimizer with a copy of this one's state.
+	 */
+	public abstract Optimizer copy();
+
+	/**
+	 * @return the name, as accepted by create().
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return the per-napse state arrays, live, for checkpoints.
+	 */
+	double[][] getState() {
+		return new double[0][];
+	}
+
+	/**
+	 * @return the number of update steps taken, for checkpoints of optimizers depending on it.
+	 */
+	int getNumSteps() {
+		return 0;
+	}
+
+	/**
+	 * @param numSteps the number of update steps taken, restored from a checkpoint.
+	 */
+	void setNumSteps(int numSteps) {
+	}
+
+	/** Plain gradient descent: eta times gradient. */
+	static class Sgd extends Optimizer {
+		@Override
+		public double delta(int ixNapse, double gradient, double eta) {
+			return eta * gradient;
+		}
+
+		@Override
+		public void updateRun(double[] weights, int ixNapse, double value, double[] errors, int errorsOffset, int length, double eta, Kernels kernels) {
+			kernels.axpy(eta * value, errors, errorsOffset, weights, ixNapse, length);
+		}
+
+		@Override
+		public void updateRun(float[] weights, int ixNapse, float value, float[] errors, int errorsOffset, int length, float eta, Kernels kernels) {
+			kernels.axpy(eta * value, errors, errorsOffset, weights, ixNapse, length);
+		}
+
+		@Override
+		public boolean isSparse() {
+			return true;
+		}
+
+		@Override
+		public Optimizer copy() {
+			return this;
+		}
+
+		@Override
+		public String getName() {
+			return "sgd";
+		}
+	}
+
+	/**
+	 * Momentum: each change adds the momentum coefficient times the previous change.
+	 * The Nesterov variant applies the momentum step it is about to take as well, looking ahead along the velocity.
+	 */
+	static class Momentum extends Optimizer {
+		/** Previous change of each weight. */
+		private double[] velocities;
+
+		/** Fraction of previous change carried into the next. */
+		private double momentum;
+
+		/** Nesterov look ahead flag. */
+		private boolean nesterov;
+
+		Momentum(int numNapses, double momentum, boolean nesterov) {
+			this.velocities = new double[numNapses];
+			this.momentum = momentum;
+			this.nesterov = nesterov;
+		}
+
+		@Override
+		public double delta(int ixNapse, double gradient, double eta) {
+			double velocity = momentum * velocities[ixNapse] + eta * gradient;
+			velocities[ixNapse] = velocity;
+			return nesterov ? momentum * velocity + eta * gradient : velocity;
+		}
+
+		@Override
+		public Optimizer copy() {
+			Momentum copy = new Momentum(0, momentum, nesterov);
+			copy.velocities = velocities.clone();
+			return copy;
+		}
+
+		@Override
+		public String getName() {
+			return nesterov ? "nesterov" : "momentum";
+		}
+
+		@Override
+		double[][] getState() {
+			return new double[][] { velocities };
+		}
+	}
+
+	/** RMSProp: eta times gradient, divided by the running root mean square of the weight's gradients. */
+	static class RMSProp extends Optimizer {
+		/** Running mean square gradient of each weight. */
+		private double[] meanSquares;
+
+		/** Decay of running mean square. */
+		private double decay;
+
+		RMSProp(int numNapses, double decay) {
+			this.meanSquares = new double[numNapses];
+			this.decay = decay;
+		}
+
+		@Override
+		public double delta(int ixNapse, double gradient, double eta) {
+			double meanSquare = decay * meanSquares[ixNapse] + (1 - decay) * gradient * gradient;
+			meanSquares[ixNapse] = meanSquare;
+			return eta * gradient / (Math.sqrt(meanSquare) + EPSILON);
+		}
+
+		@Override
+		public Optimizer copy() {
+			RMSProp copy = new RMSProp(0, decay);
+			copy.meanSquares = meanSquares.clone();
+			return copy;
+		}
+
+		@Override
+		public String getName() {
+			return "rmsprop";
+		}
+
+		@Override
+		double[][] getState() {
+			return new double[][] { meanSquares };
+		}
+	}
+
+	/** Adam: bias corrected running mean gradient, divided by bias corrected running root mean square gradient. */
+	static class Adam extends Optimizer {
+		/** Running mean gradient of each weight. */
+		private double[] means;
+
+		/** Running mean square gradient of each weight. */
+		private double[] meanSquares;
+
+		/** Decay of running mean. */
+		private double meanDecay;
+
+		/** Decay of running mean square. */
+		private double squareDecay;
+
+		/** Number of update steps. */
+		private int numSteps;
+
+		/** Bias corrections of current step. */
+		private double meanCorrection;
+		private double squareCorrection;
+
+		Adam(int numNapses, double meanDecay, double squareDecay) {
+			this.means = new double[numNapses];
+			this.meanSquares = new double[numNapses];
+			this.meanDecay = meanDecay;
+			this.squareDecay = squareDecay;
+		}
+
+		@Override
+		public void beginStep() {
+			numSteps++;
+			meanCorrection = 1 / (1 - Math.pow(meanDecay, numSteps));
+			squareCorrection = 1 / (1 - Math.pow(squareDecay, numSteps));
+		}
+
+		@Override
+		public double delta(int ixNapse, double gradient, double eta) {
+			double mean = meanDecay * means[ixNapse] + (1 - meanDecay) * gradient;
+			double meanSquare = squareDecay * meanSquares[ixNapse] + (1 - squareDecay) * gradient * gradient;
+			means[ixNapse] = mean;
+			meanSquares[ixNapse] = meanSquare;
+			return eta * mean * meanCorrection / (Math.sqrt(meanSquare * squareCorrection) + EPSILON);
+		}
+
+		@Override
+		public Optimizer copy() {
+			Adam copy = new Adam(0, meanDecay, squareDecay);
+			copy.means = means.clone();
+			copy.meanSquares = meanSquares.clone();
+			copy.numSteps = numSteps;
+			copy.meanCorrection = meanCorrection;
+			copy.squareCorrection = squareCorrection;
+			return copy;
+		}
+
+		@Override
+		public String getName() {
+			return "adam";
+		}
+
+		@Override
+		double[][] getState() {
+			return new double[][] { means, meanSquares };
+		}
+
+		@Override
+		int getNumSteps() {
+			return numSteps;
+		}
+
+		@Override
+		void setNumSteps(int numSteps) {
+			this.numSteps = numSteps;
+		}
+	}
+
+}
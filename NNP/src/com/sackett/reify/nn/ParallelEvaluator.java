@@ -0,0 +1,147 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This classifies a set of instances in parallel, accumulating their errors.
+ * Instances are split into a fixed number of shards run on a fork/join pool, each classifying into its own
+ * batch buffer so the neural network itself is only read. Shard errors are combined in shard order.
+ * One evaluator serves any flat neural network with the topology it was created from.
+ * @author Joseph Sackett
+ */
+public class ParallelEvaluator {
+	/** Pool executing shards. */
+	private ForkJoinPool pool;
+
+	/** Node values of each shard. */
+	private BatchBuffer[] shardBuffers;
+
+	/** Errors of each shard. */
+	private ErrorStats[] shardStats;
+
+	/**
+	 * @param neuralNetwork neural network whose topology will be evaluated.
+	 * @param pool pool executing shards.
+	 * @param numShards number of shards.
+	 * @param chunkSize number of instances a shard runs through its buffer at once.
+	 */
+	public ParallelEvaluator(FlatNeuralNetwork neuralNetwork, ForkJoinPool pool, int numShards, int chunkSize) {
+		this.pool = pool;
+		shardBuffers = new BatchBuffer[numShards];
+		shardStats = new ErrorStats[numShards];
+		for (int ixShard = 0 ; ixShard < numShards ; ixShard++) {
+			shardBuffers[ixShard] = neuralNetwork.createBatchBuffer(chunkSize);
+			shardStats[ixShard] = new ErrorStats();
+		}
+	}
+
+	/**
+	 * Classify all instances, accumulating their errors.
+	 * @param neuralNetwork neural network to evaluate.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param stats accumulates the errors of each instance.
+	 */
+	public void evaluate(FlatNeuralNetwork neuralNetwork, double[][] inputs, double[][] targetOutputs, ErrorStats stats) {
+		evaluate(neuralNetwork, inputs, targetOutputs, 0, inputs.length, stats);
+	}
+
+	/**
+	 * Classify a range of instances, accumulating their errors.
+	 * @param neuralNetwork neural network to evaluate.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param from index of first instance.
+	 * @param to index after last instance.
+	 * @param stats accumulates the errors of each instance.
+	 */
+	public void evaluate(FlatNeuralNetwork neuralNetwork, double[][] inputs, double[][] targetOutputs, int from, int to, ErrorStats stats) {
+		int numShards = shardBuffers.length;
+
+		// Split instances into contiguous shards.
+		List<ShardTask> tasks = new ArrayList<ShardTask>(numShards);
+		for (int ixShard = 0 ; ixShard < numShards ; ixShard++) {
+			int shardFrom = from + (int)((long)(to - from) * ixShard / numShards);
+			int shardTo = from + (int)((long)(to - from) * (ixShard + 1) / numShards);
+			if (shardFrom < shardTo) {
+				tasks.add(new ShardTask(neuralNetwork, inputs, targetOutputs, shardFrom, shardTo, ixShard));
+			}
+		}
+		pool.invoke(new EvaluateTask(tasks));
+
+		// Combine errors in shard order.
+		for (ErrorStats shardStat : shardStats) {
+			stats.add(shardStat);
+			shardStat.clear();
+		}
+	}
+
+	/** Forks all shards and waits for them. */
+	private static class EvaluateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** Shards to evaluate. */
+		private List<ShardTask> tasks;
+
+		EvaluateTask(List<ShardTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/** Classifies the instances of one shard. */
+	private class ShardTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private FlatNeuralNetwork neuralNetwork;
+		private double[][] inputs;
+		private double[][] targetOutputs;
+		private int from;
+		private int to;
+		private int ixShard;
+
+		ShardTask(FlatNeuralNetwork neuralNetwork, double[][] inputs, double[][] targetOutputs, int from, int to, int ixShard) {
+			this.neuralNetwork = neuralNetwork;
+			this.inputs = inputs;
+			this.targetOutputs = targetOutputs;
+			this.from = from;
+			this.to = to;
+			this.ixShard = ixShard;
+		}
+
+		@Override
+		protected void compute() {
+			BatchBuffer buffer = shardBuffers[ixShard];
+			// Run shard through buffer one chunk at a time.
+			for (int chunkFrom = from ; chunkFrom < to ; chunkFrom += buffer.capacity) {
+				neuralNetwork.classifyBatch(inputs, targetOutputs, chunkFrom, Math.min(chunkFrom + buffer.capacity, to), buffer, shardStats[ixShard]);
+			}
+		}
+	}
+
+}
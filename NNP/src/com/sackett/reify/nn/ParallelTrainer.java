@@ -0,0 +1,167 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This trains a flat neural network by data-parallel backpropagation.
+ * Each batch of training instances is split into a fixed number of shards, run on a fork/join pool.
+ * Every shard has its own batch buffer for node values and gradients, the gradients are summed in shard order
+ * so results do not depend on thread scheduling, and the weights get one update per batch.
+ * @author Joseph Sackett
+ */
+public class ParallelTrainer {
+	/** Neural network being trained. */
+	private FlatNeuralNetwork neuralNetwork;
+
+	/** Pool executing shards. */
+	private ForkJoinPool pool;
+
+	/** Node values & gradients of each shard. */
+	private BatchBuffer[] shardBuffers;
+
+	/** Errors of each shard. */
+	private ErrorStats[] shardStats;
+
+	/**
+	 * @param neuralNetwork neural network to train.
+	 * @param pool pool executing shards.
+	 * @param numShards number of shards per batch.
+	 * @param chunkSize number of instances a shard runs through its buffer at once.
+	 */
+	public ParallelTrainer(FlatNeuralNetwork neuralNetwork, ForkJoinPool pool, int numShards, int chunkSize) {
+		this.neuralNetwork = neuralNetwork;
+		this.pool = pool;
+		shardBuffers = new BatchBuffer[numShards];
+		shardStats = new ErrorStats[numShards];
+		for (int ixShard = 0 ; ixShard < numShards ; ixShard++) {
+			shardBuffers[ixShard] = neuralNetwork.createBatchBuffer(chunkSize);
+			shardStats[ixShard] = new ErrorStats();
+		}
+	}
+
+	/**
+	 * Train one epoch, making one weight update per batch.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param batchSize number of instances per weight update.
+	 * @param stats accumulates the errors of each instance.
+	 */
+	public void trainEpoch(double[][] inputs, double[][] targetOutputs, int batchSize, ErrorStats stats) {
+		for (int from = 0 ; from < inputs.length ; from += batchSize) {
+			trainBatch(inputs, targetOutputs, from, Math.min(from + batchSize, inputs.length), stats);
+		}
+	}
+
+	/**
+	 * Backpropagate a batch of instances across all shards and make one weight update from the summed gradients.
+	 * @param inputs input values of all instances.
+	 * @param targetOutputs target output values of all instances.
+	 * @param from index of first instance in batch.
+	 * @param to index after last instance in batch.
+	 * @param stats accumulates the errors of each instance.
+	 */
+	public void trainBatch(double[][] inputs, double[][] targetOutputs, int from, int to, ErrorStats stats) {
+		int numShards = shardBuffers.length;
+		int size = to - from;
+
+		// Split batch into contiguous shards.
+		List<ShardTask> tasks = new ArrayList<ShardTask>(numShards);
+		for (int ixShard = 0 ; ixShard < numShards ; ixShard++) {
+			int shardFrom = from + (int)((long)size * ixShard / numShards);
+			int shardTo = from + (int)((long)size * (ixShard + 1) / numShards);
+			if (shardFrom < shardTo) {
+				tasks.add(new ShardTask(inputs, targetOutputs, shardFrom, shardTo, ixShard));
+			}
+		}
+		pool.invoke(new BatchTask(tasks));
+
+		// Reduce gradients & errors in shard order.
+		BatchBuffer totalBuffer = shardBuffers[0];
+		double[] totalGradients = totalBuffer.gradients;
+		for (int ixShard = 1 ; ixShard < numShards ; ixShard++) {
+			BatchBuffer shardBuffer = shardBuffers[ixShard];
+			double[] gradients = shardBuffer.gradients;
+			for (int ixNapse = 0 ; ixNapse < totalGradients.length ; ixNapse++) {
+				totalGradients[ixNapse] += gradients[ixNapse];
+			}
+			totalBuffer.gradientCount += shardBuffer.gradientCount;
+			shardBuffer.clearGradients();
+		}
+		for (int ixShard = 0 ; ixShard < numShards ; ixShard++) {
+			if (stats != null) {
+				stats.add(shardStats[ixShard]);
+			}
+			shardStats[ixShard].clear();
+		}
+
+		// Make one weight update.
+		neuralNetwork.applyGradients(totalBuffer);
+	}
+
+	/** Forks all shards of a batch and waits for them. */
+	private static class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** Shards of batch. */
+		private List<ShardTask> tasks;
+
+		BatchTask(List<ShardTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/** Accumulates the gradients of one shard into its buffer. */
+	private class ShardTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private double[][] inputs;
+		private double[][] targetOutputs;
+		private int from;
+		private int to;
+		private int ixShard;
+
+		ShardTask(double[][] inputs, double[][] targetOutputs, int from, int to, int ixShard) {
+			this.inputs = inputs;
+			this.targetOutputs = targetOutputs;
+			this.from = from;
+			this.to = to;
+			this.ixShard = ixShard;
+		}
+
+		@Override
+		protected void compute() {
+			BatchBuffer buffer = shardBuffers[ixShard];
+			// Run shard through buffer one chunk at a time.
+			for (int chunkFrom = from ; chunkFrom < to ; chunkFrom += buffer.capacity) {
+				neuralNetwork.accumulateGradients(inputs, targetOutputs, chunkFrom, Math.min(chunkFrom + buffer.capacity, to), buffer, shardStats[ixShard]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sackett.reify.nn.NeuralNetwork.ClassifyOutput;
+
+/**
+ * This trains a flat neural network by parallel tempering (replica exchange) simulated annealing.
+ * Several annealing chains run concurrently, each at a fixed temperature of a geometric ladder from the start to the
+ * end temperature, using the same uphill acceptance rule as MainNN. Every exchange interval, chains at neighbouring
+ * temperatures swap states with probability min(1, exp((1/T1 - 1/T2) * (E1 - E2))), letting good states found
+ * hot settle cold and stuck cold states escape. The globally best network seen by any chain is kept.
+ * @author Joseph Sackett
+ */
+public class ReplicaExchangeTrainer {
+	/** Input data. */
+	private double[][] trainInputs;
+
+	/** Output data. */
+	private double[][] trainOutputs;
+
+	/** Probability of updating a weight. */
+	private double updateProb;
+
+	/** Weight factor change each epoch. */
+	private double weightFactorChange;
+
+	/** Pool executing chains. */
+	private ForkJoinPool pool;
+
+	/** Temperature of each slot, hottest first. */
+	private double[] temps;
+
+	/** Weight factor of each slot. */
+	private double[] weightFactors;
+
+	/** Chain at each temperature slot. */
+	private Chain[] chains;
+
+	/** Attempted swaps between each slot and the next. */
+	private int[] swapAttempts;
+
+	/** Accepted swaps between each slot and the next. */
+	private int[] swapAccepts;
+
+	/** 4 decimal display. */
+	private static DecimalFormat decFormat = new DecimalFormat("#.####");
+
+	/** 1 decimal display format. */
+	private static DecimalFormat pctFormat = new DecimalFormat("#.#");
+
+	static {
+		decFormat.setRoundingMode(RoundingMode.HALF_UP);
+		pctFormat.setRoundingMode(RoundingMode.HALF_UP);
+	}
+
+	/**
+	 * Start every chain from the same neural network.
+	 * @param neuralNetwork initial neural network.
+	 * @param trainInputs input data.
+	 * @param trainOutputs output data.
+	 * @param numReplicas number of chains.
+	 * @param startTemp hottest temperature.
+	 * @param endTemp coldest temperature.
+	 * @param updateProb probability of updating a weight.
+	 * @param weightFactor factor by which a chosen weight can be updated.
+	 * @param weightFactorChange weight factor change each epoch.
+	 * @param incrementalEvaluation flag to evaluate moves incrementally.
+	 * @param pool pool executing chains.
+	 */
+	public ReplicaExchangeTrainer(FlatNeuralNetwork neuralNetwork, double[][] trainInputs, double[][] trainOutputs, int numReplicas,
+								double startTemp, double endTemp, double updateProb, double weightFactor, double weightFactorChange,
+								boolean incrementalEvaluation, ForkJoinPool pool) {
+		this.trainInputs = trainInputs;
+		this.trainOutputs = trainOutputs;
+		this.updateProb = updateProb;
+		this.weightFactorChange = weightFactorChange;
+		this.pool = pool;
+
+		temps = new double[numReplicas];
+		weightFactors = new double[numReplicas];
+		chains = new Chain[numReplicas];
+		for (int ixSlot = 0 ; ixSlot < numReplicas ; ixSlot++) {
+			// Geometric ladder from start to end temperature.
+			temps[ixSlot] = (numReplicas == 1) ? startTemp : startTemp * Math.pow(endTemp / startTemp, (double)ixSlot / (numReplicas - 1));
+			weightFactors[ixSlot] = weightFactor;
+			chains[ixSlot] = new Chain(neuralNetwork.clone(), incrementalEvaluation);
+		}
+		swapAttempts = new int[Math.max(numReplicas - 1, 0)];
+		swapAccepts = new int[swapAttempts.length];
+	}
+
+	/**
+	 * Run all chains, exchanging states between neighbouring temperatures at intervals.
+	 * @param maxEpochs maximum epochs per chain.
+	 * @param exchangeInterval epochs between exchanges.
+	 * @return globally best neural network.
+	 */
+	public FlatNeuralNetwork train(int maxEpochs, int exchangeInterval) {
+		for (int epoch = 0 ; epoch < maxEpochs ; epoch += exchangeInterval) {
+			int numEpochs = Math.min(exchangeInterval, maxEpochs - epoch);
+
+			// Run every chain at its slot's temperature.
+			List<ChainTask> tasks = new ArrayList<ChainTask>(chains.length);
+			for (int ixSlot = 0 ; ixSlot < chains.length ; ixSlot++) {
+				tasks.add(new ChainTask(ixSlot, numEpochs));
+			}
+			pool.invoke(new RoundTask(tasks));
+
+			Chain bestChain = getBestChain();
+			System.out.println("Epoch " + (epoch + numEpochs - 1) + ": best aveRMSE: " + decFormat.format(bestChain.bestAvgRMSE)
+								+ ", best Acc: " + pctFormat.format(bestChain.bestAccuracy * 100) + '%' + ", slot Acc: " + slotAccuracies());
+
+			// Terminate if classification error is zero.
+			if (bestChain.bestAccuracy == 1.0) {
+				System.out.println("Success");
+				break;
+			}
+
+			exchange();
+		}
+
+		// Report swap acceptance between neighbouring temperatures.
+		StringBuilder builder = new StringBuilder("Swap acceptance:");
+		for (int ixSlot = 0 ; ixSlot < swapAttempts.length ; ixSlot++) {
+			builder.append("  T").append(decFormat.format(temps[ixSlot])).append("<->T").append(decFormat.format(temps[ixSlot+1])).append(": ")
+					.append(pctFormat.format(100.0 * swapAccepts[ixSlot] / Math.max(swapAttempts[ixSlot], 1))).append('%');
+		}
+		System.out.println(builder);
+
+		Chain bestChain = getBestChain();
+		System.out.println("minAveRMSE: " + decFormat.format(bestChain.bestAvgRMSE) + ", maxAccuracy: " + pctFormat.format(bestChain.bestAccuracy * 100) + '%');
+		return bestChain.bestNeuralNetwork;
+	}
+
+	/** Attempt state swaps between neighbouring temperature slots. */
+	private void exchange() {
+		for (int ixSlot = 0 ; ixSlot < chains.length - 1 ; ixSlot++) {
+			Chain hotChain = chains[ixSlot];
+			Chain coldChain = chains[ixSlot+1];
+			double delta = (1.0 / temps[ixSlot] - 1.0 / temps[ixSlot+1]) * (hotChain.getEnergy() - coldChain.getEnergy());
+			swapAttempts[ixSlot]++;
+			if (delta >= 0.0 || ThreadLocalRandom.current().nextDouble() < Math.exp(delta)) {
+				chains[ixSlot] = coldChain;
+				chains[ixSlot+1] = hotChain;
+				swapAccepts[ixSlot]++;
+			}
+		}
+	}
+
+	/**
+	 * @return chain holding the globally best network.
+	 */
+	private Chain getBestChain() {
+		Chain bestChain = chains[0];
+		for (Chain chain : chains) {
+			if (chain.isBetterThan(bestChain.bestAccuracy, bestChain.bestAvgRMSE)) {
+				bestChain = chain;
+			}
+		}
+		return bestChain;
+	}
+
+	/**
+	 * @return current accuracy of each slot, hottest first.
+	 */
+	private String slotAccuracies() {
+		StringBuilder builder = new StringBuilder();
+		for (Chain chain : chains) {
+			builder.append(pctFormat.format(chain.prevAccuracy * 100)).append("% ");
+		}
+		return builder.toString().trim();
+	}
+
+	/**
+	 * This is one annealing chain: a network with its current errors, move log and best state.
+	 */
+	private class Chain {
+		/** Neural network of chain. */
+		private FlatNeuralNetwork neuralNetwork;
+
+		/** Weight changes of last move. */
+		private UndoLog undoLog = new UndoLog();
+
+		/** Incremental move evaluation, may be null. */
+		private IncrementalEvaluator incrementalEvaluator;
+
+		/** Epoch errors. */
+		private ErrorStats stats = new ErrorStats();
+
+		/** Errors of current state. */
+		private double prevAvgRMSE = Double.MAX_VALUE;
+		private double prevMaxRMSE = Double.MAX_VALUE;
+		private double prevAccuracy = 0.0;
+
+		/** Best state seen by chain. */
+		private FlatNeuralNetwork bestNeuralNetwork;
+		private double bestAccuracy = -1.0;
+		private double bestAvgRMSE = Double.MAX_VALUE;
+
+		Chain(FlatNeuralNetwork neuralNetwork, boolean incrementalEvaluation) {
+			this.neuralNetwork = neuralNetwork;
+			this.bestNeuralNetwork = neuralNetwork;
+			if (incrementalEvaluation) {
+				incrementalEvaluator = new IncrementalEvaluator(neuralNetwork, trainInputs, trainOutputs);
+			}
+		}
+
+		/**
+		 * Run simulated annealing epochs at a fixed temperature.
+		 * @param temp temperature.
+		 * @param weightFactor factor by which a chosen weight can be updated.
+		 * @param numEpochs number of epochs.
+		 */
+		void anneal(double temp, double weightFactor, int numEpochs) {
+			for (int epoch = 0 ; epoch < numEpochs ; epoch++) {
+				// Evaluate last move.
+				stats.clear();
+				if (incrementalEvaluator != null) {
+					incrementalEvaluator.evaluate(neuralNetwork, undoLog, stats);
+				}
+				else {
+					for (int ixTrain = 0 ; ixTrain < trainInputs.length ; ixTrain++) {
+						ClassifyOutput classifyOutput = neuralNetwork.classify(trainInputs[ixTrain], trainOutputs[ixTrain]);
+						stats.add(classifyOutput.getRmsError(), classifyOutput.getClassError());
+					}
+				}
+
+				// Regress to previous neural network if error is higher, unless moving uphill.
+				double avgRMSE = stats.getAvgRMSE();
+				double maxRMSE = stats.getMaxRMSE();
+				if (avgRMSE > prevAvgRMSE
+						&& !(MainNN.uphillProbability(MainNN.energy(prevAvgRMSE, prevMaxRMSE), MainNN.energy(avgRMSE, maxRMSE), temp) > ThreadLocalRandom.current().nextDouble())) {
+					if (incrementalEvaluator != null) {
+						incrementalEvaluator.reject();
+					}
+					neuralNetwork.rollback(undoLog);
+				}
+				else {
+					if (incrementalEvaluator != null) {
+						incrementalEvaluator.accept(neuralNetwork);
+					}
+					prevAvgRMSE = avgRMSE;
+					prevMaxRMSE = maxRMSE;
+					prevAccuracy = stats.getAccuracy();
+					// Save best state.
+					if (isImprovement(bestAccuracy, bestAvgRMSE, prevAccuracy, prevAvgRMSE)) {
+						bestNeuralNetwork = neuralNetwork.clone();
+						bestAccuracy = prevAccuracy;
+						bestAvgRMSE = prevAvgRMSE;
+					}
+				}
+				undoLog.commit();
+
+				if (prevAccuracy == 1.0) {
+					break;
+				}
+
+				// Update neural network neighborhood.
+				neuralNetwork.updateNeighborhood(updateProb, weightFactor, undoLog);
+				weightFactor *= weightFactorChange;
+			}
+		}
+
+		/**
+		 * @return energy of current state.
+		 */
+		double getEnergy() {
+			return MainNN.energy(prevAvgRMSE, prevMaxRMSE);
+		}
+
+		/**
+		 * @return flag indicating this chain's best state beats the given one.
+		 */
+		boolean isBetterThan(double accuracy, double avgRMSE) {
+			return isImprovement(accuracy, avgRMSE, bestAccuracy, bestAvgRMSE);
+		}
+	}
+
+	/**
+	 * @return flag indicating candidate errors beat the incumbent: higher accuracy, then lower average RMSE.
+	 */
+	private static boolean isImprovement(double accuracy, double avgRMSE, double candidateAccuracy, double candidateAvgRMSE) {
+		return candidateAccuracy > accuracy || (candidateAccuracy == accuracy && candidateAvgRMSE < avgRMSE);
+	}
+
+	/** Forks all chains of a round and waits for them. */
+	private static class RoundTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** Chains of round. */
+		private List<ChainTask> tasks;
+
+		RoundTask(List<ChainTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/** Anneals the chain of one temperature slot. */
+	private class ChainTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private int ixSlot;
+		private int numEpochs;
+
+		ChainTask(int ixSlot, int numEpochs) {
+			this.ixSlot = ixSlot;
+			this.numEpochs = numEpochs;
+		}
+
+		@Override
+		protected void compute() {
+			chains[ixSlot].anneal(temps[ixSlot], weightFactors[ixSlot], numEpochs);
+			weightFactors[ixSlot] *= Math.pow(weightFactorChange, numEpochs);
+		}
+	}
+
+}
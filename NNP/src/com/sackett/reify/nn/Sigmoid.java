@@ -0,0 +1,252 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+/**
+ * This is the sigmoid activation function, 1 / (1 + e^-NET), of the flat & float neural networks and the incremental
+ * evaluator. Implementations are selected at runtime by name:
+ * exact - Math.exp, the reference;
+ * table - linear interpolation in a table of 128 entries per unit over [-16, 16], clamped outside;
+ * polynomial - e^-NET from a power of two built in the exponent bits times a degree 6 (5 in single precision)
+ * polynomial for the remaining fraction, then the reciprocal.
+ * The default is taken from system property reify.sigmoid, else exact. The node & napse object graph always uses
+ * Math.exp, so stays the exact reference. Maximum absolute errors in double precision, as measured by
+ * measureMaxError, are given by getMaxError: table 7.4e-7, polynomial 4e-8. Single precision adds its own rounding,
+ * measuring 9e-7 for table, 8e-7 for polynomial and 9e-8 for exact. Backpropagation takes the derivative from the
+ * approximated output, so trains consistently with it.
+ * @author Joseph Sackett
+ */
+public abstract class Sigmoid {
+	/** Implementation names. */
+	public static final String[] NAMES = { "exact", "table", "polynomial" };
+
+	/** Selected implementation. */
+	private static Sigmoid sigmoid = create(System.getProperty("reify.sigmoid", "exact"));
+
+	/**
+	 * @return the selected implementation.
+	 */
+	public static Sigmoid get() {
+		return sigmoid;
+	}
+
+	/**
+	 * Select the implementation used by neural networks created afterwards.
+	 * @param name one of NAMES.
+	 * @return the selected implementation.
+	 * @throws IllegalArgumentException for unknown names.
+	 */
+	public static Sigmoid select(String name) {
+		sigmoid = create(name);
+		return sigmoid;
+	}
+
+	/**
+	 * Create an implementation by name.
+	 * @param name one of NAMES.
+	 * @return implementation.
+	 * @throws IllegalArgumentException for unknown names.
+	 */
+	private static Sigmoid create(String name) {
+		switch (name) {
+		case "exact":
+			return new Exact();
+		case "table":
+			return new Table();
+		case "polynomial":
+			return new Polynomial();
+		default:
+			throw new IllegalArgumentException("Unknown sigmoid: " + name);
+		}
+	}
+
+	/**
+	 * Measure the maximum absolute error against Math.exp, at 1/4096 steps over [-64, 64], between table entries.
+	 * @param sigmoid implementation to measure.
+	 * @return maximum absolute error.
+	 */
+	public static double measureMaxError(Sigmoid sigmoid) {
+		double maxError = 0.0;
+		for (int ix = -64 * 4096 ; ix <= 64 * 4096 ; ix++) {
+			double net = (ix + 0.5) / 4096;
+			maxError = Math.max(maxError, Math.abs(sigmoid.apply(net) - 1.0 / (1.0 + Math.exp(-net))));
+		}
+		return maxError;
+	}
+
+	/**
+	 * @return implementation name.
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return maximum absolute error against Math.exp, in double precision.
+	 */
+	public abstract double getMaxError();
+
+	/**
+	 * @param net node NET.
+	 * @return sigmoid of NET.
+	 */
+	public abstract double apply(double net);
+
+	/**
+	 * @param net node NET.
+	 * @return sigmoid of NET, in single precision.
+	 */
+	public float apply(float net) {
+		return (float)apply((double)net);
+	}
+
+	/** Math.exp. */
+	static class Exact extends Sigmoid {
+		@Override
+		public String getName() {
+			return "exact";
+		}
+
+		@Override
+		public double getMaxError() {
+			return 0.0;
+		}
+
+		@Override
+		public double apply(double net) {
+			return 1.0 / (1.0 + Math.exp(-1.0 * net));
+		}
+
+		@Override
+		public float apply(float net) {
+			// Rounding inside the double expression defeats the JIT, so only the exponential is double.
+			return 1.0f / (1.0f + (float)Math.exp(-net));
+		}
+	}
+
+	/** Interpolated table lookup. */
+	static class Table extends Sigmoid {
+		/** NETs covered either side of 0; sigmoid(-16) is 1.1e-7. */
+		static final double RANGE = 16.0;
+
+		/** Table entries per unit of NET. */
+		static final double STEPS_PER_UNIT = 128.0;
+
+		/** Sigmoid at each step from -RANGE to RANGE. */
+		private static final double[] VALUES = new double[(int)(2 * RANGE * STEPS_PER_UNIT) + 1];
+
+		/** VALUES in single precision. */
+		private static final float[] FLOAT_VALUES = new float[VALUES.length];
+
+		static {
+			for (int ix = 0 ; ix < VALUES.length ; ix++) {
+				VALUES[ix] = 1.0 / (1.0 + Math.exp(-(ix / STEPS_PER_UNIT - RANGE)));
+				FLOAT_VALUES[ix] = (float)VALUES[ix];
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "table";
+		}
+
+		@Override
+		public double getMaxError() {
+			return 7.4e-7;
+		}
+
+		@Override
+		public double apply(double net) {
+			double position = (net + RANGE) * STEPS_PER_UNIT;
+			if (position <= 0.0) {
+				return VALUES[0];
+			}
+			if (position >= VALUES.length - 1) {
+				return VALUES[VALUES.length - 1];
+			}
+			int ix = (int)position;
+			double fraction = position - ix;
+			return VALUES[ix] + fraction * (VALUES[ix+1] - VALUES[ix]);
+		}
+
+		@Override
+		public float apply(float net) {
+			float position = (net + (float)RANGE) * (float)STEPS_PER_UNIT;
+			if (position <= 0.0f) {
+				return FLOAT_VALUES[0];
+			}
+			if (position >= FLOAT_VALUES.length - 1) {
+				return FLOAT_VALUES[FLOAT_VALUES.length - 1];
+			}
+			int ix = (int)position;
+			float fraction = position - ix;
+			return FLOAT_VALUES[ix] + fraction * (FLOAT_VALUES[ix+1] - FLOAT_VALUES[ix]);
+		}
+	}
+
+	/** Polynomial exponential. */
+	static class Polynomial extends Sigmoid {
+		/** NET limit beyond which sigmoid is within 4e-18 of 0 or 1, keeping the power of two in range. */
+		static final double LIMIT = 40.0;
+
+		/** log2(e). */
+		static final double LOG2_E = 1.4426950408889634;
+
+		/** ln(2). */
+		static final double LN_2 = 0.6931471805599453;
+
+		/** Adding 1.5 * 2^52 rounds a double to an integer held in the low bits of its mantissa. */
+		static final double ROUNDER = 0x1.8p52;
+
+		/** Adding 1.5 * 2^23 rounds a float to an integer held in the low bits of its mantissa. */
+		static final float FLOAT_ROUNDER = 0x1.8p23f;
+
+		@Override
+		public String getName() {
+			return "polynomial";
+		}
+
+		@Override
+		public double getMaxError() {
+			return 4e-8;
+		}
+
+		@Override
+		public double apply(double net) {
+			double x = (net > LIMIT) ? -LIMIT : (net < -LIMIT) ? LIMIT : -net;
+			// e^x = 2^n * e^f, with integer n and |f| <= ln(2)/2.
+			double rounded = x * LOG2_E + ROUNDER;
+			long n = Double.doubleToRawLongBits(rounded);
+			double f = x - (rounded - ROUNDER) * LN_2;
+			double expF = 1.0 + f * (1.0 + f * (1.0 / 2 + f * (1.0 / 6 + f * (1.0 / 24 + f * (1.0 / 120 + f * (1.0 / 720))))));
+			// Shifting drops the rounder's bits, leaving the biased exponent of 2^n.
+			double exp = expF * Double.longBitsToDouble((n + 1023) << 52);
+			return 1.0 / (1.0 + exp);
+		}
+
+		@Override
+		public float apply(float net) {
+			float x = (net > LIMIT) ? (float)-LIMIT : (net < -LIMIT) ? (float)LIMIT : -net;
+			float rounded = x * (float)LOG2_E + FLOAT_ROUNDER;
+			int n = Float.floatToRawIntBits(rounded);
+			float f = x - (rounded - FLOAT_ROUNDER) * (float)LN_2;
+			float expF = 1.0f + f * (1.0f + f * (1.0f / 2 + f * (1.0f / 6 + f * (1.0f / 24 + f * (1.0f / 120)))));
+			float exp = expF * Float.intBitsToFloat((n + 127) << 23);
+			return 1.0f / (1.0f + exp);
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+/**
+ * This holds dataset rows in compressed sparse row (CSR) form: the non-zero values of all rows in one array, with
+ * their column numbers alongside and the start of each row's entries, so a row is visited in time proportional to its
+ * non-zeros. Columns within a row are ascending.
+ * @author Joseph Sackett
+ */
+public class SparseRows {
+	/** Start of each row's entries, with end marker. */
+	final int[] rowOffsets;
+
+	/** Column of each entry. */
+	final int[] columns;
+
+	/** Value of each entry. */
+	final double[] values;
+
+	/** Number of columns. */
+	private int numColumns;
+
+	/**
+	 * Compress dense rows, dropping zeros.
+	 * @param rows dense rows of equal length.
+	 */
+	public SparseRows(double[][] rows) {
+		numColumns = (rows.length > 0) ? rows[0].length : 0;
+		rowOffsets = new int[rows.length + 1];
+		int numEntries = 0;
+		for (double[] row : rows) {
+			for (double value : row) {
+				if (value != 0.0) {
+					numEntries++;
+				}
+			}
+		}
+		columns = new int[numEntries];
+		values = new double[numEntries];
+
+		int ixEntry = 0;
+		for (int ixRow = 0 ; ixRow < rows.length ; ixRow++) {
+			rowOffsets[ixRow] = ixEntry;
+			for (int ixColumn = 0 ; ixColumn < rows[ixRow].length ; ixColumn++) {
+				if (rows[ixRow][ixColumn] != 0.0) {
+					columns[ixEntry] = ixColumn;
+					values[ixEntry] = rows[ixRow][ixColumn];
+					ixEntry++;
+				}
+			}
+		}
+		rowOffsets[rows.length] = ixEntry;
+	}
+
+	/**
+	 * @return the number of rows.
+	 */
+	public int getNumRows() {
+		return rowOffsets.length - 1;
+	}
+
+	/**
+	 * @return the number of columns.
+	 */
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * @return the number of non-zero entries.
+	 */
+	public int getNumEntries() {
+		return values.length;
+	}
+
+	/**
+	 * @return the fraction of values that are non-zero.
+	 */
+	public double getDensity() {
+		return (double)values.length / ((long)getNumRows() * numColumns);
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import com.sackett.reify.nn.NeuralNetwork.ClassifyOutput;
+
+/**
+ * This screens simulated annealing moves on random mini-batches before paying for a full evaluation.
+ * The RMSE of every instance under the current network is cached. A move is judged on paired differences between
+ * its instance RMSEs and the cached ones, drawn in mini-batches without replacement, by a sequential t-test against
+ * the acceptance threshold -T * ln(u) for the move's uniform draw u. Once MIN_SAMPLES are drawn, sampling stops as soon as the mean difference
+ * is significantly above (reject) or below (promising) the threshold, or when all instances are drawn.
+ * Promising moves are confirmed with the exact acceptance rule on the full set, which also refreshes the cache.
+ * Errors of the instances screening drew are kept, so confirmation only classifies the rest.
+ * Screening uses average RMSE only; the energy's small maximum RMSE term is applied at confirmation.
+ * @author Joseph Sackett
+ */
+public class StochasticEvaluator {
+	/** Critical value of the t statistic, roughly 95% two sided confidence. */
+	static final double CRITICAL_T = 2.0;
+
+	/** Fewest instances drawn before the t test may stop sampling, below which its standard error means little. */
+	static final int MIN_SAMPLES = 30;
+
+	/** Input data. */
+	private double[][] inputs;
+
+	/** Output data. */
+	private double[][] targetOutputs;
+
+	/** Number of instances drawn between tests. */
+	private int batchSize;
+
+	/** RMSE of each instance under the current network. */
+	private double[] currentRMSEs;
+
+	/** RMSE of each instance under the network of the last full evaluation, or of the screened move. */
+	private double[] candidateRMSEs;
+
+	/** Classification error of each instance under the screened move. */
+	private double[] candidateClassErrors;
+
+	/** Instance indexes, shuffled as drawn. */
+	private int[] order;
+
+	/** Number of instances screening drew for the pending move, at the start of order. */
+	private int numDrawn;
+
+	/** Mean RMSE difference of last screening. */
+	private double meanDifference;
+
+	/** Counts for report. */
+	private long numClassified = 0;
+	private int numScreened = 0;
+	private int numRejected = 0;
+
+	/**
+	 * @param inputs input data.
+	 * @param targetOutputs output data.
+	 * @param batchSize number of instances drawn between tests.
+	 */
+	public StochasticEvaluator(double[][] inputs, double[][] targetOutputs, int batchSize) {
+		this.inputs = inputs;
+		this.targetOutputs = targetOutputs;
+		this.batchSize = batchSize;
+		currentRMSEs = new double[inputs.length];
+		candidateRMSEs = new double[inputs.length];
+		candidateClassErrors = new double[inputs.length];
+		order = new int[inputs.length];
+		for (int ixInstance = 0 ; ixInstance < order.length ; ixInstance++) {
+			order[ixInstance] = ixInstance;
+		}
+	}
+
+	/**
+	 * Screen the neural network's current move on mini-batches.
+	 * @param neuralNetwork neural network with move applied.
+	 * @param threshold largest increase in average RMSE the move may make and be accepted.
+	 * @return flag indicating the move may be accepted and should be evaluated on the full set.
+	 */
+	public boolean isPromising(FlatNeuralNetwork neuralNetwork, double threshold) {
+		int numInstances = inputs.length;
+		double sumDiff = 0.0;
+		double sumSquDiff = 0.0;
+		numDrawn = 0;
+		numScreened++;
+		while (true) {
+			// Draw next mini-batch without replacement (partial Fisher-Yates shuffle).
+			int batchEnd = Math.min(numDrawn + batchSize, numInstances);
+			for ( ; numDrawn < batchEnd ; numDrawn++) {
+				int ixSwap = numDrawn + (int)(Math.random() * (numInstances - numDrawn));
+				int ixInstance = order[ixSwap];
+				order[ixSwap] = order[numDrawn];
+				order[numDrawn] = ixInstance;
+				ClassifyOutput classifyOutput = neuralNetwork.classify(inputs[ixInstance], targetOutputs[ixInstance]);
+				candidateRMSEs[ixInstance] = classifyOutput.getRmsError();
+				candidateClassErrors[ixInstance] = classifyOutput.getClassError();
+				double diff = candidateRMSEs[ixInstance] - currentRMSEs[ixInstance];
+				sumDiff += diff;
+				sumSquDiff += diff * diff;
+			}
+			meanDifference = sumDiff / numDrawn;
+
+			// Exact once every instance is drawn.
+			if (numDrawn == numInstances) {
+				break;
+			}
+			if (numDrawn < MIN_SAMPLES) {
+				continue;
+			}
+
+			// Standard error of mean difference, with finite population correction.
+			double variance = Math.max((sumSquDiff - numDrawn * meanDifference * meanDifference) / (numDrawn - 1), 0.0);
+			double stdError = Math.sqrt(variance / numDrawn * (1.0 - (double)(numDrawn - 1) / (numInstances - 1)));
+			if (stdError == 0.0) {
+				break;
+			}
+			double t = (meanDifference - threshold) / stdError;
+			if (Math.abs(t) > CRITICAL_T) {
+				break;
+			}
+		}
+		numClassified += numDrawn;
+
+		if (meanDifference < threshold) {
+			return true;
+		}
+		numRejected++;
+		numDrawn = 0;
+		return false;
+	}
+
+	/**
+	 * Evaluate all instances, keeping their RMSEs for accept(). Instances drawn by a promising screening of this move
+	 * reuse their errors, so only the rest are classified, none once screening drew them all.
+	 * @param neuralNetwork neural network to evaluate.
+	 * @param stats accumulates the errors of each instance.
+	 */
+	public void evaluate(FlatNeuralNetwork neuralNetwork, ErrorStats stats) {
+		for (int ixDrawn = 0 ; ixDrawn < numDrawn ; ixDrawn++) {
+			int ixInstance = order[ixDrawn];
+			stats.add(candidateRMSEs[ixInstance], candidateClassErrors[ixInstance]);
+		}
+		for (int ixDrawn = numDrawn ; ixDrawn < order.length ; ixDrawn++) {
+			int ixInstance = order[ixDrawn];
+			ClassifyOutput classifyOutput = neuralNetwork.classify(inputs[ixInstance], targetOutputs[ixInstance]);
+			candidateRMSEs[ixInstance] = classifyOutput.getRmsError();
+			stats.add(classifyOutput.getRmsError(), classifyOutput.getClassError());
+		}
+		numClassified += order.length - numDrawn;
+		numDrawn = 0;
+	}
+
+	/** Make the network of the last full evaluation current. */
+	public void accept() {
+		double[] swap = currentRMSEs;
+		currentRMSEs = candidateRMSEs;
+		candidateRMSEs = swap;
+	}
+
+	/**
+	 * @return the mean RMSE difference of the last screening.
+	 */
+	public double getMeanDifference() {
+		return meanDifference;
+	}
+
+	/**
+	 * @param numEpochs number of epochs run.
+	 * @return summary of screening work.
+	 */
+	public String report(int numEpochs) {
+		return "Mini-batch screening: " + numRejected + " of " + numScreened + " moves rejected early, "
+				+ numClassified + " instances classified vs " + ((long)numEpochs * inputs.length) + " for full evaluation";
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import java.util.Arrays;
+
+/**
+ * This records the weights changed by a move, with their former values, so the move can be undone in place.
+ * @author Joseph Sackett
+ */
+public class UndoLog {
+	/** Changed napse indexes, in order of change. */
+	private int[] indexes;
+
+	/** Former weights, in order of change. */
+	private double[] oldWeights;
+
+	/** Number of recorded changes. */
+	private int size;
+
+	/** Default constructor. */
+	public UndoLog() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity initial number of changes held before growing.
+	 */
+	public UndoLog(int capacity) {
+		indexes = new int[Math.max(capacity, 1)];
+		oldWeights = new double[indexes.length];
+	}
+
+	/**
+	 * Record a weight about to change.
+	 * @param ixNapse napse index.
+	 * @param oldWeight weight before the change.
+	 */
+	public void record(int ixNapse, double oldWeight) {
+		if (size == indexes.length) {
+			indexes = Arrays.copyOf(indexes, size * 2);
+			oldWeights = Arrays.copyOf(oldWeights, size * 2);
+		}
+		indexes[size] = ixNapse;
+		oldWeights[size] = oldWeight;
+		size++;
+	}
+
+	/**
+	 * Restore the recorded weights, latest change first, and clear the log.
+	 * @param weights weights to restore.
+	 */
+	public void rollback(double[] weights) {
+		for (int ix = size - 1 ; ix >= 0 ; ix--) {
+			weights[indexes[ix]] = oldWeights[ix];
+		}
+		size = 0;
+	}
+
+	/** Keep the recorded changes, clearing the log. */
+	public void commit() {
+		size = 0;
+	}
+
+	/**
+	 * @return the number of recorded changes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param ix change number.
+	 * @return napse index of change.
+	 */
+	public int getIndex(int ix) {
+		return indexes[ix];
+	}
+
+	/**
+	 * @param ix change number.
+	 * @return weight before change.
+	 */
+	public double getOldWeight(int ix) {
+		return oldWeights[ix];
+	}
+
+}
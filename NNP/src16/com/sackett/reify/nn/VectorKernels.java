@@ -0,0 +1,106 @@
+/*
+    Adaptive Neural Network
+    Copyright (C) 2013  Sackett Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sackett.reify.nn;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * These are the array kernels on the JDK Vector API, using the platform's preferred vector width
+ * (4 doubles on AVX2, 8 on AVX-512). Compile with JDK 16 or later and --add-modules jdk.incubator.vector,
+ * and run with --add-modules jdk.incubator.vector; Kernels loads this class reflectively.
+ * Axpy multiplies then adds, without fused multiply-add, so matches the scalar kernels exactly.
+ * @author Joseph Sackett
+ */
+public class VectorKernels extends Kernels {
+	/** Preferred vector shape of platform. */
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	/** Preferred vector shape of platform, in single precision. */
+	private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	@Override
+	public String getName() {
+		return "vector (" + SPECIES.length() + " lanes)";
+	}
+
+	@Override
+	public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+		int ix = 0;
+		int upperBound = SPECIES.loopBound(length);
+		for ( ; ix < upperBound ; ix += SPECIES.length()) {
+			DoubleVector xVector = DoubleVector.fromArray(SPECIES, x, xOffset + ix);
+			DoubleVector yVector = DoubleVector.fromArray(SPECIES, y, yOffset + ix);
+			yVector.add(xVector.mul(alpha)).intoArray(y, yOffset + ix);
+		}
+		for ( ; ix < length ; ix++) {
+			y[yOffset + ix] += alpha * x[xOffset + ix];
+		}
+	}
+
+	@Override
+	public double dot(double[] x, int xOffset, double[] y, int yOffset, int length) {
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int ix = 0;
+		int upperBound = SPECIES.loopBound(length);
+		for ( ; ix < upperBound ; ix += SPECIES.length()) {
+			DoubleVector xVector = DoubleVector.fromArray(SPECIES, x, xOffset + ix);
+			DoubleVector yVector = DoubleVector.fromArray(SPECIES, y, yOffset + ix);
+			sums = xVector.fma(yVector, sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for ( ; ix < length ; ix++) {
+			sum += x[xOffset + ix] * y[yOffset + ix];
+		}
+		return sum;
+	}
+
+	@Override
+	public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+		int ix = 0;
+		int upperBound = FLOAT_SPECIES.loopBound(length);
+		for ( ; ix < upperBound ; ix += FLOAT_SPECIES.length()) {
+			FloatVector xVector = FloatVector.fromArray(FLOAT_SPECIES, x, xOffset + ix);
+			FloatVector yVector = FloatVector.fromArray(FLOAT_SPECIES, y, yOffset + ix);
+			yVector.add(xVector.mul(alpha)).intoArray(y, yOffset + ix);
+		}
+		for ( ; ix < length ; ix++) {
+			y[yOffset + ix] += alpha * x[xOffset + ix];
+		}
+	}
+
+	@Override
+	public float dot(float[] x, int xOffset, float[] y, int yOffset, int length) {
+		FloatVector sums = FloatVector.zero(FLOAT_SPECIES);
+		int ix = 0;
+		int upperBound = FLOAT_SPECIES.loopBound(length);
+		for ( ; ix < upperBound ; ix += FLOAT_SPECIES.length()) {
+			FloatVector xVector = FloatVector.fromArray(FLOAT_SPECIES, x, xOffset + ix);
+			FloatVector yVector = FloatVector.fromArray(FLOAT_SPECIES, y, yOffset + ix);
+			sums = xVector.fma(yVector, sums);
+		}
+		float sum = sums.reduceLanes(VectorOperators.ADD);
+		for ( ; ix < length ; ix++) {
+			sum += x[xOffset + ix] * y[yOffset + ix];
+		}
+		return sum;
+	}
+
+}